@@ -0,0 +1,66 @@
+package fuzzyweka.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.CSVLoader;
+
+/** Conjuntos de datos para los benchmarks */
+final class Datos {
+
+	/** Directorio data/ del proyecto; por defecto se lanza desde bench/ */
+	static final String DIRECTORIO = System.getProperty("fuzzyweka.data", "../data");
+
+	private Datos() {
+	}
+
+	/** Carga data/S1.csv (5000 puntos, 2 atributos, sin clase) */
+	static Instances s1() throws Exception {
+		CSVLoader loader = new CSVLoader();
+		loader.setSource(new File(DIRECTORIO, "S1.csv"));
+		return loader.getDataSet();
+	}
+
+	/**
+	 * Genera n puntos en d dimensiones repartidos en c nubes gaussianas con
+	 * centros uniformes en [0,100)^d y desviacion 5, como S1 pero escalable.
+	 *
+	 * @param conClase
+	 *            si es true se añade un atributo nominal con la nube de origen
+	 *            como ultimo atributo y se fija como clase
+	 */
+	static Instances nubes(int n, int d, int c, long semilla, boolean conClase) {
+		Random rand = new Random(semilla);
+		double centros[][] = new double[c][d];
+		for (int i = 0; i < c; i++)
+			for (int j = 0; j < d; j++)
+				centros[i][j] = rand.nextDouble() * 100;
+
+		FastVector atributos = new FastVector(d + 1);
+		for (int j = 0; j < d; j++)
+			atributos.addElement(new Attribute("x" + j));
+		if (conClase) {
+			FastVector clases = new FastVector(c);
+			for (int i = 0; i < c; i++)
+				clases.addElement("c" + i);
+			atributos.addElement(new Attribute("clase", clases));
+		}
+		Instances datos = new Instances("nubes", atributos, n);
+		for (int p = 0; p < n; p++) {
+			int nube = rand.nextInt(c);
+			double valores[] = new double[datos.numAttributes()];
+			for (int j = 0; j < d; j++)
+				valores[j] = centros[nube][j] + rand.nextGaussian() * 5;
+			if (conClase)
+				valores[d] = nube;
+			datos.add(new Instance(1.0, valores));
+		}
+		if (conClase)
+			datos.setClassIndex(d);
+		return datos;
+	}
+}
@@ -0,0 +1,109 @@
+package fuzzyweka.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.clusterers.Clusterer;
+import weka.clusterers.RandomizableClusterer;
+import weka.core.Instances;
+
+/**
+ * Coste de FuzzyCMeans: una iteracion (calcularV + actualizarU) y el
+ * entrenamiento completo, sobre nubes sinteticas de tamaño n x d y sobre
+ * data/S1.csv.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FuzzyCMeansBenchmark {
+
+	private static final Class<?> TIPOS[] = { double.class, int.class, double.class };
+
+	/** Crea un FuzzyCMeans con semilla fija */
+	static Clusterer nuevoFCM(double m, int c, double epsilon) throws Exception {
+		Clusterer fcm = (Clusterer) Repo.nuevo("FuzzyCMeans", TIPOS, m, c, epsilon);
+		((RandomizableClusterer) fcm).setSeed(10);
+		return fcm;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Sintetico {
+		@Param({ "5000", "50000" })
+		public int n;
+		@Param({ "2", "16" })
+		public int d;
+		@Param({ "3", "15" })
+		public int c;
+		@Param({ "2.0" })
+		public double m;
+
+		Instances datos;
+		/** Modelo ya inicializado sobre el que se repiten iteraciones */
+		Clusterer fcm;
+		MethodHandle calcularV, actualizarU;
+
+		@Setup(Level.Trial)
+		public void preparar() throws Exception {
+			datos = Datos.nubes(n, d, c, 1, false);
+			fcm = nuevoFCM(m, c, 0.001);
+			Repo.asignar(fcm, "maxIteraciones", 1);
+			fcm.buildClusterer(datos);
+			calcularV = Repo.metodo("FuzzyCMeans", "calcularV");
+			actualizarU = Repo.metodo("FuzzyCMeans", "actualizarU");
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class S1 {
+		@Param({ "15" })
+		public int c;
+		@Param({ "2.0" })
+		public double m;
+
+		Instances datos;
+
+		@Setup(Level.Trial)
+		public void preparar() throws Exception {
+			datos = Datos.s1();
+		}
+	}
+
+	/** Una iteracion del bucle de buildClusterer */
+	@Benchmark
+	public Object iteracion(Sintetico s) throws Throwable {
+		s.calcularV.invoke(s.fcm);
+		s.actualizarU.invoke(s.fcm);
+		return s.fcm;
+	}
+
+	/** Entrenamiento completo hasta converger o agotar las iteraciones */
+	@Benchmark
+	public Object entrenamientoSintetico(Sintetico s) throws Exception {
+		Clusterer fcm = nuevoFCM(s.m, s.c, 0.001);
+		fcm.buildClusterer(s.datos);
+		return fcm;
+	}
+
+	/** Entrenamiento completo sobre data/S1.csv */
+	@Benchmark
+	public Object entrenamientoS1(S1 s) throws Exception {
+		Clusterer fcm = nuevoFCM(s.m, s.c, 0.001);
+		fcm.buildClusterer(s.datos);
+		return fcm;
+	}
+}
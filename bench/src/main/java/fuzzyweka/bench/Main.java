@@ -0,0 +1,25 @@
+package fuzzyweka.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lanza los benchmarks con las opciones habituales de JMH (-p, -f, -wi, ...)
+ * añadiendo siempre el perfilador de memoria (-prof gc), para que cada
+ * resultado venga acompañado de los bytes reservados por operacion.
+ *
+ * Ejemplo: java -jar target/benchmarks.jar FuzzyCMeans -p n=50000 -p c=15
+ */
+public class Main {
+
+	public static void main(String[] args) throws Exception {
+		Options opciones = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opciones).run();
+	}
+}
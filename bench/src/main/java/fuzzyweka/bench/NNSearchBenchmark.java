@@ -0,0 +1,61 @@
+package fuzzyweka.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/** Latencia de LinearNNESearch.kNearestNeighboursIndices por consulta */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NNSearchBenchmark {
+
+	/** Numero de consultas distintas que se recorren en ciclo */
+	static final int CONSULTAS = 1024;
+
+	@Param({ "1000", "10000", "100000" })
+	public int n;
+	@Param({ "2", "34" })
+	public int d;
+	@Param({ "3", "15" })
+	public int k;
+
+	Object busqueda;
+	MethodHandle kNearestNeighboursIndices;
+	Instances consultas;
+	int siguiente;
+
+	@Setup(Level.Trial)
+	public void preparar() throws Throwable {
+		Instances referencia = Datos.nubes(n, d, 5, 1, true);
+		consultas = Datos.nubes(CONSULTAS, d, 5, 2, true);
+		busqueda = Repo.nuevo("LinearNNESearch", new Class<?>[] { Instances.class }, referencia);
+		Repo.metodo("LinearNNESearch", "setSkipIdentical", boolean.class).invoke(busqueda, true);
+		kNearestNeighboursIndices = Repo.metodo("LinearNNESearch", "kNearestNeighboursIndices", Instance.class,
+				int.class);
+	}
+
+	@Benchmark
+	public int[] consulta() throws Throwable {
+		Instance q = consultas.instance(siguiente++ & (CONSULTAS - 1));
+		return (int[]) kNearestNeighboursIndices.invoke(busqueda, q, k);
+	}
+}
@@ -0,0 +1,58 @@
+package fuzzyweka.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Acceso a las clases del proyecto. Estan en el paquete por defecto y no se
+ * pueden importar desde un paquete con nombre (JMH exige uno), asi que se
+ * cargan por reflexion. La reflexion solo se usa en los @Setup: en las medidas
+ * se llama a las interfaces de Weka o a MethodHandle ya resueltos.
+ */
+final class Repo {
+
+	private Repo() {
+	}
+
+	/** Crea una instancia de una clase del proyecto */
+	static Object nuevo(String clase, Class<?> tipos[], Object... args) throws Exception {
+		Constructor<?> constructor = Class.forName(clase).getDeclaredConstructor(tipos);
+		constructor.setAccessible(true);
+		return constructor.newInstance(args);
+	}
+
+	/**
+	 * MethodHandle de un metodo (aunque sea protegido o heredado) de una clase
+	 * del proyecto
+	 */
+	static MethodHandle metodo(String clase, String nombre, Class<?>... tipos) throws Exception {
+		for (Class<?> c = Class.forName(clase); c != null; c = c.getSuperclass()) {
+			try {
+				Method metodo = c.getDeclaredMethod(nombre, tipos);
+				metodo.setAccessible(true);
+				return MethodHandles.lookup().unreflect(metodo);
+			} catch (NoSuchMethodException e) {
+				// se busca en la superclase
+			}
+		}
+		throw new NoSuchMethodException(clase + "." + nombre);
+	}
+
+	/** Asigna un campo (aunque sea protegido) de un objeto del proyecto */
+	static void asignar(Object objeto, String campo, Object valor) throws Exception {
+		for (Class<?> c = objeto.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				Field f = c.getDeclaredField(campo);
+				f.setAccessible(true);
+				f.set(objeto, valor);
+				return;
+			} catch (NoSuchFieldException e) {
+				// se busca en la superclase
+			}
+		}
+		throw new NoSuchFieldException(campo);
+	}
+}
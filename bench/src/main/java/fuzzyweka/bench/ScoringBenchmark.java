@@ -0,0 +1,92 @@
+package fuzzyweka.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+/**
+ * Coste de puntuar con FuzzyKNN, CrispKNN y FuzzyNP, instancia a instancia y
+ * por lotes. Las dos medidas se dan por instancia para poder compararlas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScoringBenchmark {
+
+	/** Tamaño del lote; tambien numero de consultas distintas recorridas */
+	static final int LOTE = 1024;
+
+	@Param({ "FuzzyKNN", "CrispKNN", "FuzzyNP" })
+	public String algoritmo;
+	@Param({ "1000", "10000" })
+	public int n;
+	@Param({ "4", "34" })
+	public int d;
+	/** Numero de clases */
+	@Param({ "2", "10" })
+	public int c;
+	@Param({ "3", "15" })
+	public int k;
+	@Param({ "2.0" })
+	public double m;
+
+	Classifier clasificador;
+	Instances consultas;
+	/** Puntuacion por lotes propia del clasificador, si la tiene */
+	MethodHandle porLotes;
+	int siguiente;
+
+	@Setup(Level.Trial)
+	public void preparar() throws Exception {
+		Instances entrenamiento = Datos.nubes(n, d, c, 1, true);
+		consultas = Datos.nubes(LOTE, d, c, 2, true);
+		switch (algoritmo) {
+		case "FuzzyKNN":
+			clasificador = (Classifier) Repo.nuevo(algoritmo, new Class<?>[] { int.class, double.class, int.class },
+					k, m, 1);
+			break;
+		case "CrispKNN":
+			clasificador = (Classifier) Repo.nuevo(algoritmo, new Class<?>[] { int.class }, k);
+			break;
+		default:
+			clasificador = (Classifier) Repo.nuevo(algoritmo, new Class<?>[] { double.class }, m);
+			porLotes = Repo.metodo(algoritmo, "distributionsForInstances", Instances.class);
+		}
+		clasificador.buildClassifier(entrenamiento);
+	}
+
+	@Benchmark
+	public double[] porInstancia() throws Exception {
+		return clasificador.distributionForInstance(consultas.instance(siguiente++ & (LOTE - 1)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOTE)
+	public Object lote() throws Throwable {
+		if (porLotes != null)
+			return porLotes.invoke(clasificador, consultas);
+		double u[][] = new double[LOTE][];
+		for (int i = 0; i < LOTE; i++)
+			u[i] = clasificador.distributionForInstance(consultas.instance(i));
+		return u;
+	}
+}
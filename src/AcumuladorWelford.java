@@ -0,0 +1,130 @@
+import java.io.Serializable;
+
+import weka.core.Instance;
+
+/**
+ * Acumulador de medias y varianzas por grupo y atributo en una sola pasada
+ * (algoritmo de Welford). Los valores ausentes no se suman: se cuentan aparte
+ * para cada atributo. Dos acumuladores construidos sobre particiones distintas
+ * de los datos se pueden combinar (Chan et al.), lo que permite entrenar en
+ * paralelo y seguir actualizando despues instancia a instancia.
+ *
+ * Welford, B. P. (1962). Note on a method for calculating corrected sums of
+ * squares and products. Technometrics, 4(3), 419-420.
+ */
+public class AcumuladorWelford implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Numero de instancias de cada grupo */
+	protected long total[];
+	/** Numero de valores no ausentes [grupo][atributo] */
+	protected long n[][];
+	/** Media de los valores no ausentes [grupo][atributo] */
+	protected double media[][];
+	/** Suma de cuadrados de las desviaciones a la media [grupo][atributo] */
+	protected double m2[][];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param grupos
+	 *            numero de grupos (por ejemplo, clases)
+	 * @param dimensiones
+	 *            numero de atributos que se acumulan
+	 */
+	public AcumuladorWelford(int grupos, int dimensiones) {
+		total = new long[grupos];
+		n = new long[grupos][dimensiones];
+		media = new double[grupos][dimensiones];
+		m2 = new double[grupos][dimensiones];
+	}
+
+	/**
+	 * Acumula un vector de valores. Los NaN se tratan como ausentes.
+	 *
+	 * @param grupo
+	 *            grupo al que pertenece el vector
+	 * @param valores
+	 *            un valor por dimension
+	 */
+	public void agregar(int grupo, double valores[]) {
+		total[grupo]++;
+		for (int a = 0; a < valores.length; a++)
+			agregar(grupo, a, valores[a]);
+	}
+
+	/**
+	 * Acumula una instancia leyendo solo los atributos indicados, sin copiarla.
+	 *
+	 * @param grupo
+	 *            grupo al que pertenece la instancia
+	 * @param instancia
+	 *            la instancia
+	 * @param atributos
+	 *            indice en la instancia de cada dimension
+	 */
+	public void agregar(int grupo, Instance instancia, int atributos[]) {
+		total[grupo]++;
+		for (int a = 0; a < atributos.length; a++)
+			agregar(grupo, a, instancia.value(atributos[a]));
+	}
+
+	/** Paso de Welford para un unico valor */
+	private void agregar(int grupo, int a, double valor) {
+		if (Instance.isMissingValue(valor))
+			return;
+		long k = ++n[grupo][a];
+		double delta = valor - media[grupo][a];
+		media[grupo][a] += delta / k;
+		m2[grupo][a] += delta * (valor - media[grupo][a]);
+	}
+
+	/**
+	 * Añade a este acumulador los valores acumulados en otro con las mismas
+	 * dimensiones.
+	 *
+	 * @param otro
+	 *            acumulador de otra particion de los datos
+	 */
+	public void combinar(AcumuladorWelford otro) {
+		for (int g = 0; g < total.length; g++) {
+			total[g] += otro.total[g];
+			for (int a = 0; a < media[g].length; a++) {
+				long na = n[g][a], nb = otro.n[g][a];
+				if (nb == 0)
+					continue;
+				long nab = na + nb;
+				double delta = otro.media[g][a] - media[g][a];
+				media[g][a] += delta * nb / nab;
+				m2[g][a] += otro.m2[g][a] + delta * delta * ((double) na * nb / nab);
+				n[g][a] = nab;
+			}
+		}
+	}
+
+	/** Numero de grupos */
+	public int numGrupos() {
+		return total.length;
+	}
+
+	/** Numero de instancias acumuladas en el grupo */
+	public long total(int grupo) {
+		return total[grupo];
+	}
+
+	/** Numero de valores ausentes del atributo en el grupo */
+	public long ausentes(int grupo, int a) {
+		return total[grupo] - n[grupo][a];
+	}
+
+	/** Media del atributo en el grupo, o valor ausente si no hay datos */
+	public double media(int grupo, int a) {
+		return n[grupo][a] == 0 ? Instance.missingValue() : media[grupo][a];
+	}
+
+	/** Varianza muestral (n-1) del atributo en el grupo */
+	public double varianza(int grupo, int a) {
+		return n[grupo][a] < 2 ? 0.0 : m2[grupo][a] / (n[grupo][a] - 1);
+	}
+}
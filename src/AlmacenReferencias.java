@@ -0,0 +1,215 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Conjunto de referencia de los kNN guardado fuera del heap, fila a fila, en
+ * memoria directa o en un fichero proyectado en memoria. El heap solo guarda
+ * la cabecera y unos pocos objetos por segmento, asi que el recolector no
+ * recorre los datos aunque haya decenas de millones de filas.
+ *
+ * Las filas se guardan en segmentos de hasta MAX_DOUBLES_SEGMENTO valores
+ * (1 GB), todos con el mismo numero de filas; al añadir filas se reserva un
+ * segmento nuevo del mismo tamaño. El fichero, si se usa, es solo el soporte
+ * de los datos y no tiene cabecera: no sirve para volver a abrir el almacen.
+ * Al serializar se escriben las filas y al leer se cargan en memoria directa.
+ *
+ * LinearNNESearch busca los vecinos leyendo directamente de aqui.
+ */
+public class AlmacenReferencias implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Valores maximos por segmento (2^27 double, 1 GB) */
+	protected static final int MAX_DOUBLES_SEGMENTO = 1 << 27;
+	/** Filas minimas por segmento */
+	protected static final int MIN_FILAS_SEGMENTO = 1024;
+
+	/** Cabecera, sin instancias */
+	protected Instances cabecera;
+	/** Valores por fila (todos los atributos, incluida la clase) */
+	protected int d;
+	/** Numero de filas */
+	protected int n;
+	protected int filasPorSegmento;
+	/** Fichero de soporte, o null si se usa memoria directa */
+	protected transient File fichero;
+	protected transient List<DoubleBuffer> segmentos;
+
+	/**
+	 * Crea un almacen vacio.
+	 *
+	 * @param cabecera
+	 *            cabecera de las instancias; se copia sin instancias
+	 * @param capacidad
+	 *            numero de filas previsto, que fija el tamaño de los segmentos
+	 * @param fichero
+	 *            fichero de soporte, que se sobrescribe, o null para usar
+	 *            memoria directa
+	 */
+	public AlmacenReferencias(Instances cabecera, int capacidad, File fichero) {
+		this.cabecera = new Instances(cabecera, 0);
+		this.d = cabecera.numAttributes();
+		this.fichero = fichero;
+		this.filasPorSegmento = Math.max(1,
+				Math.min(MAX_DOUBLES_SEGMENTO / Math.max(d, 1), Math.max(capacidad, MIN_FILAS_SEGMENTO)));
+		this.segmentos = new ArrayList<>();
+		if (fichero != null)
+			fichero.delete();
+	}
+
+	/**
+	 * Copia unas instancias en un almacen nuevo.
+	 *
+	 * @param fichero
+	 *            fichero de soporte, o null para usar memoria directa
+	 */
+	public static AlmacenReferencias copiar(Instances datos, File fichero) throws IOException {
+		AlmacenReferencias almacen = new AlmacenReferencias(datos, datos.numInstances(), fichero);
+		for (int i = 0; i < datos.numInstances(); i++)
+			almacen.agregar(datos.instance(i));
+		return almacen;
+	}
+
+	/**
+	 * Fichero de soporte temporal, que se borra al salir, para un almacen en
+	 * el directorio indicado.
+	 *
+	 * @return el fichero, o null (memoria directa) si directorio es null
+	 */
+	public static File ficheroTemporal(File directorio) throws IOException {
+		if (directorio == null)
+			return null;
+		File fichero = File.createTempFile("referencias", ".bin", directorio);
+		fichero.deleteOnExit();
+		return fichero;
+	}
+
+	/**
+	 * Copia unas filas en un almacen nuevo en memoria directa.
+	 *
+	 * @param filas
+	 *            indices de las filas, en el orden en que se copian
+	 * @param total
+	 *            numero de posiciones validas de filas
+	 */
+	public AlmacenReferencias subconjunto(int filas[], int total) throws IOException {
+		AlmacenReferencias nuevo = new AlmacenReferencias(cabecera, total, null);
+		double fila[] = new double[d];
+		for (int r = 0; r < total; r++)
+			nuevo.agregar(leer(filas[r], fila));
+		return nuevo;
+	}
+
+	/** Añade una fila con los valores de la instancia */
+	public void agregar(Instance instancia) throws IOException {
+		agregar(instancia.toDoubleArray());
+	}
+
+	/** Añade una fila; los ausentes son NaN */
+	public void agregar(double valores[]) throws IOException {
+		if (n == segmentos.size() * filasPorSegmento)
+			segmentos.add(reservar(segmentos.size()));
+		DoubleBuffer segmento = segmentos.get(n / filasPorSegmento);
+		int base = (n % filasPorSegmento) * d;
+		for (int a = 0; a < d; a++)
+			segmento.put(base + a, valores[a]);
+		n++;
+	}
+
+	/** Reserva el segmento s en memoria directa o en el fichero */
+	private DoubleBuffer reservar(int s) throws IOException {
+		long bytes = 8L * filasPorSegmento * d;
+		ByteBuffer buffer;
+		if (fichero == null)
+			buffer = ByteBuffer.allocateDirect((int) bytes);
+		else
+			try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buffer = canal.map(FileChannel.MapMode.READ_WRITE, s * bytes, bytes);
+			}
+		return buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	public int numFilas() {
+		return n;
+	}
+
+	public int numAtributos() {
+		return d;
+	}
+
+	/** Cabecera sin instancias */
+	public Instances cabecera() {
+		return cabecera;
+	}
+
+	/** Valor del atributo a en la fila i (NaN si falta) */
+	public double valor(int i, int a) {
+		return segmentos.get(i / filasPorSegmento).get((i % filasPorSegmento) * d + a);
+	}
+
+	/** Valor de la clase de la fila i */
+	public double clase(int i) {
+		return valor(i, cabecera.classIndex());
+	}
+
+	/** Copia la fila i en destino y lo devuelve */
+	public double[] leer(int i, double destino[]) {
+		DoubleBuffer segmento = segmentos.get(i / filasPorSegmento);
+		int base = (i % filasPorSegmento) * d;
+		for (int a = 0; a < d; a++)
+			destino[a] = segmento.get(base + a);
+		return destino;
+	}
+
+	/** La fila i como una instancia nueva en el heap, con la cabecera asignada */
+	public Instance instancia(int i) {
+		Instance instancia = new Instance(1.0, leer(i, new double[d]));
+		instancia.setDataset(cabecera);
+		return instancia;
+	}
+
+	/** Copia todas las filas en un Instances en el heap */
+	public Instances toInstances() {
+		Instances datos = new Instances(cabecera, n);
+		for (int i = 0; i < n; i++)
+			datos.add(new Instance(1.0, leer(i, new double[d])));
+		return datos;
+	}
+
+	private void writeObject(ObjectOutputStream salida) throws IOException {
+		salida.defaultWriteObject();
+		double fila[] = new double[d];
+		for (int i = 0; i < n; i++) {
+			leer(i, fila);
+			for (int a = 0; a < d; a++)
+				salida.writeDouble(fila[a]);
+		}
+	}
+
+	private void readObject(ObjectInputStream entrada) throws IOException, ClassNotFoundException {
+		entrada.defaultReadObject();
+		int filas = n;
+		n = 0;
+		segmentos = new ArrayList<>();
+		double fila[] = new double[d];
+		for (int i = 0; i < filas; i++) {
+			for (int a = 0; a < d; a++)
+				fila[a] = entrada.readDouble();
+			agregar(fila);
+		}
+	}
+}
@@ -0,0 +1,484 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Cache binaria por columnas de un conjunto de datos. Se crea una vez a partir
+ * de cualquier ARFF o CSV y despues se abre proyectando el fichero en memoria,
+ * sin convertir texto, de modo que los experimentos repetidos empiezan en
+ * milisegundos. Una vez abierta da acceso directo a cada columna como un
+ * DoubleBuffer (sin copiar) o se convierte en Instances.
+ *
+ * Formato (little-endian):
+ * <ul>
+ * <li>MAGIA (int), VERSION (int), tamaño (long) y fecha de modificacion (long)
+ * del fichero de origen, numero de filas (long), numero de atributos (int),
+ * indice de la clase (int), nombre de la relacion (texto)</li>
+ * <li>por atributo: tipo (int), nombre (texto), numero de valores (int) y
+ * valores (texto) si es nominal o string, o formato (texto) si es fecha, y la
+ * posicion en el fichero de su columna y de su mapa de ausentes (long, 0 si
+ * no tiene ausentes)</li>
+ * <li>posicion de la columna de pesos (long, 0 si todos valen 1)</li>
+ * <li>columnas de filas x double, alineadas a 8 bytes; los ausentes son NaN,
+ * como en Weka</li>
+ * <li>mapas de ausentes de (filas + 63) / 64 long: el bit i%64 del long i/64
+ * esta a 1 si la fila i es ausente</li>
+ * </ul>
+ * Los textos se guardan como longitud (int) y bytes en UTF-8. Cada columna se
+ * proyecta por separado, asi que el limite es de 2^28 filas por columna y no
+ * de 2 GB por fichero.
+ *
+ * Una cache tambien se puede escribir fila a fila desde una fuente de Filas
+ * (por ejemplo GeneradorNubes) sin tener los datos en memoria; esa cache no
+ * tiene fichero de origen y cargar y abrir la aceptan directamente.
+ */
+public class CacheColumnar {
+
+	/** "FWCC" */
+	public static final int MAGIA = 0x46574343;
+	public static final int VERSION = 1;
+	/** Extension que se añade al fichero de origen */
+	public static final String EXTENSION = ".fwc";
+
+	/** Cabecera sin instancias */
+	protected Instances cabecera;
+	/** Numero de filas */
+	protected int filas;
+	/** Tamaño y fecha del fichero de origen cuando se creo la cache */
+	protected long tamanoOrigen, fechaOrigen;
+	/** Columna de valores de cada atributo */
+	protected DoubleBuffer columnas[];
+	/** Mapa de ausentes de cada atributo, o null si no tiene */
+	protected LongBuffer ausentes[];
+	/** Pesos de las instancias, o null si todos valen 1 */
+	protected DoubleBuffer pesos;
+
+	/** Fuente de filas para escribir una cache sin tener los datos en un Instances */
+	public interface Filas {
+		/** Deja en x los valores de la siguiente fila */
+		void siguiente(double x[]) throws IOException;
+	}
+
+	/**
+	 * Abre una cache proyectandola en memoria. Las proyecciones siguen siendo
+	 * validas despues de cerrar el fichero.
+	 *
+	 * @param fichero
+	 *            fichero creado con escribir
+	 */
+	public CacheColumnar(File fichero) throws IOException {
+		try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(canal.size(), Integer.MAX_VALUE))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt() != MAGIA)
+				throw new IOException(fichero + " no es una cache columnar");
+			if (buffer.getInt() != VERSION)
+				throw new IOException(fichero + " tiene una version de cache no soportada");
+			tamanoOrigen = buffer.getLong();
+			fechaOrigen = buffer.getLong();
+			long n = buffer.getLong();
+			if (n > Integer.MAX_VALUE)
+				throw new IOException("Demasiadas filas: " + n);
+			filas = (int) n;
+			int numAtributos = buffer.getInt();
+			int indiceClase = buffer.getInt();
+			String relacion = leerTexto(buffer);
+
+			FastVector atributos = new FastVector(numAtributos);
+			columnas = new DoubleBuffer[numAtributos];
+			ausentes = new LongBuffer[numAtributos];
+			for (int j = 0; j < numAtributos; j++) {
+				int tipo = buffer.getInt();
+				String nombre = leerTexto(buffer);
+				Attribute atributo;
+				switch (tipo) {
+				case Attribute.NUMERIC:
+					atributo = new Attribute(nombre);
+					break;
+				case Attribute.DATE:
+					atributo = new Attribute(nombre, leerTexto(buffer));
+					break;
+				case Attribute.NOMINAL:
+				case Attribute.STRING:
+					int numValores = buffer.getInt();
+					FastVector valores = new FastVector(numValores);
+					for (int v = 0; v < numValores; v++)
+						valores.addElement(leerTexto(buffer));
+					if (tipo == Attribute.NOMINAL)
+						atributo = new Attribute(nombre, valores);
+					else {
+						atributo = new Attribute(nombre, (FastVector) null);
+						for (int v = 0; v < numValores; v++)
+							atributo.addStringValue((String) valores.elementAt(v));
+					}
+					break;
+				default:
+					throw new IOException("Tipo de atributo no soportado: " + tipo);
+				}
+				atributos.addElement(atributo);
+				columnas[j] = proyectar(canal, buffer.getLong(), 8L * filas).asDoubleBuffer();
+				long posicionAusentes = buffer.getLong();
+				if (posicionAusentes != 0)
+					ausentes[j] = proyectar(canal, posicionAusentes, 8L * palabras(filas)).asLongBuffer();
+			}
+			long posicionPesos = buffer.getLong();
+			if (posicionPesos != 0)
+				pesos = proyectar(canal, posicionPesos, 8L * filas).asDoubleBuffer();
+
+			cabecera = new Instances(relacion, atributos, 0);
+			cabecera.setClassIndex(indiceClase);
+		}
+	}
+
+	/**
+	 * Carga un ARFF o CSV usando su cache, que se crea (o se rehace si el
+	 * origen ha cambiado) junto al fichero con la extension EXTENSION. Los CSV
+	 * se leen con LectorCSV y el resto de formatos con DataSource. Un fichero
+	 * con la extension EXTENSION se abre directamente como cache.
+	 */
+	public static Instances cargar(File origen) throws Exception {
+		if (esCache(origen))
+			return new CacheColumnar(origen).toInstances();
+		CacheColumnar columnar = abrirValida(origen);
+		if (columnar != null)
+			return columnar.toInstances();
+		Instances datos = leerOrigen(origen);
+		escribir(datos, new File(origen.getPath() + EXTENSION), origen);
+		return datos;
+	}
+
+	/**
+	 * Como cargar, pero devuelve la cache abierta en lugar de copiar los datos
+	 * en un Instances.
+	 */
+	public static CacheColumnar abrir(File origen) throws Exception {
+		if (esCache(origen))
+			return new CacheColumnar(origen);
+		CacheColumnar columnar = abrirValida(origen);
+		if (columnar != null)
+			return columnar;
+		File cache = new File(origen.getPath() + EXTENSION);
+		escribir(leerOrigen(origen), cache, origen);
+		return new CacheColumnar(cache);
+	}
+
+	/** true si el fichero es una cache, por su extension */
+	private static boolean esCache(File fichero) {
+		return fichero.getName().endsWith(EXTENSION);
+	}
+
+	/** La cache del fichero si existe y esta al dia, o null */
+	private static CacheColumnar abrirValida(File origen) {
+		File cache = new File(origen.getPath() + EXTENSION);
+		if (!cache.exists())
+			return null;
+		try {
+			CacheColumnar columnar = new CacheColumnar(cache);
+			if (columnar.tamanoOrigen == origen.length() && columnar.fechaOrigen == origen.lastModified())
+				return columnar;
+		} catch (IOException e) {
+			// Cache corrupta o de otra version: se vuelve a crear
+		}
+		return null;
+	}
+
+	private static Instances leerOrigen(File origen) throws Exception {
+		return origen.getName().toLowerCase().endsWith(".csv") ? LectorCSV.leerInstances(origen)
+				: new DataSource(origen.getPath()).getDataSet();
+	}
+
+	/**
+	 * Escribe un conjunto de datos en formato columnar.
+	 *
+	 * @param datos
+	 *            las instancias; no se admiten atributos relacionales
+	 * @param salida
+	 *            fichero de la cache
+	 * @param origen
+	 *            fichero del que proceden los datos, para detectar cambios, o
+	 *            null
+	 */
+	public static void escribir(Instances datos, File salida, File origen) throws IOException {
+		int n = datos.numInstances();
+		int numAtributos = datos.numAttributes();
+
+		// 1. CABECERA: las posiciones de las columnas se rellenan al final
+		int posiciones[] = new int[numAtributos];
+		ByteBuffer cabecera = cabecera(datos, n, origen, posiciones);
+		boolean conPesos = false;
+		for (int i = 0; i < n && !conPesos; i++)
+			conPesos = datos.instance(i).weight() != 1.0;
+		int posicionPesos = cabecera.position() - 8;
+
+		// 2. COLUMNAS Y MAPAS DE AUSENTES
+		try (FileChannel canal = FileChannel.open(salida.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long posicion = alinear(cabecera.position());
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			for (int j = 0; j < numAtributos; j++) {
+				cabecera.putLong(posiciones[j], posicion);
+				boolean hayAusentes = false;
+				for (int i = 0; i < n; i++) {
+					double valor = datos.instance(i).value(j);
+					hayAusentes |= Instance.isMissingValue(valor);
+					if (!buffer.hasRemaining())
+						posicion += vaciar(buffer, canal, posicion);
+					buffer.putDouble(valor);
+				}
+				posicion += vaciar(buffer, canal, posicion);
+				if (!hayAusentes)
+					continue;
+
+				cabecera.putLong(posiciones[j] + 8, posicion);
+				for (int w = 0; w < palabras(n); w++) {
+					long palabra = 0;
+					for (int i = w * 64; i < Math.min(n, w * 64 + 64); i++)
+						if (datos.instance(i).isMissing(j))
+							palabra |= 1L << (i & 63);
+					if (!buffer.hasRemaining())
+						posicion += vaciar(buffer, canal, posicion);
+					buffer.putLong(palabra);
+				}
+				posicion += vaciar(buffer, canal, posicion);
+			}
+			if (conPesos) {
+				cabecera.putLong(posicionPesos, posicion);
+				for (int i = 0; i < n; i++) {
+					if (!buffer.hasRemaining())
+						posicion += vaciar(buffer, canal, posicion);
+					buffer.putDouble(datos.instance(i).weight());
+				}
+				vaciar(buffer, canal, posicion);
+			}
+
+			// 3. CABECERA CON LAS POSICIONES DEFINITIVAS
+			cabecera.flip();
+			posicion = 0;
+			while (cabecera.hasRemaining())
+				posicion += canal.write(cabecera, posicion);
+		}
+	}
+
+	/**
+	 * Escribe en formato columnar n filas leidas de una fuente, con memoria
+	 * constante: las columnas se rellenan a la vez, cada una con su buffer y
+	 * en su posicion del fichero. Las filas no pueden tener ausentes y todas
+	 * pesan 1.
+	 *
+	 * @param estructura
+	 *            cabecera de los datos, sin instancias
+	 * @param filas
+	 *            fuente de las n filas
+	 * @param salida
+	 *            fichero de la cache
+	 */
+	public static void escribir(Instances estructura, long n, Filas filas, File salida) throws IOException {
+		if (8 * n > Integer.MAX_VALUE)
+			throw new IOException("Demasiadas filas para una cache columnar: " + n);
+		int numAtributos = estructura.numAttributes();
+		int posiciones[] = new int[numAtributos];
+		ByteBuffer cabecera = cabecera(estructura, n, null, posiciones);
+
+		try (FileChannel canal = FileChannel.open(salida.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long columnas[] = new long[numAtributos];
+			ByteBuffer buffers[] = new ByteBuffer[numAtributos];
+			for (int j = 0; j < numAtributos; j++) {
+				columnas[j] = alinear(cabecera.position()) + 8 * n * j;
+				cabecera.putLong(posiciones[j], columnas[j]);
+				buffers[j] = ByteBuffer.allocateDirect(1 << 13).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			double x[] = new double[numAtributos];
+			for (long i = 0; i < n; i++) {
+				filas.siguiente(x);
+				for (int j = 0; j < numAtributos; j++) {
+					if (Instance.isMissingValue(x[j]))
+						throw new IOException("Valor ausente en la fila " + i + " de una cache escrita en flujo");
+					if (!buffers[j].hasRemaining())
+						columnas[j] += vaciar(buffers[j], canal, columnas[j]);
+					buffers[j].putDouble(x[j]);
+				}
+			}
+			for (int j = 0; j < numAtributos; j++)
+				vaciar(buffers[j], canal, columnas[j]);
+
+			cabecera.flip();
+			long posicion = 0;
+			while (cabecera.hasRemaining())
+				posicion += canal.write(cabecera, posicion);
+		}
+	}
+
+	/**
+	 * Parte fija de la cabecera hasta la posicion de la columna de pesos, con
+	 * las posiciones de las columnas y de los mapas de ausentes a 0.
+	 *
+	 * @param posiciones
+	 *            donde se deja, por atributo, el lugar del buffer en el que va
+	 *            la posicion de su columna (la de su mapa de ausentes va 8
+	 *            bytes despues)
+	 */
+	private static ByteBuffer cabecera(Instances datos, long n, File origen, int posiciones[]) throws IOException {
+		int numAtributos = datos.numAttributes();
+		ByteBuffer cabecera = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+		cabecera = asegurar(cabecera, 36).putInt(MAGIA).putInt(VERSION);
+		cabecera.putLong(origen == null ? -1 : origen.length()).putLong(origen == null ? -1 : origen.lastModified());
+		cabecera.putLong(n).putInt(numAtributos).putInt(datos.classIndex());
+		cabecera = escribirTexto(cabecera, datos.relationName());
+		for (int j = 0; j < numAtributos; j++) {
+			Attribute atributo = datos.attribute(j);
+			cabecera = asegurar(cabecera, 4).putInt(atributo.type());
+			cabecera = escribirTexto(cabecera, atributo.name());
+			switch (atributo.type()) {
+			case Attribute.NUMERIC:
+				break;
+			case Attribute.DATE:
+				cabecera = escribirTexto(cabecera, atributo.getDateFormat());
+				break;
+			case Attribute.NOMINAL:
+			case Attribute.STRING:
+				cabecera = asegurar(cabecera, 4).putInt(atributo.numValues());
+				for (int v = 0; v < atributo.numValues(); v++)
+					cabecera = escribirTexto(cabecera, atributo.value(v));
+				break;
+			default:
+				throw new IOException("Tipo de atributo no soportado en la cache: " + atributo.name());
+			}
+			cabecera = asegurar(cabecera, 16);
+			posiciones[j] = cabecera.position();
+			cabecera.putLong(0).putLong(0);
+		}
+		return asegurar(cabecera, 8).putLong(0);
+	}
+
+	public int numFilas() {
+		return filas;
+	}
+
+	public int numAtributos() {
+		return columnas.length;
+	}
+
+	/** Cabecera con los atributos, la relacion y el indice de la clase, sin instancias */
+	public Instances cabecera() {
+		return new Instances(cabecera, 0);
+	}
+
+	/**
+	 * Columna del atributo j proyectada en memoria, sin copiar. Cada llamada
+	 * devuelve una vista nueva, con su propia posicion, que se puede usar
+	 * desde un hilo distinto.
+	 */
+	public DoubleBuffer columna(int j) {
+		return columnas[j].duplicate();
+	}
+
+	public double valor(int i, int j) {
+		return columnas[j].get(i);
+	}
+
+	/** true si el atributo j no tiene valores ausentes */
+	public boolean completa(int j) {
+		return ausentes[j] == null;
+	}
+
+	/** true si el valor del atributo j en la fila i es ausente */
+	public boolean ausente(int i, int j) {
+		return ausentes[j] != null && (ausentes[j].get(i >>> 6) & (1L << (i & 63))) != 0;
+	}
+
+	public double peso(int i) {
+		return pesos == null ? 1.0 : pesos.get(i);
+	}
+
+	/** Copia los datos en un Instances */
+	public Instances toInstances() {
+		int numAtributos = columnas.length;
+		Instances datos = new Instances(cabecera, filas);
+		double columna[][] = new double[numAtributos][];
+		for (int j = 0; j < numAtributos; j++) {
+			columna[j] = new double[filas];
+			columnas[j].duplicate().get(columna[j]);
+			if (ausentes[j] != null)
+				for (int i = 0; i < filas; i++)
+					if (ausente(i, j))
+						columna[j][i] = Instance.missingValue();
+		}
+		for (int i = 0; i < filas; i++) {
+			double valores[] = new double[numAtributos];
+			for (int j = 0; j < numAtributos; j++)
+				valores[j] = columna[j][i];
+			datos.add(new Instance(peso(i), valores));
+		}
+		return datos;
+	}
+
+	/** Numero de long del mapa de ausentes de n filas */
+	private static int palabras(int n) {
+		return (n + 63) >>> 6;
+	}
+
+	private static long alinear(long posicion) {
+		return (posicion + 7) & ~7L;
+	}
+
+	private static ByteBuffer proyectar(FileChannel canal, long posicion, long longitud) throws IOException {
+		return canal.map(FileChannel.MapMode.READ_ONLY, posicion, longitud).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Escribe el buffer en la posicion indicada y devuelve el numero de bytes */
+	private static long vaciar(ByteBuffer buffer, FileChannel canal, long posicion) throws IOException {
+		buffer.flip();
+		long escritos = 0;
+		while (buffer.hasRemaining())
+			escritos += canal.write(buffer, posicion + escritos);
+		buffer.clear();
+		return escritos;
+	}
+
+	/** Devuelve un buffer con al menos bytes libres, copiando si hace falta */
+	private static ByteBuffer asegurar(ByteBuffer buffer, int bytes) {
+		if (buffer.remaining() >= bytes)
+			return buffer;
+		ByteBuffer mayor = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		return mayor.put(buffer);
+	}
+
+	private static ByteBuffer escribirTexto(ByteBuffer buffer, String texto) {
+		byte bytes[] = texto.getBytes(StandardCharsets.UTF_8);
+		return asegurar(buffer, 4 + bytes.length).putInt(bytes.length).put(bytes);
+	}
+
+	private static String leerTexto(ByteBuffer buffer) {
+		byte bytes[] = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Uso: java CacheColumnar fichero... Crea o actualiza la cache de cada
+	 * fichero ARFF o CSV.
+	 */
+	public static void main(String[] args) throws Exception {
+		for (String nombre : args) {
+			long inicio = System.nanoTime();
+			Instances datos = cargar(new File(nombre));
+			System.out.printf("%s%s: %d filas, %d atributos (%.1f ms)%n", nombre, EXTENSION, datos.numInstances(),
+					datos.numAttributes(), (System.nanoTime() - inicio) / 1e6);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.clusterers.AbstractClusterer;
+import weka.clusterers.Clusterer;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Cache LRU acotada de distribuciones, con la instancia como clave: los
+ * valores de todos sus atributos salvo la clase, comparados exactamente (el
+ * hash solo elige la posicion). Pensada para puntuaciones que se repiten,
+ * como reintentos o entidades que se vuelven a puntuar.
+ *
+ * La cache se divide en SEGMENTOS mapas LinkedHashMap en orden de acceso,
+ * cada uno con su cerrojo y con capacidad / SEGMENTOS entradas; al llenarse un
+ * segmento sale su entrada usada hace mas tiempo. invalidar() la vacia y
+ * descarta los resultados que se esten calculando en ese momento.
+ *
+ * Clasificador y Agrupador envuelven un clasificador (FuzzyKNN, FuzzyNP) o un
+ * agrupador (FuzzyCMeans) e invalidan la cache al reentrenar o actualizar el
+ * modelo: antes, para que los aciertos no devuelvan el modelo anterior
+ * mientras tanto, y al terminar sin soltar el modelo, para descartar los
+ * fallos que se calcularon con el modelo anterior. Los fallos llaman al modelo de uno en uno, porque los modelos no
+ * se pueden usar desde varios hilos a la vez (LinearNNESearch guarda las
+ * ultimas distancias); los aciertos no lo bloquean.
+ */
+public class CacheResultados {
+
+	/** Numero de segmentos (potencia de 2) */
+	protected static final int SEGMENTOS = 16;
+
+	/** Calculo de la distribucion de una instancia cuando no esta en la cache */
+	public interface Calculo {
+		double[] calcular(Instance instancia) throws Exception;
+	}
+
+	/** Valores de la instancia sin la clase */
+	private static final class Clave {
+		final double valores[];
+		final int hash;
+
+		Clave(double valores[]) {
+			this.valores = valores;
+			this.hash = Arrays.hashCode(valores);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object otro) {
+			return otro instanceof Clave && Arrays.equals(valores, ((Clave) otro).valores);
+		}
+	}
+
+	private final List<Map<Clave, double[]>> segmentos;
+	/** Se incrementa al invalidar; los calculos de una generacion anterior no se guardan */
+	private volatile long generacion;
+	private final LongAdder aciertos = new LongAdder();
+	private final LongAdder fallos = new LongAdder();
+
+	/**
+	 * @param capacidad
+	 *            numero maximo de distribuciones guardadas
+	 */
+	public CacheResultados(int capacidad) {
+		int porSegmento = Math.max(1, (capacidad + SEGMENTOS - 1) / SEGMENTOS);
+		segmentos = new ArrayList<>(SEGMENTOS);
+		for (int s = 0; s < SEGMENTOS; s++)
+			segmentos.add(new LinkedHashMap<Clave, double[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Clave, double[]> mayor) {
+					return size() > porSegmento;
+				}
+			});
+	}
+
+	/**
+	 * Distribucion de la instancia, de la cache o calculada y guardada.
+	 * Devuelve siempre una copia.
+	 */
+	public double[] obtener(Instance instancia, Calculo calculo) throws Exception {
+		Clave clave = clave(instancia);
+		Map<Clave, double[]> segmento = segmento(clave);
+		double resultado[];
+		synchronized (segmento) {
+			resultado = segmento.get(clave);
+		}
+		if (resultado != null) {
+			aciertos.increment();
+			return resultado.clone();
+		}
+		fallos.increment();
+		long inicio = generacion;
+		resultado = calculo.calcular(instancia);
+		synchronized (segmento) {
+			if (generacion == inicio)
+				segmento.put(clave, resultado.clone());
+		}
+		return resultado;
+	}
+
+	/** Vacia la cache; se llama al cambiar el modelo */
+	public void invalidar() {
+		generacion++;
+		for (Map<Clave, double[]> segmento : segmentos)
+			synchronized (segmento) {
+				segmento.clear();
+			}
+	}
+
+	public long getAciertos() {
+		return aciertos.sum();
+	}
+
+	public long getFallos() {
+		return fallos.sum();
+	}
+
+	/** Fraccion de consultas servidas desde la cache */
+	public double getTasaAciertos() {
+		long total = getAciertos() + getFallos();
+		return total == 0 ? 0 : getAciertos() / (double) total;
+	}
+
+	/** Numero de distribuciones guardadas */
+	public int tamano() {
+		int total = 0;
+		for (Map<Clave, double[]> segmento : segmentos)
+			synchronized (segmento) {
+				total += segmento.size();
+			}
+		return total;
+	}
+
+	private static Clave clave(Instance instancia) {
+		double valores[] = instancia.toDoubleArray();
+		if (instancia.classIndex() >= 0)
+			valores[instancia.classIndex()] = Instance.missingValue();
+		return new Clave(valores);
+	}
+
+	private Map<Clave, double[]> segmento(Clave clave) {
+		int h = clave.hash ^ (clave.hash >>> 16);
+		return segmentos.get(h & (SEGMENTOS - 1));
+	}
+
+	/**
+	 * Clasificador con cache de distribuciones. La clase predicha es la de
+	 * mayor pertenencia, como en FuzzyKNN y FuzzyNP.
+	 */
+	public static class Clasificador extends Classifier implements UpdateableClassifier {
+
+		private static final long serialVersionUID = 1L;
+
+		protected Classifier clasificador;
+		protected int capacidad;
+		protected transient CacheResultados cache;
+
+		/**
+		 * @param capacidad
+		 *            numero maximo de distribuciones guardadas
+		 */
+		public Clasificador(Classifier clasificador, int capacidad) {
+			this.clasificador = clasificador;
+			this.capacidad = capacidad;
+		}
+
+		@Override
+		public void buildClassifier(Instances datos) throws Exception {
+			getCache().invalidar();
+			synchronized (clasificador) {
+				clasificador.buildClassifier(datos);
+				getCache().invalidar();
+			}
+		}
+
+		@Override
+		public void updateClassifier(Instance instancia) throws Exception {
+			if (!(clasificador instanceof UpdateableClassifier))
+				throw new UnsupportedOperationException(
+						clasificador.getClass().getName() + " no es actualizable");
+			synchronized (clasificador) {
+				((UpdateableClassifier) clasificador).updateClassifier(instancia);
+				getCache().invalidar();
+			}
+		}
+
+		@Override
+		public double[] distributionForInstance(Instance instancia) throws Exception {
+			return getCache().obtener(instancia, x -> {
+				synchronized (clasificador) {
+					return clasificador.distributionForInstance(x);
+				}
+			});
+		}
+
+		@Override
+		public double classifyInstance(Instance instancia) throws Exception {
+			if (!instancia.classAttribute().isNominal())
+				synchronized (clasificador) {
+					return clasificador.classifyInstance(instancia);
+				}
+			return Utils.maxIndex(distributionForInstance(instancia));
+		}
+
+		public Classifier getClasificador() {
+			return clasificador;
+		}
+
+		public CacheResultados getCache() {
+			if (cache == null)
+				synchronized (this) {
+					if (cache == null)
+						cache = new CacheResultados(capacidad);
+				}
+			return cache;
+		}
+	}
+
+	/** Agrupador con cache de distribuciones; el cluster es el de mayor pertenencia */
+	public static class Agrupador extends AbstractClusterer {
+
+		private static final long serialVersionUID = 1L;
+
+		protected Clusterer agrupador;
+		protected int capacidad;
+		protected transient CacheResultados cache;
+
+		/**
+		 * @param capacidad
+		 *            numero maximo de distribuciones guardadas
+		 */
+		public Agrupador(Clusterer agrupador, int capacidad) {
+			this.agrupador = agrupador;
+			this.capacidad = capacidad;
+		}
+
+		@Override
+		public void buildClusterer(Instances datos) throws Exception {
+			getCache().invalidar();
+			synchronized (agrupador) {
+				agrupador.buildClusterer(datos);
+				getCache().invalidar();
+			}
+		}
+
+		@Override
+		public double[] distributionForInstance(Instance instancia) throws Exception {
+			return getCache().obtener(instancia, x -> {
+				synchronized (agrupador) {
+					return agrupador.distributionForInstance(x);
+				}
+			});
+		}
+
+		@Override
+		public int clusterInstance(Instance instancia) throws Exception {
+			return Utils.maxIndex(distributionForInstance(instancia));
+		}
+
+		@Override
+		public int numberOfClusters() throws Exception {
+			return agrupador.numberOfClusters();
+		}
+
+		public Clusterer getAgrupador() {
+			return agrupador;
+		}
+
+		public CacheResultados getCache() {
+			if (cache == null)
+				synchronized (this) {
+					if (cache == null)
+						cache = new CacheResultados(capacidad);
+				}
+			return cache;
+		}
+	}
+}
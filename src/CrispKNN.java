@@ -1,4 +1,4 @@
-
+import java.io.File;
 
 import weka.classifiers.*;
 import weka.core.Instance;
@@ -12,6 +12,9 @@ import weka.core.neighboursearch.LinearNNSearch;
  * In Proceedings of the fifth Berkeley symposium on mathematical statistics 
  * and probability (Vol. 1, No. 14, pp. 281-297).
  * 
+ * Con setFueraDelHeap el conjunto de referencia se guarda en un
+ * AlmacenReferencias, fuera del heap, y la busqueda se crea una sola vez.
+ * 
  * @author Eva Gibaja
  */
 public class CrispKNN extends Classifier {
@@ -19,23 +22,53 @@ public class CrispKNN extends Classifier {
 	private static final long serialVersionUID = -7315265026073286088L;
 	/** Instancias */
 	protected Instances dataset;
-	/** Tamao del vecindario */
+	/** Tamaño del vecindario */
 	protected int k;
+	/** Si es true el conjunto de referencia se guarda fuera del heap */
+	protected boolean fueraDelHeap = false;
+	/** Directorio de los ficheros de soporte fuera del heap, o null para memoria directa */
+	protected File directorioReferencias;
+	/** Busqueda sobre el conjunto fuera del heap */
+	protected LinearNNESearch busqueda;
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param k
-	 *            nmero de vecinos
+	 *            número de vecinos
 	 */
 	public CrispKNN(int k) {
 		this.k = k;
 	}
 
+	/** Guarda el conjunto de referencia fuera del heap (en memoria directa) */
+	public void setFueraDelHeap(boolean fueraDelHeap) {
+		this.fueraDelHeap = fueraDelHeap;
+	}
+
+	/**
+	 * Guarda el conjunto de referencia fuera del heap en un fichero temporal
+	 * de este directorio, proyectado en memoria
+	 */
+	public void setDirectorioReferencias(File directorio) {
+		this.directorioReferencias = directorio;
+		if (directorio != null)
+			fueraDelHeap = true;
+	}
+
 	@Override
 	public void buildClassifier(Instances instancias) throws Exception {
+		if (fueraDelHeap) {
+			//Solo la cabecera queda en el heap
+			dataset = new Instances(instancias, 0);
+			busqueda = new LinearNNESearch(
+					AlmacenReferencias.copiar(instancias, AlmacenReferencias.ficheroTemporal(directorioReferencias)));
+			busqueda.setSkipIdentical(true);
+			return;
+		}
 		//Crea una copia del dataset
 		dataset = new Instances(instancias);
+		busqueda = null;
 	}
 
 	@Override
@@ -52,7 +85,7 @@ public class CrispKNN extends Classifier {
         int count[] = contarVecinos(instancia);
 		
 		predictions[Utils.maxIndex(count)] = 1;
-		// RELLENAR: Actualizar la funcin para devolver la distribucion de probabilidad
+		// RELLENAR: Actualizar la función para devolver la distribucion de probabilidad
 		// teniendo en cuenta cuantos vecinos votan a cada clase
 		/* 
 		int nVotos = Utils.sum(count);
@@ -71,12 +104,19 @@ public class CrispKNN extends Classifier {
 	 */
 	private int[] contarVecinos(Instance instancia) throws Exception {
 
+		if (busqueda != null) {
+			int count[] = new int[dataset.numClasses()];
+			for (int vecino : busqueda.kNearestNeighboursIndices(instancia, k))
+				count[(int) busqueda.almacen.clase(vecino)]++;
+			return (count);
+		}
+
 		// RELLENAR: Busqueda de los k vecinos mas cercanos
 		LinearNNSearch S = new LinearNNSearch(dataset);
 		S.setSkipIdentical(true);
 		Instances kNN = S.kNearestNeighbours(instancia, k);
 
-		// Registra en un vector cuntos vecinos votan a cada clase
+		// Registra en un vector cuántos vecinos votan a cada clase
 		int count[] = new int[dataset.numClasses()];		
 		for (int i = 0; i < kNN.numInstances(); i++) {
 			int clase = (int) kNN.instance(i).classValue();
@@ -0,0 +1,437 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.clusterers.ClusterEvaluation;
+import weka.clusterers.Clusterer;
+import weka.clusterers.SimpleKMeans;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+
+/**
+ * Ejecuta una rejilla de experimentos conjuntos de datos x algoritmos x
+ * parametros descrita en un fichero, repartiendo las configuraciones entre
+ * varios hilos, y escribe un informe en CSV y otro en JSON.
+ *
+ * Formato del fichero (una clave por linea, # para comentarios):
+ *
+ * <pre>
+ * datos = data/iris.arff, data/diabetes.arff
+ * algoritmo = FuzzyKNN k=3,5 m=1.5,2 ini=1,2
+ * algoritmo = FuzzyCMeans c=3 m=1.75 e=0.001
+ * folds = 10
+ * semilla = 1
+ * </pre>
+ *
+ * Cada linea algoritmo genera todas las combinaciones de sus valores. Los
+ * algoritmos son FuzzyKNN (k, m, ini), CrispKNN (k), FuzzyNP (m),
+ * MasProbable, Foo, FuzzyCMeans (c, m, e, iteraciones) y SimpleKMeans (c).
+ * Cualquier algoritmo admite ademas semilla, que sustituye a la semilla global
+ * para sus folds y su inicializacion. Las rutas relativas se resuelven desde
+ * el directorio del fichero de rejilla.
+ *
+ * La clase de un conjunto de datos es su ultimo atributo si es nominal; si
+ * no, el conjunto no tiene clase y solo se le aplican los algoritmos de
+ * clustering, sin precision.
+ *
+ * Los clasificadores se evaluan con validacion cruzada, igual que
+ * crossValidateModel. Los algoritmos de clustering se entrenan sin la clase y
+ * se evaluan con la asignacion de clases a clusters de ClusterEvaluation. En
+ * ambos casos se mide el tiempo de entrenamiento (medio por fold) y la
+ * latencia de cada consulta, de la que se informa del rendimiento y los
+ * percentiles 50, 90 y 99. Con varios hilos las configuraciones compiten por
+ * los procesadores; para medir latencias finas conviene usar -hilos 1.
+ *
+ * Uso: java EjecutarExperimentos -rejilla experimentos.txt [-salida
+ * resultados] [-hilos n]
+ */
+public class EjecutarExperimentos {
+
+	/** Una combinacion de conjunto de datos, algoritmo y parametros */
+	protected static class Configuracion {
+		String datos;
+		String algoritmo;
+		Map<String, String> parametros = new LinkedHashMap<>();
+
+		String parametros() {
+			StringBuilder texto = new StringBuilder();
+			for (Map.Entry<String, String> p : parametros.entrySet())
+				texto.append(texto.length() == 0 ? "" : " ").append(p.getKey()).append('=').append(p.getValue());
+			return texto.toString();
+		}
+
+		double parametro(String nombre, double porDefecto) {
+			String valor = parametros.get(nombre);
+			return valor == null ? porDefecto : Double.parseDouble(valor);
+		}
+	}
+
+	/** Medidas de una configuracion */
+	protected static class Resultado {
+		Configuracion configuracion;
+		String tipo;
+		int instancias;
+		double precision = Double.NaN;
+		double entrenamientoMs;
+		double consultasPorSegundo;
+		/** Latencias de las consultas en nanosegundos, ordenadas */
+		long latencias[] = new long[0];
+		String error;
+
+		double percentil(double p) {
+			if (latencias.length == 0)
+				return Double.NaN;
+			int i = (int) Math.ceil(p / 100.0 * latencias.length) - 1;
+			return latencias[Math.max(0, Math.min(i, latencias.length - 1))] / 1000.0;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String s = Utils.getOption("rejilla", args);
+		File rejilla = new File(s.length() == 0 ? "experimentos.txt" : s);
+		s = Utils.getOption("salida", args);
+		String salida = s.length() == 0 ? "resultados" : s;
+		s = Utils.getOption("hilos", args);
+		int numHilos = s.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(s);
+
+		// 1. LEE LA REJILLA
+		List<String> datos = new ArrayList<>();
+		List<Configuracion> algoritmos = new ArrayList<>();
+		int folds = 10;
+		long semilla = 1;
+		try (BufferedReader lector = new BufferedReader(new FileReader(rejilla))) {
+			String linea;
+			while ((linea = lector.readLine()) != null) {
+				linea = linea.replaceFirst("#.*", "").trim();
+				if (linea.isEmpty())
+					continue;
+				int igual = linea.indexOf('=');
+				if (igual < 0)
+					throw new IOException("Linea sin clave en " + rejilla + ": " + linea);
+				String clave = linea.substring(0, igual).trim(), valor = linea.substring(igual + 1).trim();
+				switch (clave) {
+				case "datos":
+					for (String fichero : valor.split("\\s*,\\s*"))
+						datos.add(fichero);
+					break;
+				case "algoritmo":
+					algoritmos.addAll(expandir(valor));
+					break;
+				case "folds":
+					folds = Integer.parseInt(valor);
+					break;
+				case "semilla":
+					semilla = Long.parseLong(valor);
+					break;
+				default:
+					throw new IOException("Clave desconocida en " + rejilla + ": " + clave);
+				}
+			}
+		}
+
+		// 2. CARGA LOS DATOS UNA VEZ (desde su cache columnar)
+		File base = rejilla.getAbsoluteFile().getParentFile();
+		Map<String, Instances> conjuntos = new HashMap<>();
+		for (String fichero : datos) {
+			File f = new File(fichero);
+			Instances instancias = CacheColumnar.cargar(f.isAbsolute() ? f : new File(base, fichero));
+			if (instancias.attribute(instancias.numAttributes() - 1).isNominal())
+				instancias.setClassIndex(instancias.numAttributes() - 1);
+			conjuntos.put(fichero, instancias);
+		}
+
+		// 3. EJECUTA LA REJILLA EN PARALELO
+		List<Configuracion> configuraciones = new ArrayList<>();
+		for (String fichero : datos)
+			for (Configuracion algoritmo : algoritmos) {
+				Configuracion configuracion = new Configuracion();
+				configuracion.datos = fichero;
+				configuracion.algoritmo = algoritmo.algoritmo;
+				configuracion.parametros = algoritmo.parametros;
+				configuraciones.add(configuracion);
+			}
+		ExecutorService hilos = Executors.newFixedThreadPool(numHilos);
+		List<Future<Resultado>> pendientes = new ArrayList<>();
+		int numFolds = folds;
+		long semillaFinal = semilla;
+		for (Configuracion configuracion : configuraciones)
+			pendientes.add(hilos.submit(() -> {
+				Resultado resultado = ejecutar(configuracion, conjuntos.get(configuracion.datos), numFolds,
+						semillaFinal);
+				System.err.printf("%s %s %s: %s%n", configuracion.datos, configuracion.algoritmo,
+						configuracion.parametros(), resultado.error == null ? "ok" : resultado.error);
+				return resultado;
+			}));
+		hilos.shutdown();
+		List<Resultado> resultados = new ArrayList<>();
+		for (Future<Resultado> pendiente : pendientes)
+			resultados.add(pendiente.get());
+
+		// 4. INFORMES
+		escribirCSV(resultados, new File(salida + ".csv"));
+		escribirJSON(resultados, new File(salida + ".json"));
+		System.out.println(resultados.size() + " configuraciones; informes en " + salida + ".csv y " + salida + ".json");
+	}
+
+	/** Expande "Algoritmo p=a,b q=c" en todas las combinaciones de parametros */
+	protected static List<Configuracion> expandir(String linea) {
+		String partes[] = linea.split("\\s+");
+		List<Configuracion> combinaciones = new ArrayList<>();
+		Configuracion inicial = new Configuracion();
+		inicial.algoritmo = partes[0];
+		combinaciones.add(inicial);
+		for (int i = 1; i < partes.length; i++) {
+			String nombre = partes[i].substring(0, partes[i].indexOf('='));
+			String valores[] = partes[i].substring(partes[i].indexOf('=') + 1).split(",");
+			List<Configuracion> siguientes = new ArrayList<>();
+			for (Configuracion anterior : combinaciones)
+				for (String valor : valores) {
+					Configuracion nueva = new Configuracion();
+					nueva.algoritmo = anterior.algoritmo;
+					nueva.parametros.putAll(anterior.parametros);
+					nueva.parametros.put(nombre, valor);
+					siguientes.add(nueva);
+				}
+			combinaciones = siguientes;
+		}
+		return combinaciones;
+	}
+
+	/** Ejecuta una configuracion; los errores quedan anotados en el resultado */
+	protected static Resultado ejecutar(Configuracion configuracion, Instances datos, int folds, long semilla) {
+		Resultado resultado = new Resultado();
+		resultado.configuracion = configuracion;
+		resultado.instancias = datos.numInstances();
+		try {
+			String propia = configuracion.parametros.get("semilla");
+			if (propia != null)
+				semilla = Long.parseLong(propia);
+			Object algoritmo = crear(configuracion, semilla);
+			if (algoritmo instanceof Classifier) {
+				resultado.tipo = "clasificacion";
+				if (datos.classIndex() < 0)
+					throw new Exception("el conjunto de datos no tiene clase nominal");
+				validarClasificador((Classifier) algoritmo, datos, folds, semilla, resultado);
+			} else {
+				resultado.tipo = "clustering";
+				evaluarClusterer((Clusterer) algoritmo, datos, resultado);
+			}
+		} catch (Exception e) {
+			resultado.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+		return resultado;
+	}
+
+	/** Crea el algoritmo de la configuracion */
+	protected static Object crear(Configuracion configuracion, long semilla) throws Exception {
+		switch (configuracion.algoritmo) {
+		case "FuzzyKNN":
+			return new FuzzyKNN((int) configuracion.parametro("k", 3), configuracion.parametro("m", 2),
+					(int) configuracion.parametro("ini", 1));
+		case "CrispKNN":
+			return new CrispKNN((int) configuracion.parametro("k", 3));
+		case "FuzzyNP":
+			return new FuzzyNP(configuracion.parametro("m", 2));
+		case "MasProbable":
+			return new MasProbable();
+		case "Foo":
+			return new Foo();
+		case "FuzzyCMeans":
+			FuzzyCMeans fcm = new FuzzyCMeans(configuracion.parametro("m", 2), (int) configuracion.parametro("c", 3),
+					configuracion.parametro("e", 0.001));
+			fcm.setSeed((int) semilla);
+			fcm.maxIteraciones = (int) configuracion.parametro("iteraciones", fcm.maxIteraciones);
+			return fcm;
+		case "SimpleKMeans":
+			SimpleKMeans kmeans = new SimpleKMeans();
+			kmeans.setSeed((int) semilla);
+			kmeans.setNumClusters((int) configuracion.parametro("c", 3));
+			return kmeans;
+		default:
+			throw new IllegalArgumentException("Algoritmo desconocido: " + configuracion.algoritmo);
+		}
+	}
+
+	/**
+	 * Validacion cruzada con los mismos folds y el mismo registro de
+	 * predicciones que Evaluation.crossValidateModel, midiendo cada
+	 * entrenamiento y cada consulta.
+	 */
+	private static void validarClasificador(Classifier clasificador, Instances datos, int folds, long semilla,
+			Resultado resultado) throws Exception {
+		Evaluation evaluacion = new Evaluation(datos);
+		Random random = new Random(semilla);
+		Instances barajados = new Instances(datos);
+		barajados.randomize(random);
+		barajados.stratify(folds);
+
+		long latencias[] = new long[datos.numInstances()];
+		int consultas = 0;
+		long entrenamiento = 0, consulta = 0;
+		for (int i = 0; i < folds; i++) {
+			Instances train = barajados.trainCV(folds, i, random);
+			Instances test = barajados.testCV(folds, i);
+			evaluacion.setPriors(train);
+			Classifier copia = Classifier.makeCopy(clasificador);
+			long inicio = System.nanoTime();
+			copia.buildClassifier(train);
+			entrenamiento += System.nanoTime() - inicio;
+			for (int j = 0; j < test.numInstances(); j++) {
+				Instance sinClase = (Instance) test.instance(j).copy();
+				sinClase.setDataset(test);
+				sinClase.setClassMissing();
+				inicio = System.nanoTime();
+				double distribucion[] = copia.distributionForInstance(sinClase);
+				long latencia = System.nanoTime() - inicio;
+				latencias[consultas++] = latencia;
+				consulta += latencia;
+				evaluacion.evaluateModelOnceAndRecordPrediction(distribucion, test.instance(j));
+			}
+		}
+		resultado.precision = evaluacion.pctCorrect() / 100.0;
+		resultado.entrenamientoMs = entrenamiento / 1e6 / folds;
+		resultado.consultasPorSegundo = consultas / (consulta / 1e9);
+		resultado.latencias = Arrays.copyOf(latencias, consultas);
+		Arrays.sort(resultado.latencias);
+	}
+
+	/**
+	 * Entrena el algoritmo de clustering sin la clase, mide la latencia de
+	 * clusterInstance sobre cada instancia y, si hay clase, calcula la
+	 * precision con la asignacion de clases a clusters de ClusterEvaluation.
+	 */
+	private static void evaluarClusterer(Clusterer clusterer, Instances datos, Resultado resultado) throws Exception {
+		Instances sinClase = datos;
+		if (datos.classIndex() >= 0) {
+			Remove filtro = new Remove();
+			filtro.setAttributeIndices("" + (datos.classIndex() + 1));
+			filtro.setInputFormat(datos);
+			sinClase = Filter.useFilter(datos, filtro);
+		}
+		long inicio = System.nanoTime();
+		clusterer.buildClusterer(sinClase);
+		resultado.entrenamientoMs = (System.nanoTime() - inicio) / 1e6;
+
+		int n = sinClase.numInstances();
+		long latencias[] = new long[n];
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			inicio = System.nanoTime();
+			clusterer.clusterInstance(sinClase.instance(i));
+			latencias[i] = System.nanoTime() - inicio;
+			total += latencias[i];
+		}
+		resultado.consultasPorSegundo = n / (total / 1e9);
+		Arrays.sort(latencias);
+		resultado.latencias = latencias;
+
+		if (datos.classIndex() >= 0) {
+			ClusterEvaluation evaluacion = new ClusterEvaluation();
+			evaluacion.setClusterer(clusterer);
+			evaluacion.evaluateClusterer(new Instances(datos));
+			double asignaciones[] = evaluacion.getClusterAssignments();
+			int clases[] = evaluacion.getClassesToClusters();
+			int correctas = 0, conClase = 0;
+			for (int i = 0; i < n; i++) {
+				if (datos.instance(i).classIsMissing())
+					continue;
+				conClase++;
+				int cluster = (int) asignaciones[i];
+				if (cluster >= 0 && clases[cluster] == (int) datos.instance(i).classValue())
+					correctas++;
+			}
+			resultado.precision = (double) correctas / conClase;
+		}
+	}
+
+	private static final String COLUMNAS[] = { "datos", "algoritmo", "parametros", "tipo", "instancias", "precision",
+			"entrenamiento_ms", "consultas_por_s", "latencia_p50_us", "latencia_p90_us", "latencia_p99_us", "error" };
+
+	/** Valores de una fila del informe, en el orden de COLUMNAS */
+	private static Object[] fila(Resultado r) {
+		boolean ok = r.error == null;
+		return new Object[] { r.configuracion.datos, r.configuracion.algoritmo, r.configuracion.parametros(), r.tipo,
+				r.instancias, r.precision, ok ? r.entrenamientoMs : Double.NaN,
+				ok ? r.consultasPorSegundo : Double.NaN, r.percentil(50), r.percentil(90), r.percentil(99), r.error };
+	}
+
+	protected static void escribirCSV(List<Resultado> resultados, File fichero) throws IOException {
+		try (PrintWriter salida = new PrintWriter(fichero, "UTF-8")) {
+			salida.println(String.join(",", COLUMNAS));
+			for (Resultado resultado : resultados) {
+				Object valores[] = fila(resultado);
+				StringBuilder linea = new StringBuilder();
+				for (int j = 0; j < valores.length; j++) {
+					if (j > 0)
+						linea.append(',');
+					Object v = valores[j];
+					if (v instanceof Double)
+						linea.append(Double.isNaN((Double) v) ? "" : String.format(Locale.ROOT, "%.6g", v));
+					else if (v != null)
+						linea.append(escaparCSV(v.toString()));
+				}
+				salida.println(linea);
+			}
+		}
+	}
+
+	protected static void escribirJSON(List<Resultado> resultados, File fichero) throws IOException {
+		try (PrintWriter salida = new PrintWriter(fichero, "UTF-8")) {
+			salida.println("[");
+			for (int i = 0; i < resultados.size(); i++) {
+				Object valores[] = fila(resultados.get(i));
+				StringBuilder objeto = new StringBuilder("  {");
+				for (int j = 0; j < valores.length; j++) {
+					objeto.append(j == 0 ? "" : ", ").append('"').append(COLUMNAS[j]).append("\": ");
+					Object v = valores[j];
+					if (v == null || (v instanceof Double && (((Double) v).isNaN() || ((Double) v).isInfinite())))
+						objeto.append("null");
+					else if (v instanceof Number)
+						objeto.append(v);
+					else
+						objeto.append('"').append(escaparJSON(v.toString())).append('"');
+				}
+				salida.println(objeto.append(i < resultados.size() - 1 ? "}," : "}"));
+			}
+			salida.println("]");
+		}
+	}
+
+	/** Entrecomilla el campo si contiene comas, comillas o saltos de linea */
+	private static String escaparCSV(String texto) {
+		if (texto.indexOf(',') < 0 && texto.indexOf('"') < 0 && texto.indexOf('\n') < 0)
+			return texto;
+		return '"' + texto.replace("\"", "\"\"") + '"';
+	}
+
+	private static String escaparJSON(String texto) {
+		StringBuilder escapado = new StringBuilder();
+		for (char ch : texto.toCharArray()) {
+			if (ch == '"' || ch == '\\')
+				escapado.append('\\').append(ch);
+			else if (ch < 0x20)
+				escapado.append(String.format("\\u%04x", (int) ch));
+			else
+				escapado.append(ch);
+		}
+		return escapado.toString();
+	}
+}
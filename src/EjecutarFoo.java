@@ -14,14 +14,15 @@ public class EjecutarFoo {
 		   
 		    C= new Foo();
 		   
-		   //Cargamos el dataset en memoria. Indicamos cul es la clase objetivo
+		   //Cargamos el dataset en memoria. Indicamos cuál es la clase objetivo
 		   DataSource source = new DataSource("data/iris.arff");
 		   Instances instances = source.getDataSet();
 		   instances.setClassIndex(instances.numAttributes() - 1);
 		     
 		   //Cross validation
-		   Evaluation eval = new Evaluation(instances);
-		   eval.crossValidateModel(C, instances, 5, new Random(1));
+		   ValidacionCruzadaParalela cv = new ValidacionCruzadaParalela();
+		   Evaluation eval = cv.validar(C, instances, 5, new Random(1));
+		   cv.cerrar();
 		   System.out.println("RESULTADOS CLASIFICADOR FOO");
 		   System.out.println(eval.toSummaryString());
 		   System.out.println(eval.toClassDetailsString());
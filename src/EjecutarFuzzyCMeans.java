@@ -1,5 +1,5 @@
 import weka.core.Instances;
-import weka.core.converters.ConverterUtils.DataSource;
+import java.io.File;
 import weka.clusterers.ClusterEvaluation;
 import weka.clusterers.SimpleKMeans;
 import weka.filters.Filter;
@@ -12,9 +12,10 @@ public class EjecutarFuzzyCMeans {
     SimpleKMeans kmeans;
     int c = 3;
 
-    // DataSource source = new DataSource("data/diabetes.arff");
-    DataSource source = new DataSource("/home/gtc/Desktop/GitHub/FuzzyWeka/data/ionosphere.arff");
-    Instances data = source.getDataSet();
+    // Conjunto de datos: primer argumento, o data/ionosphere.arff. Para barridos
+    // de parametros usar EjecutarExperimentos
+    String filename = args.length > 0 ? args[0] : "data/ionosphere.arff";
+    Instances data = CacheColumnar.cargar(new File(filename));
     data.setClassIndex(data.numAttributes() - 1);
 
     // Quitar la informacion de clase para entrenar el modelo
@@ -42,6 +43,7 @@ public class EjecutarFuzzyCMeans {
     double e = 0.001;
     FuzzyCMeans fcm = new FuzzyCMeans(m, c, e);
     fcm.setSeed(10);
+    fcm.addOyente(OyenteIteraciones.CONSOLA); // Muestra el error de cada iteracion
     fcm.buildClusterer(dataClusterer);
     eval = new ClusterEvaluation();
     eval.setClusterer(fcm);
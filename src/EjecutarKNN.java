@@ -1,7 +1,8 @@
 import weka.core.Instances;
-import weka.core.converters.ConverterUtils.DataSource;
+import java.io.File;
 import weka.classifiers.Evaluation;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 public class EjecutarKNN {
 
@@ -12,39 +13,45 @@ public class EjecutarKNN {
    CrispKNN C= new CrispKNN(3);   
    FuzzyNP NP= new FuzzyNP(3);
    
-   String filename = new String("data/breast-cancer.arff");
+   //Conjunto de datos: primer argumento, o breast-cancer. Para barridos de
+   //parametros usar EjecutarExperimentos
+   String filename = args.length > 0 ? args[0] : "data/breast-cancer.arff";
    //String filename = new String("data/ionosphere.arff");
    //String filename = new String("data/diabetes.arff");
    //String filename = new String("data/iris.arff");
    
-   //Cargamos el dataset en memoria
-   DataSource source = new DataSource(filename);
-   Instances instances = source.getDataSet();
+   //Cargamos el dataset en memoria (desde su cache columnar si ya existe)
+   Instances instances = CacheColumnar.cargar(new File(filename));
    
    //Indicamos cual es la clase objetivo
    instances.setClassIndex(instances.numAttributes() - 1);
    
+   //Las cuatro validaciones cruzadas (40 modelos) se entrenan en paralelo
+   ValidacionCruzadaParalela cv = new ValidacionCruzadaParalela();
+   Future<Evaluation> evalC = cv.enviar(C, instances, 10, new Random(1));
+   Future<Evaluation> evalF1 = cv.enviar(F1, instances, 10, new Random(1));
+   Future<Evaluation> evalF2 = cv.enviar(F2, instances, 10, new Random(2));
+   Future<Evaluation> evalNP = cv.enviar(NP, instances, 10, new Random(1));
+   cv.cerrar();
+
    Evaluation eval;
    
    //Cross validation para CrispKNN
-   eval = new Evaluation(instances);
-   eval.crossValidateModel(C, instances, 10, new Random(1));
+   eval = evalC.get();
    System.out.println("RESULTADOS CRISP KNN CON DATASET "+filename);
    System.out.println(eval.toSummaryString());
    System.out.println(eval.toClassDetailsString());
    System.out.println(eval.toMatrixString());
    
    //Cross validation para FuzzyKNN 
-   eval = new Evaluation(instances);
-   eval.crossValidateModel(F1, instances, 10, new Random(1));
+   eval = evalF1.get();
    System.out.println("RESULTADOS FUZZY KNN (inicializacion crisp) CON DATASET "+filename);
    System.out.println(eval.toSummaryString());
    System.out.println(eval.toClassDetailsString());
    System.out.println(eval.toMatrixString());
    
    //Cross validation para FuzzyKNN 
-   eval = new Evaluation(instances);
-   eval.crossValidateModel(F2, instances, 10, new Random(2));
+   eval = evalF2.get();
    System.out.println("RESULTADOS FUZZY KNN (inicializacion fuzzy) CON DATASET "+filename);
    System.out.println(eval.toSummaryString());
    System.out.println(eval.toClassDetailsString());
@@ -53,8 +60,7 @@ public class EjecutarKNN {
   
    //Cross validation para Fuzzy Nearest Prototype
    //RELLENAR: Incluir el codigo para evaluar fuzzy nearest prototype
-   eval = new Evaluation(instances);
-   eval.crossValidateModel(NP, instances, 10, new Random(1));   
+   eval = evalNP.get();
    System.out.println("RESULTADOS FUZZY NEAREST PROTOTYPE CON DATASET "+ filename);
    System.out.println(eval.toSummaryString());
    System.out.println(eval.toClassDetailsString());
@@ -12,14 +12,15 @@ public class EjecutarMasProbable {
 		   
 		   C= new MasProbable();
 		   
-		   //Cargamos el dataset en memoria. Indicamos cul es la clase objetivo
+		   //Cargamos el dataset en memoria. Indicamos cuál es la clase objetivo
 		   DataSource source = new DataSource("data/breast-cancer.arff");
 		   Instances instances = source.getDataSet();
 		   instances.setClassIndex(instances.numAttributes() - 1);
 		     
 		   //Cross validation
-		   Evaluation eval = new Evaluation(instances);
-		   eval.crossValidateModel(C, instances, 5, new Random(1));
+		   ValidacionCruzadaParalela cv = new ValidacionCruzadaParalela();
+		   Evaluation eval = cv.validar(C, instances, 5, new Random(1));
+		   cv.cerrar();
 		   System.out.println("RESULTADOS CLASIFICADOR MAS PROBABLE");
 		   
 		   //Imprime resultados generales
@@ -28,7 +29,7 @@ public class EjecutarMasProbable {
 		   //Imprime resultados detallados por clase
 		   System.out.println(eval.toClassDetailsString());
 		   
-		   //Imprime la matriz de confusin
+		   //Imprime la matriz de confusión
 		   System.out.println(eval.toMatrixString());
 }
 }
\ No newline at end of file
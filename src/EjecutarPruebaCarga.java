@@ -0,0 +1,93 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Prueba de carga: entrena FuzzyCMeans y los clasificadores kNN sobre nubes
+ * generadas con GeneradorNubes de tamaño creciente (x10 en cada escalon) e
+ * informa del rendimiento y del pico de memoria de cada escalon.
+ *
+ * Uso: java EjecutarPruebaCarga [-desde 1000] [-hasta 1000000] [-d 2] [-c 15]
+ * [-k 3] [-iteraciones 10] [-consultas 200]
+ */
+public class EjecutarPruebaCarga {
+
+	public static void main(String[] args) throws Exception {
+		long desde = opcion("desde", args, 1000);
+		long hasta = opcion("hasta", args, 1000000);
+		int d = (int) opcion("d", args, 2);
+		int c = (int) opcion("c", args, 15);
+		int k = (int) opcion("k", args, 3);
+		int iteraciones = (int) opcion("iteraciones", args, 10);
+		int consultas = (int) opcion("consultas", args, 200);
+
+		GeneradorNubes generador = new GeneradorNubes(d, c, 0.1, 1);
+		GeneradorNubes generadorConsultas = new GeneradorNubes(d, c, 0.1, 1);
+		generadorConsultas.setSemillaPuntos(1000);
+
+		System.out.printf("%-10s %-10s %12s %14s %14s %12s%n", "filas", "algoritmo", "entrenar(s)",
+				"filas/s", "consultas/s", "pico(MB)");
+		for (long n = desde; n <= hasta; n *= 10) {
+			// FCM sobre los puntos sin clase
+			reiniciarPicos();
+			Instances datos = generador.instancias((int) n, false);
+			FuzzyCMeans fcm = new FuzzyCMeans(2.0, c, 0.001);
+			fcm.setSeed(10);
+			fcm.maxIteraciones = iteraciones;
+			long inicio = System.nanoTime();
+			fcm.buildClusterer(datos);
+			double segundos = (System.nanoTime() - inicio) / 1e9;
+			informar(n, "FCM", segundos, n * (double) fcm.getIteraciones() / segundos, Double.NaN);
+			datos = null;
+
+			// Clasificadores sobre los puntos con la nube como clase
+			Classifier clasificadores[] = { new FuzzyKNN(k, 2.0, 1), new CrispKNN(k), new FuzzyNP(2.0) };
+			for (Classifier clasificador : clasificadores) {
+				reiniciarPicos();
+				datos = generador.instancias((int) n, true);
+				Instances test = generadorConsultas.instancias(consultas, true);
+				inicio = System.nanoTime();
+				clasificador.buildClassifier(datos);
+				segundos = (System.nanoTime() - inicio) / 1e9;
+				long inicioConsultas = System.nanoTime();
+				for (int i = 0; i < test.numInstances(); i++)
+					clasificador.distributionForInstance(test.instance(i));
+				double segundosConsultas = (System.nanoTime() - inicioConsultas) / 1e9;
+				informar(n, clasificador.getClass().getName(), segundos, n / segundos,
+						test.numInstances() / segundosConsultas);
+				datos = null;
+			}
+		}
+	}
+
+	/** Imprime una fila de la tabla de resultados */
+	private static void informar(long n, String algoritmo, double segundos, double filasPorSegundo,
+			double consultasPorSegundo) {
+		System.out.printf("%-10d %-10s %12.3f %14.0f %14.1f %12.1f%n", n, algoritmo, segundos, filasPorSegundo,
+				consultasPorSegundo, picoHeap() / (1024.0 * 1024.0));
+	}
+
+	/** Suma de los picos de uso de los espacios del heap desde el ultimo reinicio */
+	private static long picoHeap() {
+		long pico = 0;
+		for (MemoryPoolMXBean espacio : ManagementFactory.getMemoryPoolMXBeans())
+			if (espacio.getType() == MemoryType.HEAP)
+				pico += espacio.getPeakUsage().getUsed();
+		return pico;
+	}
+
+	private static void reiniciarPicos() {
+		System.gc();
+		for (MemoryPoolMXBean espacio : ManagementFactory.getMemoryPoolMXBeans())
+			espacio.resetPeakUsage();
+	}
+
+	private static long opcion(String nombre, String args[], long porDefecto) throws Exception {
+		String valor = Utils.getOption(nombre, args);
+		return valor.length() == 0 ? porDefecto : Long.parseLong(valor);
+	}
+}
@@ -0,0 +1,330 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escritor de asignaciones y grados de pertenencia de un clustering, pensado
+ * para millones de filas. Cada fila lleva el cluster asignado (el de mayor
+ * pertenencia) y las k mayores pertenencias, o todas si k es igual al numero
+ * de clusters.
+ *
+ * El hilo que puntua solo copia cada vector de pertenencias a un lote. Los
+ * lotes llenos pasan a un hilo de fondo que elige los k mayores, los codifica
+ * en un ByteBuffer reutilizado y lo escribe en el fichero, de modo que la
+ * escritura se solapa con el calculo. Los lotes vuelven a un pool al
+ * terminar, asi que no se reserva memoria por fila.
+ *
+ * Formato CSV: cabecera y una fila por instancia, con el identificador y los
+ * clusters empezando en 1, como output.csv. Con todas las pertenencias las
+ * columnas son InstanceID,Cluster,u1,...,uc; con k las columnas son
+ * InstanceID,Cluster,c1,u1,...,ck,uk, con los clusters ordenados de mayor a
+ * menor pertenencia.
+ *
+ * Formato binario (little-endian): MAGIA_BINARIO (int), numero de filas
+ * (long), numero de clusters (int) y k (int). Despues, por fila, el cluster
+ * asignado (int) y, si k es igual al numero de clusters, las c pertenencias
+ * (double); si no, k pares de cluster (int) y pertenencia (double). Los
+ * clusters empiezan en 0.
+ */
+public class EscritorPertenencias implements AutoCloseable {
+
+	/** "FWPB" */
+	public static final int MAGIA_BINARIO = 0x46575042;
+
+	/** Formatos de salida */
+	public enum Formato {
+		CSV, BINARIO
+	}
+
+	/** Filas por lote */
+	protected static final int FILAS_POR_LOTE = 4096;
+	/** Lotes en circulacion entre el hilo que puntua y el que escribe */
+	protected static final int LOTES = 4;
+	/** Tamaño del buffer de salida */
+	protected static final int TAMANO_BUFFER = 1 << 20;
+
+	private static final long POTENCIAS[] = new long[16];
+	static {
+		POTENCIAS[0] = 1;
+		for (int i = 1; i < POTENCIAS.length; i++)
+			POTENCIAS[i] = POTENCIAS[i - 1] * 10;
+	}
+
+	/** Lote de filas de pertenencias, fila a fila */
+	private static class Lote {
+		final double u[];
+		int filas;
+
+		Lote(int c) {
+			u = new double[FILAS_POR_LOTE * c];
+		}
+	}
+
+	/** Lote vacio que indica al hilo de fondo que no hay mas filas */
+	private final Lote fin = new Lote(0);
+
+	protected final Formato formato;
+	/** Numero de clusters */
+	protected final int c;
+	/** Numero de pertenencias por fila */
+	protected final int k;
+	/** Decimales de las pertenencias en CSV */
+	protected int decimales = 6;
+
+	private final FileChannel canal;
+	private final BlockingQueue<Lote> libres = new ArrayBlockingQueue<>(LOTES);
+	private final BlockingQueue<Lote> llenos = new ArrayBlockingQueue<>(LOTES + 1);
+	private final Thread escritor;
+	/** Error del hilo de fondo, que se lanza en la siguiente llamada */
+	private volatile Exception error;
+
+	/** Lote que se esta rellenando */
+	private Lote actual;
+	/** Filas escritas */
+	private long filas;
+	private boolean cerrado;
+
+	// Estado del hilo de fondo
+	private final ByteBuffer buffer;
+	/** Bytes maximos de una fila codificada */
+	private final int maxFila;
+	private long posicion;
+	private final int indices[];
+	private final byte digitos[] = new byte[20];
+
+	/**
+	 * Abre el fichero de salida.
+	 *
+	 * @param c
+	 *            numero de clusters
+	 * @param k
+	 *            numero de pertenencias por fila, de 1 a c; con c se escriben
+	 *            todas en orden de cluster
+	 */
+	public EscritorPertenencias(File salida, Formato formato, int c, int k) throws IOException {
+		if (k < 1 || k > c)
+			throw new IllegalArgumentException("k debe estar entre 1 y " + c + ": " + k);
+		this.formato = formato;
+		this.c = c;
+		this.k = k;
+		this.indices = new int[c];
+		this.maxFila = formato == Formato.CSV ? 64 + k * 48 : 4 + c * 12;
+		this.buffer = ByteBuffer.allocateDirect(Math.max(TAMANO_BUFFER, 2 * maxFila)).order(ByteOrder.LITTLE_ENDIAN);
+		this.canal = FileChannel.open(salida.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		for (int i = 0; i < LOTES; i++)
+			libres.add(new Lote(c));
+
+		if (formato == Formato.CSV) {
+			StringBuilder cabecera = new StringBuilder("InstanceID,Cluster");
+			for (int i = 1; i <= k; i++)
+				if (k == c)
+					cabecera.append(",u").append(i);
+				else
+					cabecera.append(",c").append(i).append(",u").append(i);
+			buffer.put(cabecera.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+		} else
+			buffer.putInt(MAGIA_BINARIO).putLong(0).putInt(c).putInt(k);
+
+		escritor = new Thread(this::escribirLotes, "EscritorPertenencias");
+		escritor.setDaemon(true);
+		escritor.start();
+	}
+
+	/** Decimales de las pertenencias en CSV (6 por defecto, hasta 15) */
+	public void setDecimales(int decimales) {
+		this.decimales = Math.max(0, Math.min(decimales, POTENCIAS.length - 1));
+	}
+
+	/**
+	 * Añade una fila. El vector se copia, asi que se puede reutilizar.
+	 *
+	 * @param u
+	 *            pertenencia a cada uno de los c clusters
+	 */
+	public void escribir(double u[]) throws IOException {
+		if (u.length != c)
+			throw new IllegalArgumentException("Se esperaban " + c + " pertenencias y hay " + u.length);
+		comprobarError();
+		if (actual == null)
+			actual = tomar(libres);
+		System.arraycopy(u, 0, actual.u, actual.filas * c, c);
+		filas++;
+		if (++actual.filas == FILAS_POR_LOTE) {
+			poner(llenos, actual);
+			actual = null;
+		}
+	}
+
+	/** Numero de filas añadidas */
+	public long filas() {
+		return filas;
+	}
+
+	/** Espera a que se escriban todas las filas y cierra el fichero */
+	@Override
+	public void close() throws IOException {
+		if (cerrado)
+			return;
+		cerrado = true;
+		try {
+			if (actual != null)
+				poner(llenos, actual);
+			poner(llenos, fin);
+			escritor.join();
+			comprobarError();
+			if (formato == Formato.BINARIO) {
+				ByteBuffer total = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, filas);
+				canal.write(total, 4);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			canal.close();
+		}
+	}
+
+	private void comprobarError() throws IOException {
+		if (error != null)
+			throw new IOException("Error escribiendo pertenencias", error);
+	}
+
+	private Lote tomar(BlockingQueue<Lote> cola) throws IOException {
+		try {
+			Lote lote;
+			while ((lote = cola.poll(100, TimeUnit.MILLISECONDS)) == null)
+				comprobarError();
+			return lote;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private void poner(BlockingQueue<Lote> cola, Lote lote) throws IOException {
+		try {
+			cola.put(lote);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/** Bucle del hilo de fondo */
+	private void escribirLotes() {
+		try {
+			long id = 1;
+			Lote lote;
+			while ((lote = llenos.take()) != fin) {
+				for (int f = 0; f < lote.filas; f++)
+					codificar(id++, lote.u, f * c);
+				lote.filas = 0;
+				libres.put(lote);
+			}
+			vaciar();
+		} catch (Exception e) {
+			error = e;
+			// Deja de consumir; el hilo que puntua vera el error en la siguiente llamada
+		}
+	}
+
+	/** Codifica la fila que empieza en u[inicio] */
+	private void codificar(long id, double u[], int inicio) throws IOException {
+		if (buffer.remaining() < maxFila)
+			vaciar();
+
+		// Los k mayores, por seleccion parcial sobre los indices
+		for (int i = 0; i < c; i++)
+			indices[i] = i;
+		for (int i = 0; i < (k == c ? 1 : k); i++) {
+			int mayor = i;
+			for (int j = i + 1; j < c; j++)
+				if (u[inicio + indices[j]] > u[inicio + indices[mayor]])
+					mayor = j;
+			int t = indices[i];
+			indices[i] = indices[mayor];
+			indices[mayor] = t;
+		}
+		int asignado = indices[0];
+
+		if (formato == Formato.BINARIO) {
+			buffer.putInt(asignado);
+			if (k == c)
+				for (int i = 0; i < c; i++)
+					buffer.putDouble(u[inicio + i]);
+			else
+				for (int i = 0; i < k; i++)
+					buffer.putInt(indices[i]).putDouble(u[inicio + indices[i]]);
+			return;
+		}
+
+		escribirEntero(id);
+		buffer.put((byte) ',');
+		escribirEntero(asignado + 1);
+		for (int i = 0; i < k; i++) {
+			buffer.put((byte) ',');
+			if (k == c)
+				escribirDecimal(u[inicio + i]);
+			else {
+				escribirEntero(indices[i] + 1);
+				buffer.put((byte) ',');
+				escribirDecimal(u[inicio + indices[i]]);
+			}
+		}
+		buffer.put((byte) '\n');
+	}
+
+	/** Escribe un entero no negativo en ASCII sin crear objetos */
+	private void escribirEntero(long valor) {
+		int n = 0;
+		do {
+			digitos[n++] = (byte) ('0' + valor % 10);
+			valor /= 10;
+		} while (valor > 0);
+		while (n > 0)
+			buffer.put(digitos[--n]);
+	}
+
+	/**
+	 * Escribe un numero con decimales fijos sin crear objetos. Los ausentes se
+	 * escriben como "?" y los valores demasiado grandes con Double.toString.
+	 */
+	private void escribirDecimal(double valor) {
+		if (Double.isNaN(valor)) {
+			buffer.put((byte) '?');
+			return;
+		}
+		long escala = POTENCIAS[decimales];
+		if (Math.abs(valor) >= (double) Long.MAX_VALUE / escala) {
+			buffer.put(Double.toString(valor).getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		long r = Math.round(Math.abs(valor) * escala);
+		if (valor < 0 && r != 0)
+			buffer.put((byte) '-');
+		escribirEntero(r / escala);
+		if (decimales == 0)
+			return;
+		buffer.put((byte) '.');
+		long fraccion = r % escala;
+		for (long p = escala / 10; p > 0; p /= 10) {
+			buffer.put((byte) ('0' + fraccion / p));
+			fraccion %= p;
+		}
+	}
+
+	private void vaciar() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			posicion += canal.write(buffer, posicion);
+		buffer.clear();
+	}
+}
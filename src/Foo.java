@@ -6,8 +6,8 @@ Clasificador que alcula del conjunto de entrenamiento la media
 de los valores de todos sus datos, y compara con la media
 de la instancia a clasificar. Si la media de la instancia es 
 menor que la media del conjutno de entrenamiento clasifica con la
-clase cuyo ndice valor sea 0.0 si no clasifica con la clase
-cuyo ndice valor es 1.0.
+clase cuyo índice valor sea 0.0 si no clasifica con la clase
+cuyo índice valor es 1.0.
 */
 
 public class Foo extends Classifier {
@@ -32,7 +32,7 @@ public class Foo extends Classifier {
         float media_instancia = 0;
 
          // Recorremos todos sus atributos
-         // El atributo de clase no se contabilizar
+         // El atributo de clase no se contabilizará
          for (int j=0; j < instancia.numAttributes(); j++)
          {
         	 if(j!=instancia.classIndex()){
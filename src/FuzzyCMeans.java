@@ -3,7 +3,10 @@ import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -46,6 +49,38 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
   private Map<String, Long> totalTimeMap = new HashMap<>();
   private Map<String, Integer> callCountMap = new HashMap<>();
 
+  /** 迭代监听器（不参与序列化，复制模型时不会带上） */
+  protected transient List<OyenteIteraciones> oyentes;
+
+  // ================== 聚类中心索引 ==================
+  /** 每个实例允许忽略的最大隶属度质量；大于 0 时使用聚类中心索引，0 表示精确计算 */
+  protected double masaDespreciable = 0;
+  /** 聚类中心索引，V 改变后置为 null，下次使用时重建 */
+  protected transient IndiceCentros indice;
+  /** 使用索引以来被忽略质量上界的最大值 */
+  protected double masaDespreciadaMaxima;
+
+  // ================== 时间预算 ==================
+  /** 训练时间预算（毫秒），0 表示不限时 */
+  protected long presupuesto = 0;
+  /** 训练次数（第一次之外的每次重启使用种子 getSeed() + r） */
+  protected int reinicios = 1;
+  /** 最近一次训练的结果：保留的模型的迭代次数、是否收敛、是否因预算用尽而停止、完成的训练次数 */
+  protected int iteraciones;
+  protected boolean convergido;
+  protected boolean plazoAgotado;
+  protected int reiniciosCompletados;
+  /** 保留的模型的目标函数值，NaN 表示尚未计算 */
+  protected double objetivoFinal = Double.NaN;
+  /** 最近一次 ejecutar 的初始化加第一次迭代的耗时（纳秒），用于判断能否开始重启 */
+  protected transient long duracionArranque;
+
+  // ================== 预聚合 ==================
+  /** 预聚合的网格边长：小于 0 不聚合（默认），0 合并完全相同的实例，大于 0 按网格合并 */
+  protected double rejilla = -1;
+  /** 最近一次训练的代表点数量（不聚合时等于实例数量） */
+  protected int nRepresentantes;
+
   /**
    * 构造函数
    * 
@@ -59,12 +94,145 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
     this.epsilon = epsilon;
   }
 
+  /**
+   * 注册迭代监听器。需要控制台输出时注册 OyenteIteraciones.CONSOLA
+   * 
+   * @param oyente 监听器
+   */
+  public void addOyente(OyenteIteraciones oyente) {
+    if (oyentes == null)
+      oyentes = new ArrayList<>();
+    oyentes.add(oyente);
+  }
+
+  public void removeOyente(OyenteIteraciones oyente) {
+    if (oyentes != null)
+      oyentes.remove(oyente);
+  }
+
+  /**
+   * 设置训练的时间预算。每次迭代开始前估计其耗时（上一次迭代的耗时），预计超出预算时停止；
+   * 重启只有在剩余时间足够完成上一次训练的初始化和第一次迭代（duracionArranque）时才开始。
+   * 第一次训练的初始化（inicializarV 和 actualizarU）总会完成，以保证得到一个模型。
+   * 
+   * @param milisegundos 预算（毫秒），0 表示不限时（默认）
+   */
+  public void setPresupuesto(long milisegundos) {
+    this.presupuesto = milisegundos;
+  }
+
+  public long getPresupuesto() {
+    return presupuesto;
+  }
+
+  /**
+   * 设置训练次数。每次使用不同的随机初始中心，保留目标函数值最小的模型
+   * 
+   * @param reinicios 训练次数，默认 1
+   */
+  public void setReinicios(int reinicios) {
+    this.reinicios = Math.max(1, reinicios);
+  }
+
+  public int getReinicios() {
+    return reinicios;
+  }
+
+  /** 保留的模型的迭代次数 */
+  public int getIteraciones() {
+    return iteraciones;
+  }
+
+  /** 保留的模型是否收敛（隶属度变化不超过 epsilon） */
+  public boolean isConvergido() {
+    return convergido;
+  }
+
+  /** 训练是否因时间预算用尽而提前停止（包括未能开始的重启） */
+  public boolean isPlazoAgotado() {
+    return plazoAgotado;
+  }
+
+  /** 实际进行（包括被预算截断）的训练次数 */
+  public int getReiniciosCompletados() {
+    return reiniciosCompletados;
+  }
+
+  /**
+   * 保留的模型的目标函数值 J_m
+   * 
+   * @return 目标函数值
+   */
+  public double getObjetivo() {
+    if (Double.isNaN(objetivoFinal))
+      objetivoFinal = objetivo();
+    return objetivoFinal;
+  }
+
+  /**
+   * 设置训练前的预聚合。实例被合并为带权重的代表点，训练只处理代表点，
+   * 代价与不同的点数而不是原始行数成正比；训练结束后每一行取其代表点的隶属度。
+   * 
+   * @param rejilla 小于 0 不聚合（默认）；0 合并属性值完全相同的实例；大于 0 把每个属性按
+   *                该边长划分网格，同一网格单元内的实例合并为其加权平均值
+   */
+  public void setRejilla(double rejilla) {
+    this.rejilla = rejilla;
+  }
+
+  public double getRejilla() {
+    return rejilla;
+  }
+
+  /** 最近一次训练实际处理的代表点数量 */
+  public int getNumRepresentantes() {
+    return nRepresentantes;
+  }
+
+  /**
+   * 训练集中第 fila 行的隶属度（预聚合时为其代表点的隶属度）
+   * 
+   * @param fila 训练集中的行号
+   * @return 隶属度分布
+   */
+  public double[] getPertenencias(int fila) {
+    double u[] = new double[c];
+    for (int i = 0; i < c; i++)
+      u[i] = U[i][fila];
+    return u;
+  }
+
+  /**
+   * 启用聚类中心索引（适用于 c 为数百或数千的情况）。evaluarInstancia 只计算距离最近的若干个
+   * 中心的隶属度，其余中心的隶属度为 0；选取的中心数保证被忽略的隶属度质量不超过 masa，
+   * 因此每个隶属度的绝对误差也不超过 masa。训练和评分都会使用索引。
+   * 
+   * @param masa 允许忽略的最大隶属度质量，例如 1e-6；0 表示精确计算（默认）
+   */
+  public void setMasaDespreciable(double masa) {
+    this.masaDespreciable = masa;
+  }
+
+  public double getMasaDespreciable() {
+    return masaDespreciable;
+  }
+
+  /**
+   * 使用索引时实际被忽略质量上界的最大值（不超过 getMasaDespreciable()）
+   * 
+   * @return 最大上界
+   */
+  public double getMasaDespreciadaMaxima() {
+    return masaDespreciadaMaxima;
+  }
+
   /**
    * 核心聚类方法（Weka框架入口）
    * 该方法通过以下步骤来进行聚类：
    * 1. 初始化阶段：随机选择初始聚类中心
    * 2. 迭代优化阶段：交替更新聚类中心和隶属度矩阵
-   * 3. 终止条件：达到最大迭代次数或隶属度变化小于指定阈值
+   * 3. 终止条件：达到最大迭代次数、隶属度变化小于指定阈值、监听器请求终止或时间预算用尽
+   * 4. 设置了多次训练（setReinicios）时，保留目标函数值最小的模型
    * 
    * @param data 输入数据集（包含所有实例特征）
    */
@@ -72,10 +240,175 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
   public void buildClusterer(Instances data) throws Exception {
     // [初始化阶段]
     long startTime = System.nanoTime();
-    this.nInstancias = data.numInstances(); // 获取实例数量
+    long limite = startTime + presupuesto * 1_000_000L; // 仅在 presupuesto > 0 时使用
     this.nDimensiones = data.numAttributes(); // 获取属性数量
-    this.dataset = data;
-    double error;
+    this.plazoAgotado = false;
+    this.objetivoFinal = Double.NaN;
+
+    // [预聚合阶段] 把实例合并为带权重的代表点，representante[j] 为第 j 行的代表点
+    int representante[] = null;
+    if (rejilla >= 0) {
+      representante = new int[data.numInstances()];
+      this.dataset = agregar(data, representante);
+    } else
+      this.dataset = data;
+    this.nInstancias = dataset.numInstances(); // 获取实例数量
+    this.nRepresentantes = nInstancias;
+
+    // [重启阶段] 每次训练使用不同的种子，保留目标函数值最小的模型
+    int semilla = getSeed();
+    double mejorV[][] = null, mejorU[][] = null, mejorObjetivo = Double.POSITIVE_INFINITY;
+    int mejorIteraciones = 0, totalIteraciones = 0;
+    boolean mejorConvergido = false;
+    reiniciosCompletados = 0;
+    try {
+      for (int r = 0; r < reinicios; r++) {
+        if (r > 0 && presupuesto > 0 && limite - System.nanoTime() < duracionArranque) {
+          plazoAgotado = true;
+          break;
+        }
+        setSeed(semilla + r);
+        int n = ejecutar(limite);
+        reiniciosCompletados++;
+        totalIteraciones += n;
+        if (reinicios == 1) {
+          mejorV = V;
+          mejorU = U;
+          mejorIteraciones = n;
+          mejorConvergido = convergido;
+          break;
+        }
+        double j = objetivo();
+        if (mejorV == null || j < mejorObjetivo) {
+          mejorObjetivo = j;
+          mejorV = V;
+          mejorU = U;
+          mejorIteraciones = n;
+          mejorConvergido = convergido;
+        }
+      }
+    } finally {
+      setSeed(semilla);
+    }
+    V = mejorV;
+    U = mejorU;
+    indice = null;
+    iteraciones = mejorIteraciones;
+    convergido = mejorConvergido;
+    if (reinicios > 1)
+      objetivoFinal = mejorObjetivo;
+
+    // 把代表点的隶属度映射回原始的每一行；目标函数改为在原始行上计算
+    if (representante != null) {
+      double filas[][] = new double[c][representante.length];
+      for (int i = 0; i < c; i++)
+        for (int j = 0; j < representante.length; j++)
+          filas[i][j] = U[i][representante[j]];
+      U = filas;
+      dataset = data;
+      nInstancias = data.numInstances();
+      objetivoFinal = Double.NaN;
+    }
+    long endTime = System.nanoTime();
+
+    // [性能分析阶段]
+    recordTime("buildClusterer", endTime - startTime);
+    if (oyentes != null && !oyentes.isEmpty())
+      for (OyenteIteraciones oyente : oyentes)
+        oyente.fin(this, totalIteraciones);
+  }
+
+  /**
+   * 把实例合并为带权重的代表点（见 setRejilla）。代表点的权重为合并的实例的权重之和；
+   * 合并完全相同的实例时代表点就是第一个实例的值，按网格合并时为各属性的加权平均值
+   * （忽略缺失值，全部缺失时仍为缺失值）。
+   * 
+   * @param data          原始实例
+   * @param representante 输出：每一行对应的代表点
+   * @return 代表点
+   */
+  protected Instances agregar(Instances data, int representante[]) {
+    long startTime = System.nanoTime();
+    int d = data.numAttributes();
+    Map<Celda, Integer> celdas = new HashMap<>();
+    List<double[]> sumas = new ArrayList<>(), pesos = new ArrayList<>();
+    List<Double> pesoTotal = new ArrayList<>();
+    for (int j = 0; j < data.numInstances(); j++) {
+      Instance instancia = data.instance(j);
+      long clave[] = new long[d];
+      for (int k = 0; k < d; k++) {
+        if (instancia.isMissing(k))
+          clave[k] = Long.MIN_VALUE;
+        else if (rejilla > 0)
+          clave[k] = (long) Math.floor(instancia.value(k) / rejilla);
+        else
+          clave[k] = Double.doubleToLongBits(instancia.value(k) + 0.0); // -0.0 与 0.0 视为相同
+      }
+      Integer r = celdas.get(new Celda(clave));
+      double w = instancia.weight();
+      if (r == null) {
+        r = sumas.size();
+        celdas.put(new Celda(clave), r);
+        sumas.add(new double[d]);
+        pesos.add(new double[d]);
+        pesoTotal.add(0.0);
+        if (rejilla == 0) // 完全相同的实例：直接使用第一个实例的值，避免舍入误差
+          for (int k = 0; k < d; k++)
+            sumas.get(r)[k] = instancia.value(k);
+      }
+      pesoTotal.set(r, pesoTotal.get(r) + w);
+      if (rejilla > 0)
+        for (int k = 0; k < d; k++)
+          if (!instancia.isMissing(k)) {
+            sumas.get(r)[k] += w * instancia.value(k);
+            pesos.get(r)[k] += w;
+          }
+      representante[j] = r;
+    }
+
+    Instances representantes = new Instances(data, sumas.size());
+    for (int r = 0; r < sumas.size(); r++) {
+      double valores[] = sumas.get(r);
+      if (rejilla > 0)
+        for (int k = 0; k < d; k++)
+          valores[k] = pesos.get(r)[k] > 0 ? valores[k] / pesos.get(r)[k] : Instance.missingValue();
+      representantes.add(new Instance(pesoTotal.get(r), valores));
+    }
+    long endTime = System.nanoTime();
+    recordTime("agregar", endTime - startTime);
+    return representantes;
+  }
+
+  /** 预聚合的单元：完全相同的值或网格坐标，缺失值为 Long.MIN_VALUE */
+  private static final class Celda {
+    final long clave[];
+    final int hash;
+
+    Celda(long clave[]) {
+      this.clave = clave;
+      this.hash = Arrays.hashCode(clave);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object otra) {
+      return otra instanceof Celda && Arrays.equals(clave, ((Celda) otra).clave);
+    }
+  }
+
+  /**
+   * 用当前种子训练一次
+   * 
+   * @param limite 截止时刻（System.nanoTime()），仅在 presupuesto > 0 时使用
+   * @return 迭代次数；同时设置 convergido，预算用尽时设置 plazoAgotado
+   */
+  protected int ejecutar(long limite) {
+    long startTime = System.nanoTime();
+    double error = Double.POSITIVE_INFINITY;
 
     V = new double[c][nDimensiones]; // 初始化聚类中心矩阵
     U = new double[c][nInstancias]; // 初始化隶属度矩阵
@@ -92,8 +425,23 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
     // imprimirMatriz(U, c, nInstancias);
 
     // [迭代优化阶段]
+    boolean escuchar = oyentes != null && !oyentes.isEmpty();
+    boolean parar = false;
     int nIteraciones = 1;
+    // 预计的迭代耗时：第一次迭代按初始化耗时的两倍估计，之后取上一次迭代的耗时
+    long duracion = 2 * (System.nanoTime() - startTime);
+    duracionArranque = duracion;
     do {
+      // 预计本次迭代会超出时间预算时停止，保留当前模型
+      if (presupuesto > 0 && limite - System.nanoTime() < duracion) {
+        plazoAgotado = true;
+        break;
+      }
+      long inicioIteracion = System.nanoTime();
+
+      // 有监听器时保存旧的聚类中心，用于计算中心位移
+      double vAnterior[][] = escuchar ? copiarV() : null;
+
       // 根据当前隶属度更新聚类中心
       calcularV();
 
@@ -107,19 +455,29 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
       // error值为0？？？？？？为什么？？？？
       error = NormaU(U, aux);
 
-      // 新增误差输出
-      System.out.printf("迭代 %d | 当前误差: %.6f\n", nIteraciones, error);
-      // System.out.printf("迭代 %d | V[0][0]=%.4f | U[0][0]=%.4f | 误差: %.6f\n", 
-      //     nIteraciones, V[0][0], U[0][0], error);
-      
-      nIteraciones++;
-    } while (nIteraciones <= maxIteraciones && error > epsilon); // 收敛条件
-    long endTime = System.nanoTime();
+      // 通知监听器（误差输出由 OyenteIteraciones.CONSOLA 完成），任一监听器可请求终止
+      if (escuchar) {
+        OyenteIteraciones.Evento evento = new OyenteIteraciones.Evento(this, nIteraciones, error,
+            desplazamiento(vAnterior), System.nanoTime() - startTime);
+        for (OyenteIteraciones oyente : oyentes)
+          parar |= oyente.iteracion(evento);
+      }
 
-    // [性能分析阶段]
-    recordTime("buildClusterer", endTime - startTime);
+      duracion = System.nanoTime() - inicioIteracion;
+      if (nIteraciones == 1)
+        duracionArranque = System.nanoTime() - startTime;
+      nIteraciones++;
+    } while (!parar && nIteraciones <= maxIteraciones && error > epsilon); // 收敛条件
+    convergido = error <= epsilon;
+    return nIteraciones - 1;
+  }
 
-    // 输出每个函数的平均运行时间
+  /**
+   * 输出每个函数的平均运行时间
+   * 
+   * @param iteraciones 训练的迭代次数
+   */
+  public void imprimirTiempos(int iteraciones) {
     for (Map.Entry<String, Long> entry : totalTimeMap.entrySet()) {
       String functionName = entry.getKey();
       long totalTime = entry.getValue();
@@ -127,8 +485,8 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
       double averageTime = (double) totalTime / (callCount * 1_000_000); // 纳秒转为毫秒
       // 修改后的输出逻辑
       if (functionName == "buildClusterer") {
-        double averageIN = averageTime / (nIteraciones-1);
-        System.out.printf("运行总耗时：%.4fms，迭代%d次，平均迭代耗时：%.4fms\n", averageTime, nIteraciones-1, averageIN);
+        double averageIN = averageTime / iteraciones;
+        System.out.printf("运行总耗时：%.4fms，迭代%d次，平均迭代耗时：%.4fms\n", averageTime, iteraciones, averageIN);
       } else {
         System.out.printf("%-20s | 调用次数: %-6d | 平均耗时: %.4f ms\n",
             functionName, callCount, averageTime);
@@ -199,14 +557,20 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
         denominador = 0.0;
         // 遍历每个实例
         for (j = 0; j < nInstancias; j++) {
+          if (U[i][j] == 0) // 隶属度为 0 的实例不影响结果（使用聚类中心索引时大部分为 0）
+            continue;
           if (!dataset.instance(j).isMissing(d)) { // 如果属性值不是缺失值
-            numerador += Math.pow(U[i][j], m) * dataset.instance(j).value(d); // 更新分子
-            denominador += Math.pow(U[i][j], m); // 更新分母
+            double um = Math.pow(U[i][j], m) * dataset.instance(j).weight(); // 实例权重（默认为 1）
+            numerador += um * dataset.instance(j).value(d); // 更新分子
+            denominador += um; // 更新分母
           }
         }
-        V[i][d] = numerador / denominador; // 计算新的聚类中心
+        // 使用索引时可能没有实例落在某个簇的近邻中，此时保留原来的中心
+        if (denominador > 0 || masaDespreciable == 0)
+          V[i][d] = numerador / denominador; // 计算新的聚类中心
       }
     }
+    indice = null; // 聚类中心已改变
     long endTime = System.nanoTime();
     recordTime("calcularV", endTime - startTime);
   }
@@ -253,6 +617,8 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
    * @return 隶属度分布
    */
   protected double[] evaluarInstancia(Instance instancia) {
+      if (masaDespreciable > 0)
+        return evaluarConIndice(instancia);
       long startTime = System.nanoTime();
       double[] u = new double[c];
       
@@ -276,6 +642,41 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
       return u;
   }
 
+  /**
+   * 用聚类中心索引计算实例的隶属度：只在最近的 L 个中心上归一化，
+   * u_i = d_i^(-p) / Σ_j d_j^(-p)，p = 2/(m-1)，与 evaluarInstancia 的公式相同
+   * 
+   * @param instancia 待评估的实例
+   * @return 隶属度分布，未选取的中心为 0
+   */
+  protected double[] evaluarConIndice(Instance instancia) {
+    long startTime = System.nanoTime();
+    if (indice == null)
+      indice = new IndiceCentros(V);
+    double x[] = new double[nDimensiones];
+    for (int k = 0; k < nDimensiones; k++)
+      x[k] = instancia.isMissing(k) ? Double.NaN : instancia.value(k);
+
+    double p = 2.0 / (m - 1.0);
+    int centros[] = new int[c];
+    double d[] = new double[c];
+    double cota[] = new double[1];
+    int L = indice.buscar(x, p, masaDespreciable, centros, d, cota);
+    masaDespreciadaMaxima = Math.max(masaDespreciadaMaxima, cota[0]);
+
+    // 以最近距离 d[0] 为基准计算权重 (d[0]/d_j)^p ∈ (0, 1]，避免溢出
+    double u[] = new double[c];
+    double suma = 0;
+    for (int l = 0; l < L; l++)
+      suma += Math.pow(d[0] / d[l], p);
+    for (int l = 0; l < L; l++)
+      u[centros[l]] = Math.pow(d[0] / d[l], p) / suma;
+
+    long endTime = System.nanoTime();
+    recordTime("evaluarInstancia", endTime - startTime);
+    return u;
+  }
+
   /**
    * 随机初始化聚类中心
    */
@@ -297,11 +698,58 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
           V[i][j] = dataset.instance(index).value(j);
       }
     }
+    indice = null;
     // 记录方法执行时间
     long endTime = System.nanoTime();
     recordTime("inicializarV", endTime - startTime);
   }
 
+  /**
+   * 目标函数 J_m = Σ_i Σ_j w_j · U[i][j]^m · d(x_j, V_i)^2，w_j 为实例权重
+   * 
+   * @return 当前 V、U 下的目标函数值
+   */
+  protected double objetivo() {
+    double suma = 0;
+    for (int j = 0; j < nInstancias; j++) {
+      Instance instancia = dataset.instance(j);
+      for (int i = 0; i < c; i++) {
+        double d = distancia(i, instancia);
+        suma += Math.pow(U[i][j], m) * instancia.weight() * d * d;
+      }
+    }
+    return suma;
+  }
+
+  /**
+   * 复制聚类中心矩阵
+   * 
+   * @return V 的副本
+   */
+  protected double[][] copiarV() {
+    double aux[][] = new double[c][];
+    for (int i = 0; i < c; i++)
+      aux[i] = V[i].clone();
+    return aux;
+  }
+
+  /**
+   * 计算聚类中心相对上一轮的最大欧氏位移
+   * 
+   * @param vAnterior 上一轮的聚类中心
+   * @return 最大位移
+   */
+  protected double desplazamiento(double vAnterior[][]) {
+    double maximo = 0;
+    for (int i = 0; i < c; i++) {
+      double suma = 0;
+      for (int d = 0; d < nDimensiones; d++)
+        suma += (V[i][d] - vAnterior[i][d]) * (V[i][d] - vAnterior[i][d]);
+      maximo = Math.max(maximo, Math.sqrt(suma));
+    }
+    return maximo;
+  }
+
   /**
    * 计算两次隶属度矩阵的差异
    * 
@@ -362,7 +810,7 @@ public class FuzzyCMeans extends RandomizableClusterer implements weka.clusterer
   }
 
   // 记录函数的运行时间和调用次数
-  private void recordTime(String functionName, long time) {
+  protected void recordTime(String functionName, long time) {
     totalTimeMap.put(functionName, totalTimeMap.getOrDefault(functionName, 0L) + time);
     callCountMap.put(functionName, callCountMap.getOrDefault(functionName, 0) + 1);
   }
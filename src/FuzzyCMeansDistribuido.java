@@ -0,0 +1,427 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import weka.core.Utils;
+
+/**
+ * FuzzyCMeans repartido entre varios procesos. Un coordinador guarda los
+ * centros V y cada trabajador, en su propia JVM, se queda con un fragmento
+ * contiguo de filas y con su parte de la matriz U. En cada iteracion el
+ * coordinador envia V a todos los trabajadores; cada uno actualiza sus
+ * pertenencias y devuelve el cambio maximo de U, su parte de la funcion
+ * objetivo y las sumas parciales de calcularV (numerador y denominador por
+ * cluster y atributo). El coordinador las suma y calcula el nuevo V.
+ *
+ * La inicializacion, las formulas y el criterio de parada son los de
+ * FuzzyCMeans, asi que con un solo trabajador el resultado es identico; con
+ * varios solo cambia el orden de las sumas. Los trabajadores leen su
+ * fragmento de la CacheColumnar del fichero de datos, proyectada en memoria,
+ * por lo que ningun proceso carga el conjunto completo. Los pesos de las
+ * instancias de la cache se usan como en FuzzyCMeans.
+ *
+ * entrenar hace un solo entrenamiento completo sobre las filas del fichero:
+ * no admite setRejilla, setPresupuesto, setReinicios ni setMasaDespreciable,
+ * que solo aplica buildClusterer.
+ *
+ * Al terminar el coordinador queda como un FuzzyCMeans entrenado, sin U, que
+ * puntua con distributionForInstance y se puede exportar con ModeloBinario.
+ *
+ * Protocolo (sockets en localhost, enteros y double en big-endian):
+ * <ol>
+ * <li>El trabajador envia MAGIA, su fragmento y su numero de filas.</li>
+ * <li>El coordinador envia INICIO, m y c.</li>
+ * <li>Por cada ronda el coordinador envia CENTROS y los c x d valores de V;
+ * el trabajador responde el cambio maximo de U, su parte del objetivo, y los
+ * c x d numeradores y c x d denominadores.</li>
+ * <li>El coordinador envia FIN y el trabajador termina.</li>
+ * </ol>
+ */
+public class FuzzyCMeansDistribuido extends FuzzyCMeans {
+
+	private static final long serialVersionUID = 1L;
+
+	/** "FWFD" */
+	public static final int MAGIA = 0x46574644;
+
+	private static final int INICIO = 0;
+	private static final int CENTROS = 1;
+	private static final int FIN = 2;
+
+	/** Tiempo maximo de espera a que se conecten los trabajadores */
+	private static final int ESPERA_CONEXION = 60000;
+
+	/** Numero de trabajadores */
+	protected int trabajadores = 2;
+	/** Si es true el coordinador lanza los trabajadores como procesos locales */
+	protected boolean lanzar = true;
+	/** Puerto del coordinador, o 0 para uno libre */
+	protected int puerto = 0;
+
+	/** Funcion objetivo de la ultima ronda, sumada sobre los trabajadores */
+	protected double objetivo;
+
+	public FuzzyCMeansDistribuido(double m, int c, double epsilon) {
+		super(m, c, epsilon);
+	}
+
+	public void setTrabajadores(int trabajadores) {
+		this.trabajadores = trabajadores;
+	}
+
+	/**
+	 * Si es false el coordinador no lanza procesos y espera a que se conecten
+	 * trabajadores arrancados a mano con -trabajador
+	 */
+	public void setLanzar(boolean lanzar) {
+		this.lanzar = lanzar;
+	}
+
+	public void setPuerto(int puerto) {
+		this.puerto = puerto;
+	}
+
+	/** Conexion del coordinador con un trabajador */
+	private static class Conexion {
+		final Socket socket;
+		final DataInputStream entrada;
+		final DataOutputStream salida;
+		int fragmento;
+
+		Conexion(Socket socket) throws IOException {
+			this.socket = socket;
+			entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+	}
+
+	/**
+	 * Entrena repartiendo las filas del fichero entre los trabajadores.
+	 *
+	 * @param datos
+	 *            ARFF o CSV con atributos numericos; se crea su cache si no
+	 *            existe
+	 */
+	public void entrenar(File datos) throws Exception {
+		List<String> noAdmitidas = new ArrayList<>();
+		if (rejilla >= 0)
+			noAdmitidas.add("setRejilla");
+		if (presupuesto > 0)
+			noAdmitidas.add("setPresupuesto");
+		if (reinicios > 1)
+			noAdmitidas.add("setReinicios");
+		if (masaDespreciable > 0)
+			noAdmitidas.add("setMasaDespreciable");
+		if (!noAdmitidas.isEmpty())
+			throw new UnsupportedOperationException("entrenar no admite " + String.join(", ", noAdmitidas));
+		long startTime = System.nanoTime();
+		this.plazoAgotado = false;
+		this.objetivoFinal = Double.NaN;
+		CacheColumnar cache = CacheColumnar.abrir(datos);
+		this.nInstancias = cache.numFilas();
+		this.nRepresentantes = nInstancias;
+		this.nDimensiones = cache.numAtributos();
+		this.dataset = cache.cabecera();
+		this.U = null;
+		V = new double[c][nDimensiones];
+		inicializarV(cache);
+
+		List<Process> procesos = new ArrayList<>();
+		Conexion conexiones[] = new Conexion[trabajadores];
+		try (ServerSocket servidor = new ServerSocket(puerto, trabajadores, InetAddress.getLoopbackAddress())) {
+			if (lanzar)
+				for (int f = 0; f < trabajadores; f++)
+					procesos.add(lanzarTrabajador(servidor.getLocalPort(), datos, f));
+			else
+				System.out.println("Esperando " + trabajadores + " trabajadores en el puerto " + servidor.getLocalPort());
+			conectar(servidor, conexiones);
+			for (Conexion conexion : conexiones) {
+				conexion.salida.writeInt(INICIO);
+				conexion.salida.writeDouble(m);
+				conexion.salida.writeInt(c);
+			}
+
+			// Pertenencias iniciales y sumas para el primer calcularV
+			double sumas[][][] = ronda(conexiones);
+
+			boolean escuchar = oyentes != null && !oyentes.isEmpty();
+			boolean parar = false;
+			double error;
+			int nIteraciones = 1;
+			do {
+				double vAnterior[][] = escuchar ? copiarV() : null;
+				for (int i = 0; i < c; i++)
+					for (int d = 0; d < nDimensiones; d++)
+						V[i][d] = sumas[0][i][d] / sumas[1][i][d];
+				indice = null;
+				sumas = ronda(conexiones);
+				error = sumas[2][0][0];
+
+				if (escuchar) {
+					OyenteIteraciones.Evento evento = new OyenteIteraciones.Evento(this, nIteraciones, error,
+							desplazamiento(vAnterior), System.nanoTime() - startTime);
+					for (OyenteIteraciones oyente : oyentes)
+						parar |= oyente.iteracion(evento);
+				}
+				nIteraciones++;
+			} while (!parar && nIteraciones <= maxIteraciones && error > epsilon);
+			iteraciones = nIteraciones - 1;
+			convergido = error <= epsilon;
+			reiniciosCompletados = 1;
+
+			for (Conexion conexion : conexiones) {
+				conexion.salida.writeInt(FIN);
+				conexion.salida.flush();
+			}
+			recordTime("buildClusterer", System.nanoTime() - startTime);
+			if (escuchar)
+				for (OyenteIteraciones oyente : oyentes)
+					oyente.fin(this, nIteraciones - 1);
+		} finally {
+			for (Conexion conexion : conexiones)
+				if (conexion != null)
+					conexion.socket.close();
+			for (Process proceso : procesos)
+				if (!proceso.waitFor(5, TimeUnit.SECONDS))
+					proceso.destroyForcibly();
+		}
+	}
+
+	/** Funcion objetivo de la ultima ronda, calculada por los trabajadores */
+	@Override
+	protected double objetivo() {
+		return objetivo;
+	}
+
+	/** inicializarV de FuzzyCMeans leyendo las filas de la cache */
+	private void inicializarV(CacheColumnar cache) {
+		Random rand = new Random(getSeed());
+		for (int i = 0; i < c; i++) {
+			int index = rand.nextInt(nInstancias);
+			for (int j = 0; j < nDimensiones; j++)
+				if (!cache.ausente(index, j))
+					V[i][j] = cache.valor(index, j);
+		}
+	}
+
+	/** Lanza un trabajador en una JVM local con el mismo classpath */
+	private Process lanzarTrabajador(int puertoCoordinador, File datos, int fragmento) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder proceso = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				FuzzyCMeansDistribuido.class.getName(), "-trabajador", "-puerto", "" + puertoCoordinador, "-datos",
+				datos.getPath(), "-fragmento", "" + fragmento, "-fragmentos", "" + trabajadores);
+		proceso.inheritIO();
+		return proceso.start();
+	}
+
+	/** Acepta a los trabajadores y los ordena por fragmento */
+	private void conectar(ServerSocket servidor, Conexion conexiones[]) throws IOException {
+		servidor.setSoTimeout(ESPERA_CONEXION);
+		for (int k = 0; k < trabajadores; k++) {
+			Conexion conexion;
+			try {
+				conexion = new Conexion(servidor.accept());
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Solo se han conectado " + k + " de " + trabajadores + " trabajadores", e);
+			}
+			conexion.socket.setTcpNoDelay(true);
+			if (conexion.entrada.readInt() != MAGIA)
+				throw new IOException("Conexion de un proceso que no es un trabajador");
+			conexion.fragmento = conexion.entrada.readInt();
+			int filas = conexion.entrada.readInt();
+			int f = conexion.fragmento;
+			if (f < 0 || f >= trabajadores || conexiones[f] != null)
+				throw new IOException("Fragmento de trabajador repetido o no valido: " + f);
+			if (filas != fin(f) - inicio(f))
+				throw new IOException(
+						"El trabajador " + f + " tiene " + filas + " filas y se esperaban " + (fin(f) - inicio(f)));
+			conexiones[f] = conexion;
+		}
+	}
+
+	private int inicio(int fragmento) {
+		return (int) ((long) nInstancias * fragmento / trabajadores);
+	}
+
+	private int fin(int fragmento) {
+		return inicio(fragmento + 1);
+	}
+
+	/**
+	 * Envia V a todos los trabajadores y suma sus respuestas.
+	 *
+	 * @return numeradores [0][c][d], denominadores [1][c][d] y cambio maximo
+	 *         de U [2][0][0]
+	 */
+	private double[][][] ronda(Conexion conexiones[]) throws IOException {
+		for (Conexion conexion : conexiones) {
+			conexion.salida.writeInt(CENTROS);
+			for (int i = 0; i < c; i++)
+				for (int d = 0; d < nDimensiones; d++)
+					conexion.salida.writeDouble(V[i][d]);
+			conexion.salida.flush();
+		}
+		double sumas[][][] = { new double[c][nDimensiones], new double[c][nDimensiones], new double[1][1] };
+		objetivo = 0;
+		// Se suman en orden de fragmento para que el resultado no dependa de
+		// quien responde antes
+		for (Conexion conexion : conexiones) {
+			sumas[2][0][0] = Math.max(sumas[2][0][0], conexion.entrada.readDouble());
+			objetivo += conexion.entrada.readDouble();
+			for (int t = 0; t < 2; t++)
+				for (int i = 0; i < c; i++)
+					for (int d = 0; d < nDimensiones; d++)
+						sumas[t][i][d] += conexion.entrada.readDouble();
+		}
+		return sumas;
+	}
+
+	/**
+	 * Bucle de un trabajador: atiende rondas hasta recibir FIN.
+	 *
+	 * @param puerto
+	 *            puerto del coordinador en localhost
+	 * @param datos
+	 *            fichero de datos, con la cache ya creada por el coordinador
+	 */
+	public static void trabajar(int puerto, File datos, int fragmento, int fragmentos) throws Exception {
+		CacheColumnar cache = CacheColumnar.abrir(datos);
+		int n = cache.numFilas();
+		int desde = (int) ((long) n * fragmento / fragmentos);
+		int hasta = (int) ((long) n * (fragmento + 1) / fragmentos);
+		int filas = hasta - desde;
+		int d = cache.numAtributos();
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), puerto)) {
+			socket.setTcpNoDelay(true);
+			DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			salida.writeInt(MAGIA);
+			salida.writeInt(fragmento);
+			salida.writeInt(filas);
+			salida.flush();
+
+			if (entrada.readInt() != INICIO)
+				throw new IOException("Se esperaba INICIO del coordinador");
+			double m = entrada.readDouble();
+			int c = entrada.readInt();
+
+			double U[][] = new double[c][filas];
+			double V[][] = new double[c][d];
+			double numerador[][] = new double[c][d];
+			double denominador[][] = new double[c][d];
+			double dist[] = new double[c];
+			double u[] = new double[c];
+			// Fila actual del fragmento, leida de la cache, con NaN en los ausentes
+			double x[] = new double[d];
+			boolean primera = true;
+			while (entrada.readInt() == CENTROS) {
+				for (int i = 0; i < c; i++)
+					for (int a = 0; a < d; a++)
+						V[i][a] = entrada.readDouble();
+
+				// actualizarU y NormaU sobre el fragmento y, con las nuevas
+				// pertenencias, sumas parciales de calcularV. Cada suma recorre las
+				// filas en orden, como calcularV
+				double cambio = 0, objetivo = 0;
+				for (int i = 0; i < c; i++) {
+					Arrays.fill(numerador[i], 0.0);
+					Arrays.fill(denominador[i], 0.0);
+				}
+				for (int j = 0; j < filas; j++) {
+					for (int a = 0; a < d; a++)
+						x[a] = cache.ausente(desde + j, a) ? Double.NaN : cache.valor(desde + j, a);
+					double w = cache.peso(desde + j);
+					for (int k = 0; k < c; k++) {
+						double suma = 0;
+						for (int a = 0; a < d; a++)
+							if (!Double.isNaN(x[a]))
+								suma += Math.pow(x[a] - V[k][a], 2.0);
+						dist[k] = Math.sqrt(suma);
+					}
+					for (int i = 0; i < c; i++) {
+						double suma = 0;
+						for (int k = 0; k < c; k++)
+							suma += Math.pow(Math.max(dist[i], 1e-10) / Math.max(dist[k], 1e-10), 2.0 / (m - 1.0));
+						u[i] = 1.0 / suma;
+					}
+					for (int i = 0; i < c; i++) {
+						if (!primera)
+							cambio = Math.max(cambio, Math.abs(u[i] - U[i][j]));
+						U[i][j] = u[i];
+						objetivo += Math.pow(u[i], m) * w * dist[i] * dist[i];
+						double peso = Math.pow(u[i], m) * w;
+						for (int a = 0; a < d; a++)
+							if (!Double.isNaN(x[a])) {
+								numerador[i][a] += peso * x[a];
+								denominador[i][a] += peso;
+							}
+					}
+				}
+				primera = false;
+
+				salida.writeDouble(cambio);
+				salida.writeDouble(objetivo);
+				for (double sumas[][] : new double[][][] { numerador, denominador })
+					for (int i = 0; i < c; i++)
+						for (int a = 0; a < d; a++)
+							salida.writeDouble(sumas[i][a]);
+				salida.flush();
+			}
+		}
+	}
+
+	/**
+	 * Coordinador: FuzzyCMeansDistribuido -datos fichero [-c 15] [-m 2] [-e
+	 * 0.001] [-semilla 10] [-trabajadores 2] [-puerto 0] [-externos]
+	 *
+	 * Con -externos no se lanzan procesos y se esperan trabajadores arrancados
+	 * a mano.
+	 *
+	 * Trabajador: FuzzyCMeansDistribuido -trabajador -puerto p -datos fichero
+	 * -fragmento i -fragmentos n
+	 */
+	public static void main(String[] args) throws Exception {
+		boolean trabajador = Utils.getFlag("trabajador", args);
+		String datos = Utils.getOption("datos", args);
+		String puerto = Utils.getOption("puerto", args);
+		if (datos.length() == 0)
+			throw new IllegalArgumentException("Falta -datos");
+		if (trabajador) {
+			trabajar(Integer.parseInt(puerto), new File(datos), Integer.parseInt(Utils.getOption("fragmento", args)),
+					Integer.parseInt(Utils.getOption("fragmentos", args)));
+			return;
+		}
+
+		String c = Utils.getOption("c", args);
+		String m = Utils.getOption("m", args);
+		String e = Utils.getOption("e", args);
+		String semilla = Utils.getOption("semilla", args);
+		String trabajadores = Utils.getOption("trabajadores", args);
+		FuzzyCMeansDistribuido fcm = new FuzzyCMeansDistribuido(m.length() > 0 ? Double.parseDouble(m) : 2.0,
+				c.length() > 0 ? Integer.parseInt(c) : 15, e.length() > 0 ? Double.parseDouble(e) : 0.001);
+		fcm.setSeed(semilla.length() > 0 ? Integer.parseInt(semilla) : 10);
+		if (trabajadores.length() > 0)
+			fcm.setTrabajadores(Integer.parseInt(trabajadores));
+		if (puerto.length() > 0)
+			fcm.setPuerto(Integer.parseInt(puerto));
+		fcm.setLanzar(!Utils.getFlag("externos", args));
+		fcm.addOyente(OyenteIteraciones.CONSOLA);
+		fcm.entrenar(new File(datos));
+
+		System.out.println("Centros:");
+		fcm.imprimirMatriz(fcm.V, fcm.c, fcm.nDimensiones);
+	}
+}
@@ -0,0 +1,247 @@
+import java.util.Arrays;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Clasificador en cascada: primero FuzzyNP, que puntua en O(clases * d), y
+ * solo si su mayor pertenencia no llega a la confianza indicada, FuzzyKNN,
+ * que busca vecinos en todo el conjunto de referencia. Las instancias lejos de
+ * la frontera entre clases se responden con los prototipos y las ambiguas con
+ * los kNN.
+ *
+ * Cuenta las consultas y las que pasan a FuzzyKNN (respaldos). evaluar
+ * compara sobre un conjunto etiquetado la precision y la latencia de la
+ * cascada con las de FuzzyKNN y FuzzyNP por separado, y calibrar elige la
+ * confianza a partir de la perdida de precision que se admite.
+ */
+public class FuzzyCascada extends Classifier implements UpdateableClassifier {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Confianza por defecto */
+	public static final double CONFIANZA = 0.9;
+
+	/** Primera etapa */
+	protected FuzzyNP prototipos;
+	/** Etapa de respaldo */
+	protected FuzzyKNN vecinos;
+	/** Mayor pertenencia de FuzzyNP a partir de la cual no se usa FuzzyKNN */
+	protected double confianza = CONFIANZA;
+	/** Consultas y respaldos desde el entrenamiento o reiniciarContadores */
+	protected long consultas, respaldos;
+
+	// Resultado de la ultima evaluacion
+	protected int evaluadas;
+	protected double tasaRespaldo;
+	protected double precisionCascada, precisionVecinos, precisionPrototipos;
+	/** Tiempo medio por instancia en nanosegundos */
+	protected double tiempoCascada, tiempoVecinos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param k
+	 *            número de vecinos de FuzzyKNN
+	 * @param m
+	 *            exponente fuzzy de las dos etapas
+	 * @param ini
+	 *            inicializacion de U en FuzzyKNN: 1-crisp, 2-fuzzy
+	 */
+	public FuzzyCascada(int k, double m, int ini) {
+		this(new FuzzyNP(m), new FuzzyKNN(k, m, ini));
+	}
+
+	/** Cascada con las dos etapas ya configuradas (sin entrenar) */
+	public FuzzyCascada(FuzzyNP prototipos, FuzzyKNN vecinos) {
+		this.prototipos = prototipos;
+		this.vecinos = vecinos;
+	}
+
+	/**
+	 * Mayor pertenencia de FuzzyNP a partir de la cual se responde sin
+	 * FuzzyKNN. Con 1 todas las consultas van a FuzzyKNN; con 1/clases
+	 * ninguna.
+	 */
+	public void setConfianza(double confianza) {
+		this.confianza = confianza;
+	}
+
+	public double getConfianza() {
+		return confianza;
+	}
+
+	public FuzzyNP getPrototipos() {
+		return prototipos;
+	}
+
+	public FuzzyKNN getVecinos() {
+		return vecinos;
+	}
+
+	@Override
+	public void buildClassifier(Instances instancias) throws Exception {
+		prototipos.buildClassifier(instancias);
+		vecinos.buildClassifier(instancias);
+		reiniciarContadores();
+	}
+
+	/** Actualiza las dos etapas con la nueva instancia etiquetada */
+	@Override
+	public void updateClassifier(Instance instancia) throws Exception {
+		prototipos.updateClassifier(instancia);
+		vecinos.updateClassifier(instancia);
+	}
+
+	@Override
+	public double classifyInstance(Instance instancia) throws Exception {
+		return (double) Utils.maxIndex(distributionForInstance(instancia));
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instancia) throws Exception {
+		consultas++;
+		double u[] = prototipos.distributionForInstance(instancia);
+		if (u[Utils.maxIndex(u)] >= confianza)
+			return u;
+		respaldos++;
+		return vecinos.distributionForInstance(instancia);
+	}
+
+	/** Numero de consultas desde el entrenamiento o reiniciarContadores */
+	public long getConsultas() {
+		return consultas;
+	}
+
+	/** Numero de consultas respondidas por FuzzyKNN */
+	public long getRespaldos() {
+		return respaldos;
+	}
+
+	/** Fraccion de las consultas respondidas por FuzzyKNN */
+	public double getTasaRespaldo() {
+		return consultas == 0 ? 0 : respaldos / (double) consultas;
+	}
+
+	public void reiniciarContadores() {
+		consultas = 0;
+		respaldos = 0;
+	}
+
+	/**
+	 * Evalua la cascada sobre instancias etiquetadas, sin tocar los
+	 * contadores: tasa de respaldo, precision de la cascada, de FuzzyKNN y de
+	 * FuzzyNP, y tiempo medio por instancia de la cascada (FuzzyNP mas
+	 * FuzzyKNN cuando hace falta) y de FuzzyKNN solo.
+	 *
+	 * @return informe()
+	 */
+	public String evaluar(Instances datos) throws Exception {
+		int aciertosCascada = 0, aciertosVecinos = 0, aciertosPrototipos = 0, respaldados = 0;
+		long nanosCascada = 0, nanosVecinos = 0;
+		evaluadas = 0;
+		for (int i = 0; i < datos.numInstances(); i++) {
+			Instance instancia = datos.instance(i);
+			if (instancia.classIsMissing())
+				continue;
+			int clase = (int) instancia.classValue();
+			long inicio = System.nanoTime();
+			double uNP[] = prototipos.distributionForInstance(instancia);
+			long nanosNP = System.nanoTime() - inicio;
+			inicio = System.nanoTime();
+			double uKNN[] = vecinos.distributionForInstance(instancia);
+			long nanosKNN = System.nanoTime() - inicio;
+
+			boolean respaldo = uNP[Utils.maxIndex(uNP)] < confianza;
+			int prediccionNP = Utils.maxIndex(uNP), prediccionKNN = Utils.maxIndex(uKNN);
+			evaluadas++;
+			if (respaldo)
+				respaldados++;
+			if ((respaldo ? prediccionKNN : prediccionNP) == clase)
+				aciertosCascada++;
+			if (prediccionKNN == clase)
+				aciertosVecinos++;
+			if (prediccionNP == clase)
+				aciertosPrototipos++;
+			nanosCascada += nanosNP + (respaldo ? nanosKNN : 0);
+			nanosVecinos += nanosKNN;
+		}
+		int n = Math.max(evaluadas, 1);
+		tasaRespaldo = respaldados / (double) n;
+		precisionCascada = aciertosCascada / (double) n;
+		precisionVecinos = aciertosVecinos / (double) n;
+		precisionPrototipos = aciertosPrototipos / (double) n;
+		tiempoCascada = nanosCascada / (double) n;
+		tiempoVecinos = nanosVecinos / (double) n;
+		return informe();
+	}
+
+	/**
+	 * Elige la menor confianza con la que la precision de la cascada sobre
+	 * las instancias etiquetadas no baja mas de perdidaMaxima respecto a la de
+	 * FuzzyKNN, es decir, la que responde mas consultas con FuzzyNP sin perder
+	 * precision, y la fija con setConfianza.
+	 *
+	 * @return la confianza elegida
+	 */
+	public double calibrar(Instances datos, double perdidaMaxima) throws Exception {
+		int n = 0, aciertosVecinos = 0;
+		double maximos[] = new double[datos.numInstances()];
+		int aciertoNP[] = new int[maximos.length], aciertoKNN[] = new int[maximos.length];
+		for (int i = 0; i < datos.numInstances(); i++) {
+			Instance instancia = datos.instance(i);
+			if (instancia.classIsMissing())
+				continue;
+			int clase = (int) instancia.classValue();
+			double uNP[] = prototipos.distributionForInstance(instancia);
+			maximos[n] = uNP[Utils.maxIndex(uNP)];
+			aciertoNP[n] = Utils.maxIndex(uNP) == clase ? 1 : 0;
+			aciertoKNN[n] = Utils.maxIndex(vecinos.distributionForInstance(instancia)) == clase ? 1 : 0;
+			aciertosVecinos += aciertoKNN[n];
+			n++;
+		}
+		// Recorre las confianzas candidatas (las mayores pertenencias) de mayor a
+		// menor; con la confianza maximos[orden[r]] FuzzyNP responde a orden[r..n-1]
+		int orden[] = Utils.sort(Arrays.copyOf(maximos, n));
+		double elegida = n == 0 ? confianza : Math.nextUp(maximos[orden[n - 1]]);
+		int aciertos = aciertosVecinos;
+		for (int r = n - 1; r >= 0; r--) {
+			int i = orden[r];
+			aciertos += aciertoNP[i] - aciertoKNN[i];
+			// Con empates solo vale la ultima posicion del grupo
+			if (r > 0 && maximos[orden[r - 1]] == maximos[i])
+				continue;
+			if (aciertos >= aciertosVecinos - perdidaMaxima * n)
+				elegida = maximos[i];
+		}
+		setConfianza(elegida);
+		return elegida;
+	}
+
+	public double getTasaRespaldoEvaluacion() {
+		return tasaRespaldo;
+	}
+
+	public double getPrecisionCascada() {
+		return precisionCascada;
+	}
+
+	public double getPrecisionVecinos() {
+		return precisionVecinos;
+	}
+
+	public double getPrecisionPrototipos() {
+		return precisionPrototipos;
+	}
+
+	/** Resumen de la ultima evaluacion */
+	public String informe() {
+		return String.format("Cascada (confianza %.3f) sobre %d instancias: respaldo %.2f%%, "
+				+ "precision %.4f (FuzzyKNN %.4f, FuzzyNP %.4f), %.1f us/instancia (FuzzyKNN %.1f us, %.1fx)",
+				confianza, evaluadas, tasaRespaldo * 100, precisionCascada, precisionVecinos, precisionPrototipos,
+				tiempoCascada / 1000, tiempoVecinos / 1000, tiempoVecinos / Math.max(tiempoCascada, 1));
+	}
+}
@@ -1,43 +1,73 @@
+import java.io.File;
+import java.util.Arrays;
+
 import weka.classifiers.*;
 import weka.core.Instances;
 import weka.core.Instance;
+import weka.core.NormalizableDistance;
 import weka.core.Utils;
 
 /**
  * Clase que implementa el algoritmo fuzzy kNN de Keller. Keller, J. M., Gray,
  * M. R., & Givens, J. A. (1985). A fuzzy k-nearest neighbor algorithm. IEEE
  * transactions on systems, man, and cybernetics, (4), 580-585.
- * 
+ *
+ * Es actualizable: updateClassifier añade instancias al conjunto de referencia
+ * sin reconstruir el modelo.
+ *
+ * Con setFueraDelHeap el conjunto de referencia se guarda en un
+ * AlmacenReferencias, fuera del heap, en lugar de en una copia Instances, y
+ * las busquedas leen de el directamente; el modelo es el mismo.
+ *
  * @author Eva Gibaja
  */
-public class FuzzyKNN extends Classifier {
+public class FuzzyKNN extends Classifier implements UpdateableClassifier {
 
 	private static final long serialVersionUID = 1L;
 
 	/** Instancias */
 	protected Instances dataset;
-	/** Tamao del vecindario */
+	/** Tamaño del vecindario */
 	protected int k;
 	/** Matriz de particion de num_clases x num_instances */
 	protected double U[][];
-	/** Tamao del vecindario para la inicializacin de la matriz U */
+	/** Tamaño del vecindario para la inicialización de la matriz U */
 	protected int kini;
 	/** Exponente fuzzy */
 	protected double m;
 	/** Tipos de inicializacion */
 	protected int ini;
+	/**
+	 * Distancia de cada instancia a su kini-esimo vecino (solo con ini=2).
+	 * Permite saber a que instancias afecta una nueva en updateClassifier
+	 */
+	protected double radioKini[];
 	/** Para hacer las busquedas de vecinos */
 	LinearNNESearch S;
 	/** Tolearancia para comparar flotantes */
 	protected double e = 0.0000001;
+	/** Si es true se condensa el conjunto de referencia en buildClassifier */
+	protected boolean condensar = false;
+	/** Fraccion de instancias eliminadas por la condensacion */
+	protected double reduccion;
+	/** Precision sobre el entrenamiento antes y despues de condensar */
+	protected double precisionAntes, precisionDespues;
+	/** Si es true el conjunto de referencia se guarda fuera del heap */
+	protected boolean fueraDelHeap = false;
+	/** Directorio de los ficheros de soporte fuera del heap, o null para memoria directa */
+	protected File directorioReferencias;
+	/** Conjunto de referencia fuera del heap; dataset queda entonces sin instancias */
+	protected AlmacenReferencias almacen;
+	/** Sobremuestreo del cribado cuantizado de LinearNNESearch; 0 busca exacto */
+	protected int cribado = 0;
 
 	/**
 	 * Constructor.
 	 * 
 	 * @param k
-	 *            nmero de vecinos
+	 *            número de vecinos
 	 * @param m
-	 *            Permite ponderar los vecinos ms cercanos. Cuanto mas cercano es
+	 *            Permite ponderar los vecinos más cercanos. Cuanto mas cercano es
 	 *            este valor a 1, mas influencia tienen los vecinos mas cercanos.
 	 *            Usualmente se suele considerar m=2
 	 * @param ini
@@ -50,19 +80,180 @@ public class FuzzyKNN extends Classifier {
 		this.kini = k; // Por defecto kini = k
 	}
 
+	/**
+	 * Activa la condensacion del conjunto de referencia tras calcular U. Reduce
+	 * el coste de cada consulta a cambio de una pequeña perdida de precision.
+	 * Tiene mas sentido con ini=2, ya que U ordena las instancias de la
+	 * frontera al interior.
+	 */
+	public void setCondensar(boolean condensar) {
+		this.condensar = condensar;
+	}
+
+	public boolean getCondensar() {
+		return condensar;
+	}
+
+	/** Fraccion del conjunto de entrenamiento eliminada al condensar */
+	public double getReduccion() {
+		return reduccion;
+	}
+
+	/** Diferencia de precision (despues - antes) sobre el entrenamiento */
+	public double getDeltaPrecision() {
+		return precisionDespues - precisionAntes;
+	}
+
+	/** Resumen de la ultima condensacion */
+	public String informeCondensacion() {
+		return String.format("Condensacion: %d instancias conservadas, reduccion %.2f%% (%.1fx), "
+				+ "precision %.4f -> %.4f (delta %+.4f)", numReferencias(), reduccion * 100,
+				1.0 / (1.0 - reduccion), precisionAntes, precisionDespues, getDeltaPrecision());
+	}
+
+	/**
+	 * Guarda el conjunto de referencia fuera del heap en lugar de copiarlo en
+	 * un Instances. Util con decenas de millones de instancias, para que el
+	 * recolector no tenga que recorrerlas.
+	 */
+	public void setFueraDelHeap(boolean fueraDelHeap) {
+		this.fueraDelHeap = fueraDelHeap;
+	}
+
+	/**
+	 * Guarda el conjunto de referencia fuera del heap en un fichero temporal
+	 * de este directorio, proyectado en memoria, en lugar de en memoria
+	 * directa. Cada entrenamiento usa su propio fichero, que se borra al
+	 * salir.
+	 */
+	public void setDirectorioReferencias(File directorio) {
+		this.directorioReferencias = directorio;
+		if (directorio != null)
+			fueraDelHeap = true;
+	}
+
+	/**
+	 * Busca los vecinos con el cribado cuantizado de LinearNNESearch: una
+	 * pasada por una copia de un byte por atributo elige k * sobremuestreo
+	 * candidatos y solo estos se ordenan con la distancia exacta. Se aplica a
+	 * las consultas y a las busquedas de la inicializacion y de
+	 * updateClassifier. Con 0 (por defecto) las busquedas son exactas.
+	 */
+	public void setCribado(int sobremuestreo) {
+		this.cribado = sobremuestreo;
+		if (S != null)
+			S.setCribado(sobremuestreo);
+	}
+
+	public int getCribado() {
+		return cribado;
+	}
+
+	/** Numero de instancias de referencia */
+	protected int numReferencias() {
+		return almacen != null ? almacen.numFilas() : dataset.numInstances();
+	}
+
+	/** Clase de la instancia de referencia j */
+	protected double claseReferencia(int j) {
+		return almacen != null ? almacen.clase(j) : dataset.instance(j).classValue();
+	}
+
+	/** Conjunto de referencia; si esta fuera del heap se copia en un Instances */
+	public Instances getReferencias() {
+		return almacen != null ? almacen.toInstances() : dataset;
+	}
+
 	@Override
 	public void buildClassifier(Instances instancias) throws Exception {
-		dataset = new Instances(instancias);
-
-		S = new LinearNNESearch(dataset);
+		if (fueraDelHeap) {
+			dataset = new Instances(instancias, 0);
+			almacen = AlmacenReferencias.copiar(instancias, AlmacenReferencias.ficheroTemporal(directorioReferencias));
+			S = new LinearNNESearch(almacen);
+		} else {
+			dataset = new Instances(instancias);
+			almacen = null;
+			S = new LinearNNESearch(dataset);
+		}
 		S.setSkipIdentical(true); //para evitar problemas porque la distancia se haga cero
+		S.setCribado(cribado);
 
-		U = new double[dataset.numClasses()][dataset.numInstances()];
+		U = new double[dataset.numClasses()][numReferencias()];
+		radioKini = new double[numReferencias()];
 		if (ini == 1)
 			inicializacionCrisp();
 		else
 			inicializacionFuzzy();
 		// printU();
+
+		if (condensar)
+			condensacion();
+	}
+
+	/**
+	 * Añade una instancia al conjunto de referencia sin reconstruir el modelo.
+	 * Con ini=2 solo se recalculan las pertenencias de la nueva instancia y de
+	 * aquellas instancias en cuyo vecindario de tamaño kini entra la nueva. Si
+	 * la nueva instancia amplia el rango de algun atributo cambian todas las
+	 * distancias normalizadas, y con ellas cualquier vecindario, asi que se
+	 * recalculan todas las pertenencias. Sin condensacion el modelo es el
+	 * mismo que el de buildClassifier con todas las instancias. Con
+	 * condensacion las actualizaciones trabajan sobre el conjunto condensado:
+	 * las columnas de U que se recalculan usan vecindarios del conjunto
+	 * condensado, y las demas siguen siendo las de buildClassifier.
+	 *
+	 * @param instancia
+	 *            la nueva instancia etiquetada
+	 */
+	@Override
+	public void updateClassifier(Instance instancia) throws Exception {
+		if (instancia.classIsMissing())
+			return;
+
+		if (almacen != null)
+			almacen.agregar(instancia);
+		else
+			dataset.add(instancia);
+		// Actualiza los rangos de la funcion de distancia
+		double rangos[][] = ini == 1 ? null : rangos();
+		S.update(instancia);
+
+		int n = numReferencias();
+		if (n > U[0].length)
+			ampliarCapacidad(Math.max(n, 2 * U[0].length));
+
+		int nueva = n - 1;
+		if (ini == 1) {
+			U[(int) claseReferencia(nueva)][nueva] = 1.0;
+			return;
+		}
+
+		if (!Arrays.deepEquals(rangos, rangos())) {
+			inicializacionFuzzy();
+			return;
+		}
+
+		// Instancias existentes cuyo vecindario cambia al llegar la nueva
+		int existentes[] = new int[nueva];
+		for (int j = 0; j < nueva; j++)
+			existentes[j] = j;
+		double distancias[] = S.distancias(nueva, existentes, nueva);
+		for (int j = 0; j < nueva; j++) {
+			double d = distancias[j];
+			// Las instancias identicas se ignoran en la busqueda (skipIdentical)
+			if (d > 0.0 && d <= radioKini[j])
+				inicializacionFuzzy(j);
+		}
+		inicializacionFuzzy(nueva);
+	}
+
+	/** Copia de los rangos de la funcion de distancia */
+	private double[][] rangos() throws Exception {
+		double rangos[][] = ((NormalizableDistance) S.getDistanceFunction()).getRanges();
+		double copia[][] = new double[rangos.length][];
+		for (int a = 0; a < rangos.length; a++)
+			copia[a] = rangos[a].clone();
+		return copia;
 	}
 
 	@Override
@@ -82,8 +273,8 @@ public class FuzzyKNN extends Classifier {
 	 */
 	private void inicializacionCrisp() {
 		// U[i][j] es 1 si la instancia j predice la clase
-		for (int j = 0; j < dataset.numInstances(); j++) {
-			U[(int) dataset.instance(j).classValue()][j] = 1.0;
+		for (int j = 0; j < numReferencias(); j++) {
+			U[(int) claseReferencia(j)][j] = 1.0;
 		}
 	}
 
@@ -93,30 +284,202 @@ public class FuzzyKNN extends Classifier {
 	 */
 	private void inicializacionFuzzy() throws Exception {
 
-		for (int j = 0; j < dataset.numInstances(); j++) {
-			// Seleccionamos los kini vecinos de la instancia j
-			Instances kNN = S.kNearestNeighbours(dataset.instance(j), kini);
+		for (int j = 0; j < numReferencias(); j++) {
+			inicializacionFuzzy(j);
+		}
+	}
+
+	/**
+	 * Calcula la columna U[_][j] a partir de los kini vecinos de la instancia j
+	 * y guarda la distancia al kini-esimo vecino en radioKini[j].
+	 *
+	 * @param j
+	 *            indice de la instancia en el dataset
+	 */
+	private void inicializacionFuzzy(int j) throws Exception {
+		// Seleccionamos los kini vecinos de la instancia j
+		int kNN[] = S.kNearestNeighboursIndices(j, kini);
+		double distancias[] = S.getDistances();
+
+		// Recorre los vecinos y calcular cuantos vecinos
+		// pertenecen a cada clase
+		int count[] = new int[dataset.numClasses()];
+		for (int i = 0; i < kini; i++) {
+			// RELLENAR: Incrementar count teniendo en cuenta el classValue del vecino i
+			count[(int) claseReferencia(kNN[i])]++;
+		}
+		radioKini[j] = distancias[distancias.length - 1];
+
+		// Recorre los kini vecinos para dar el valor de la inicializacion de U[_][j]
+		int clase = (int) claseReferencia(j);
+		for (int i = 0; i < dataset.numClasses(); i++) {
+			double valor = (count[i] / (kini * 1.0)) * 0.49;
+			if (i == clase)
+				// RELLENAR: Actualiar U[i][j]
+				U[i][j] = 0.51 + valor;
+			else
+				// RELLENAR: Actualiar U[i][j]
+				U[i][j] = valor;
+		}
+	}
+
+	/**
+	 * Amplia U y radioKini para poder almacenar mas instancias.
+	 *
+	 * @param capacidad
+	 *            nuevo numero de columnas
+	 */
+	private void ampliarCapacidad(int capacidad) {
+		for (int i = 0; i < U.length; i++)
+			U[i] = Arrays.copyOf(U[i], capacidad);
+		radioKini = Arrays.copyOf(radioKini, capacidad);
+	}
+
+	/**
+	 * Condensa el conjunto de referencia con la regla de Hart (condensed NN)
+	 * guiada por U: las instancias se recorren de menor a mayor pertenencia a
+	 * su propia clase, de modo que las de frontera entran primero, y solo se
+	 * conserva una instancia si el fuzzy kNN sobre las ya conservadas la
+	 * clasifica mal. Las instancias interiores, casi crisp y de acuerdo con sus
+	 * vecinos, quedan fuera. Se conservan sus columnas de U y se recalculan
+	 * reduccion, precisionAntes y precisionDespues. Con ini=2 radioKini se
+	 * recalcula sobre el conjunto condensado, que es el que usa
+	 * updateClassifier para decidir que vecindarios cambian.
+	 */
+	private void condensacion() throws Exception {
+		int n = numReferencias();
+		if (n <= k)
+			return;
+
+		// Orden de recorrido: primero las instancias de frontera
+		Integer orden[] = new Integer[n];
+		for (int j = 0; j < n; j++)
+			orden[j] = j;
+		Arrays.sort(orden, (a, b) -> Double.compare(pertenenciaPropia(a), pertenenciaPropia(b)));
 
-			// Recorre los vecinos y calcular cuantos vecinos
-			// pertenecen a cada clase
-			int count[] = new int[dataset.numClasses()];
-			for (int i = 0; i < kini; i++) {
-				// RELLENAR: Incrementar count teniendo en cuenta el classValue del vecino i
-				count[(int) kNN.instance(i).classValue()]++;
+		boolean enReferencia[] = new boolean[n];
+		int referencia[] = new int[n];
+		int nRef = 0;
+		boolean cambios = true;
+		while (cambios) {
+			cambios = false;
+			for (int p = 0; p < n; p++) {
+				int j = orden[p];
+				if (enReferencia[j])
+					continue;
+				if (nRef < k || predecir(j, referencia, nRef) != (int) claseReferencia(j)) {
+					enReferencia[j] = true;
+					referencia[nRef++] = j;
+					cambios = true;
+				}
 			}
+		}
+
+		int todas[] = new int[n];
+		for (int j = 0; j < n; j++)
+			todas[j] = j;
+		precisionAntes = precision(todas, n);
+		precisionDespues = precision(referencia, nRef);
+		reduccion = 1.0 - nRef / (n * 1.0);
+
+		// Mantiene el orden original del dataset en el conjunto condensado
+		Arrays.sort(referencia, 0, nRef);
+		double Uc[][] = new double[dataset.numClasses()][nRef];
+		for (int r = 0; r < nRef; r++) {
+			int j = referencia[r];
+			for (int i = 0; i < dataset.numClasses(); i++)
+				Uc[i][r] = U[i][j];
+		}
+		U = Uc;
+		if (almacen != null) {
+			// El conjunto condensado, mas pequeño, queda en memoria directa
+			almacen = almacen.subconjunto(referencia, nRef);
+			S = new LinearNNESearch(almacen);
+		} else {
+			Instances condensado = new Instances(dataset, nRef);
+			for (int r = 0; r < nRef; r++)
+				condensado.add(dataset.instance(referencia[r]));
+			dataset = condensado;
+			S = new LinearNNESearch(dataset);
+		}
+		S.setSkipIdentical(true);
+		S.setCribado(cribado);
+		radioKini = new double[nRef];
+		if (ini != 1)
+			for (int r = 0; r < nRef; r++)
+				radioKini[r] = radio(r);
+	}
+
+	/**
+	 * Distancia de la instancia j a su kini-esimo vecino, o infinito si tiene
+	 * menos de kini vecinos
+	 */
+	private double radio(int j) throws Exception {
+		S.kNearestNeighboursIndices(j, kini);
+		double distancias[] = S.getDistances();
+		return distancias.length < kini ? Double.POSITIVE_INFINITY : distancias[distancias.length - 1];
+	}
 
-			// Recorre los kini vecinos para dar el valor de la inicializacion de U[_][j]
-			int clase = (int) dataset.instance(j).classValue(); 
-			for (int i = 0; i < dataset.numClasses(); i++) {
-				double valor = (count[i] / (kini * 1.0)) * 0.49;
-				if (i == clase)
-					// RELLENAR: Actualiar U[i][j]
-					U[i][j] = 0.51 + valor;
-				else
-					// RELLENAR: Actualiar U[i][j]
-					U[i][j] = valor;
+	/** Pertenencia de la instancia j a su propia clase */
+	private double pertenenciaPropia(int j) {
+		return U[(int) claseReferencia(j)][j];
+	}
+
+	/**
+	 * Clase predicha por el fuzzy kNN para la instancia j usando como
+	 * referencia solo las instancias indicadas. Se ignoran la propia instancia
+	 * y las identicas, igual que en la busqueda con skipIdentical.
+	 *
+	 * @param j
+	 *            indice de la instancia a clasificar
+	 * @param referencia
+	 *            indices de las instancias de referencia
+	 * @param nRef
+	 *            numero de posiciones validas en referencia
+	 */
+	private int predecir(int j, int referencia[], int nRef) throws Exception {
+		double aReferencia[] = S.distancias(j, referencia, nRef);
+
+		// k mejores vecinos ordenados por distancia creciente
+		int indices[] = new int[k];
+		double distancias[] = new double[k];
+		int nVecinos = 0;
+		for (int r = 0; r < nRef; r++) {
+			int v = referencia[r];
+			if (v == j)
+				continue;
+			double d = aReferencia[r];
+			if (d == 0.0 || (nVecinos == k && d >= distancias[k - 1]))
+				continue;
+			int pos = nVecinos < k ? nVecinos++ : k - 1;
+			while (pos > 0 && distancias[pos - 1] > d) {
+				distancias[pos] = distancias[pos - 1];
+				indices[pos] = indices[pos - 1];
+				pos--;
 			}
+			distancias[pos] = d;
+			indices[pos] = v;
+		}
+
+		double u[] = new double[dataset.numClasses()];
+		for (int v = 0; v < nVecinos; v++) {
+			double aux = 1.0 / Math.pow(distancias[v], 2.0 / (m - 1));
+			for (int i = 0; i < u.length; i++)
+				u[i] += U[i][indices[v]] * aux;
 		}
+		return Utils.maxIndex(u);
+	}
+
+	/**
+	 * Precision (hold-one-out) sobre todo el dataset usando como referencia
+	 * solo las instancias indicadas.
+	 */
+	private double precision(int referencia[], int nRef) throws Exception {
+		int aciertos = 0;
+		for (int j = 0; j < numReferencias(); j++)
+			if (predecir(j, referencia, nRef) == (int) claseReferencia(j))
+				aciertos++;
+		return aciertos / (numReferencias() * 1.0);
 	}
 
 	public double[] calcularu(Instance instancia) throws Exception {
@@ -150,9 +513,9 @@ public class FuzzyKNN extends Classifier {
 	/** Imprimie la matriz de pertenencias U */
 	public void printU() {
 		System.out.println(
-				"Printing U\t numClasses:" + dataset.numClasses() + "\tnumInstances:" + dataset.numInstances());
+				"Printing U\t numClasses:" + dataset.numClasses() + "\tnumInstances:" + numReferencias());
 		for (int i = 0; i < dataset.numClasses(); i++) {
-			for (int j = 0; j < dataset.numInstances(); j++)
+			for (int j = 0; j < numReferencias(); j++)
 				System.out.print(U[i][j] + " ");
 			System.out.println();
 		}
@@ -1,17 +1,27 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
 import weka.core.Instances;
 import weka.core.Utils;
 import weka.core.Instance;
-import weka.core.neighboursearch.LinearNNSearch;
+import weka.core.EuclideanDistance;
 
 /**
  * Clase que implementa el algoritmo Fuzzy Nearest Prototype de Keller. Keller,
  * J. M., Gray, M. R., & Givens, J. A. (1985). A fuzzy k-nearest neighbor
  * algorithm. IEEE transactions on systems, man, and cybernetics, (4), 580-585.
  * 
+ * Los prototipos se entrenan en una pasada y se pueden actualizar con
+ * updateClassifier instancia a instancia.
+ * 
  * @author Eva Gibaja
  */
-public class FuzzyNP extends Classifier {
+public class FuzzyNP extends Classifier implements UpdateableClassifier {
 
 	private static final long serialVersionUID = 2710434235579627719L;
 	/** Prototipos de las clases del dataset */
@@ -21,11 +31,31 @@ public class FuzzyNP extends Classifier {
 	/** Tolearancia para comparar flotantes */
 	protected double e = 0.0000001;
 
+	// Prototipos compilados en buildClassifier para puntuar sin LinearNNSearch
+	/** Indices de los atributos que intervienen en la distancia (sin la clase) */
+	protected int atributos[];
+	/** true si el atributo atributos[a] es nominal */
+	protected boolean nominal[];
+	/** Minimo de cada atributo numerico en los prototipos */
+	protected double minimo[];
+	/** 1/(max-min) de cada atributo numerico, 0 si el rango es nulo */
+	protected double escala[];
+	/** Prototipos normalizados [num_clases][atributos.length] */
+	protected double centros[][];
+	/** Exponente aplicado a la distancia al cuadrado: 1/(m-1) */
+	protected double exponente;
+	/** Medias por clase acumuladas, para poder actualizar los prototipos */
+	protected AcumuladorWelford acumulador;
+	/** Hilos usados para acumular las medias en buildClassifier */
+	protected int numHilos = Runtime.getRuntime().availableProcessors();
+	/** Por debajo de este numero de instancias por particion no se paraleliza */
+	protected static final int MIN_POR_PARTICION = 10000;
+
 	/**
 	 * Constructor
 	 * 
 	 * @param m
-	 *            Permite ponderar los vecinos ms cercanos. Cuanto mas cercano es
+	 *            Permite ponderar los vecinos más cercanos. Cuanto mas cercano es
 	 *            este valor a 1, mas influencia tienen los vecinos mas cercanos.
 	 *            Usualmente se suele considerar m=2.
 	 */
@@ -33,61 +63,113 @@ public class FuzzyNP extends Classifier {
 		this.m = m;
 	}
 
+	/**
+	 * Numero de hilos con los que se entrena. Cada hilo acumula las medias de
+	 * una particion de las instancias y despues se combinan.
+	 */
+	public void setNumHilos(int numHilos) {
+		this.numHilos = numHilos;
+	}
+
+	public int getNumHilos() {
+		return numHilos;
+	}
+
 	@Override
 	public void buildClassifier(Instances dataset) throws Exception {
 
 		int classIndex = dataset.classIndex();
-		// Contabiliza cuantos patrones hay de cada clase
-		int classCount[] = new int[dataset.numClasses()];
 
 		// 1. RESERVA E INICIALIZA UN VECTOR DE PROTOTIPOS
 		// Genera dataset vacio
 		prototipos = new Instances(dataset, dataset.numClasses());
-		// Indica cual ser el classIndex
+		// Indica cual será el classIndex
 		prototipos.setClassIndex(classIndex);
 		for (int i = 0; i < dataset.numClasses(); i++) {
-			// Aade una instancia (un prototipo) por cada clase
+			// Añade una instancia (un prototipo) por cada clase
 			Instance instance = new Instance(dataset.numAttributes());
-			// Inicializa los atributos de la instancia a 0
-			for (int j = 0; j < dataset.numAttributes(); j++)
-				if (j == classIndex)
-					// Asigna el valor de clase
-					instance.setValue(j, i);
-				else
-					// Inicializa el valor del atributo a 0
-					instance.setValue(j, 0.0);
+			// Asigna el valor de clase; el resto de atributos se rellena en el paso 3
+			instance.setValue(classIndex, i);
 			prototipos.add(instance);
-
 		}
+		atributos = new int[dataset.numAttributes() - 1];
+		int a = 0;
+		for (int j = 0; j < dataset.numAttributes(); j++)
+			if (j != classIndex)
+				atributos[a++] = j;
 
-		// 2. RECORRE LOS PROTOTIPOS Y CALCULA EL VALOR MEDIO
-		for (int i = 0; i < dataset.numInstances(); i++) {
-			// incrementa el contador de la clase
-			int classValue = (int) dataset.instance(i).classValue();
-			classCount[classValue]++;
-			// actualiza la suma de valores para cada atributo
-			for (int j = 0; j < dataset.numAttributes(); j++) {
-				if (j != classIndex) {
-					double valor1 = dataset.instance(i).value(j);
-					double valor2 = prototipos.instance(classValue).value(j);
-					prototipos.instance(classValue).setValue(j, valor1 + valor2);
-				}
-			}
-		}
+		// 2. ACUMULA LAS MEDIAS DE CADA CLASE EN UNA PASADA, EN PARALELO
+		acumulador = acumular(dataset);
 
-		// 3. CALCULA EL VALOR MEDIO
-		for (int i = 0; i < prototipos.numInstances(); i++) {
-			for (int j = 0; j < prototipos.numAttributes(); j++) {
-				if (j != classIndex) {
+		// 3. COPIA LAS MEDIAS A LOS PROTOTIPOS Y LOS COMPILA PARA PUNTUAR
+		for (int i = 0; i < prototipos.numInstances(); i++)
+			actualizarPrototipo(i);
+		compilarPrototipos();
+	}
 
-					// RELLENAR: Calcular el valor medio
-					double valorMedio = prototipos.instance(i).value(j) / (classCount[i] * 1.0);
-					// RELLENAR: Actualizar el valor delatributo en el prototipo
-					prototipos.instance(i).setValue(j, valorMedio);
-				}
+	/**
+	 * Actualiza el prototipo de la clase de la instancia en O(d) y vuelve a
+	 * normalizar los prototipos compilados.
+	 *
+	 * @param instancia
+	 *            la nueva instancia etiquetada
+	 */
+	@Override
+	public void updateClassifier(Instance instancia) throws Exception {
+		if (instancia.classIsMissing())
+			return;
+		int clase = (int) instancia.classValue();
+		acumulador.agregar(clase, instancia, atributos);
+		actualizarPrototipo(clase);
+		compilarPrototipos();
+	}
+
+	/**
+	 * Acumula las medias por clase de todas las instancias, repartidas en
+	 * numHilos particiones contiguas que se combinan al final.
+	 */
+	private AcumuladorWelford acumular(Instances dataset) throws Exception {
+		int n = dataset.numInstances();
+		int particiones = Math.max(1, Math.min(numHilos, n / MIN_POR_PARTICION));
+		if (particiones == 1)
+			return acumular(dataset, 0, n);
+
+		ExecutorService hilos = Executors.newFixedThreadPool(particiones);
+		try {
+			List<Future<AcumuladorWelford>> parciales = new ArrayList<>();
+			for (int p = 0; p < particiones; p++) {
+				int desde = (int) ((long) n * p / particiones);
+				int hasta = (int) ((long) n * (p + 1) / particiones);
+				parciales.add(hilos.submit(() -> acumular(dataset, desde, hasta)));
 			}
+			AcumuladorWelford resultado = parciales.get(0).get();
+			for (int p = 1; p < particiones; p++)
+				resultado.combinar(parciales.get(p).get());
+			return resultado;
+		} finally {
+			hilos.shutdown();
+		}
+	}
+
+	/** Acumula las medias por clase de las instancias [desde, hasta) */
+	private AcumuladorWelford acumular(Instances dataset, int desde, int hasta) {
+		AcumuladorWelford parcial = new AcumuladorWelford(dataset.numClasses(), atributos.length);
+		for (int i = desde; i < hasta; i++) {
+			Instance instancia = dataset.instance(i);
+			if (!instancia.classIsMissing())
+				parcial.agregar((int) instancia.classValue(), instancia, atributos);
 		}
+		return parcial;
+	}
 
+	/**
+	 * Copia al prototipo de la clase las medias del acumulador. Un atributo sin
+	 * ningun valor en la clase queda como ausente.
+	 */
+	private void actualizarPrototipo(int clase) {
+		Instance prototipo = prototipos.instance(clase);
+		for (int a = 0; a < atributos.length; a++)
+			prototipo.setValue(atributos[a], acumulador.media(clase, a));
 	}
 
 	@Override
@@ -108,43 +190,108 @@ public class FuzzyNP extends Classifier {
 	 * Calcula el vector de pertenencia difusa para una determinada instancia.
 	 * 
 	 * @param instancia
-	 *            La instancia para la que se calcular el vector de pertenencia
+	 *            La instancia para la que se calculará el vector de pertenencia
 	 */
 	private double[] calcularu(Instance instancia) throws Exception {
+		double u[] = new double[centros.length];
+		calcularu(instancia, u);
+		return (u);
+	}
 
-		// Busqueda de vecinos para poder tener la distancia de la instancia a
-		// cada prototipo
-		LinearNNSearch S = new LinearNNSearch(prototipos);
-		S.setSkipIdentical(true);
-		Instances knn = S.kNearestNeighbours(instancia, prototipos.numInstances());
-		double distancias[] = S.getDistances();
-
-		// Calcula la suma de las distancias del punto a todos los prototipos
+	/**
+	 * Calcula el vector de pertenencia de una instancia sobre un vector ya
+	 * reservado, sin crear objetos. Las distancias son las de EuclideanDistance
+	 * normalizada con los rangos de los prototipos, como hacia LinearNNSearch.
+	 * 
+	 * @param instancia
+	 *            La instancia para la que se calculará el vector de pertenencia
+	 * @param u
+	 *            vector de num_clases posiciones donde se dejan las pertenencias
+	 */
+	public void calcularu(Instance instancia, double u[]) {
 		double suma_den = 0.0;
-		for (int i = 0; i < distancias.length; i++) {
-			// RELLENAR: Actualizar suma_den utilizando distancias[i]
-			suma_den += 1.0 / Math.pow(distancias[i], 2.0 / (m - 1));
+		for (int c = 0; c < centros.length; c++) {
+			double centro[] = centros[c];
+			// Distancia al cuadrado al prototipo c
+			double d2 = 0.0;
+			for (int a = 0; a < atributos.length; a++) {
+				double valor = instancia.value(atributos[a]);
+				boolean faltaValor = Instance.isMissingValue(valor);
+				boolean faltaCentro = Instance.isMissingValue(centro[a]);
+				double diff;
+				if (nominal[a])
+					diff = (faltaValor || faltaCentro || (int) valor != (int) centro[a]) ? 1.0 : 0.0;
+				else if (faltaValor && faltaCentro)
+					diff = 1.0;
+				else {
+					// Con un solo valor ausente se toma la mayor diferencia posible
+					double norm = faltaValor ? centro[a] : (valor - minimo[a]) * escala[a];
+					if (faltaValor || faltaCentro)
+						diff = norm < 0.5 ? 1.0 - norm : norm;
+					else
+						diff = norm - centro[a];
+				}
+				d2 += diff * diff;
+			}
+			// CASO ESPECIAL: Si la distancia es 0 la pertenencia es total
+			if (d2 < e * e) {
+				for (int i = 0; i < u.length; i++)
+					u[i] = 0.0;
+				u[c] = 1.0;
+				return;
+			}
+			// distancia^(2/(m-1)) = d2^(1/(m-1))
+			u[c] = 1.0 / Math.pow(d2, exponente);
+			suma_den += u[c];
 		}
+		for (int c = 0; c < u.length; c++)
+			u[c] /= suma_den;
+	}
+
+	/**
+	 * Calcula las pertenencias de todas las instancias de un conjunto.
+	 * 
+	 * @param instancias
+	 *            instancias a puntuar, con la misma cabecera que el entrenamiento
+	 * @return matriz [num_instancias][num_clases] de pertenencias
+	 */
+	public double[][] distributionsForInstances(Instances instancias) {
+		double u[][] = new double[instancias.numInstances()][centros.length];
+		for (int i = 0; i < instancias.numInstances(); i++)
+			calcularu(instancias.instance(i), u[i]);
+		return u;
+	}
 
-		// Crea y da valor al vector de pertenenecias
-		double u[] = new double[prototipos.numInstances()];
-		for (int i = 0; i < knn.numInstances(); i++) {
-			// Al estar ordenados de acuerdo a la distancia, los class value
-			// estan desordenados
-			int classValue = (int) knn.instance(i).classValue();
-			// CASO ESPECIAL: Si distancias[i]==0 u[i]=1 (la pertenencia es total)
-			//if (distancias[i] < e) {
-			//	u[classValue] = 1;
-			//} else
-			{
-				// RELLENAR: Calcular el numerador
-				double num = 1 / Math.pow(distancias[i], 2.0 / (m - 1));
-				// RELLENAR: Actualizar u[classValue]
-				u[classValue] = num / suma_den;
+	/**
+	 * Compila los prototipos en una matriz de primitivos ya normalizada con los
+	 * rangos que EuclideanDistance calcula sobre los prototipos.
+	 */
+	private void compilarPrototipos() throws Exception {
+		double rangos[][] = new EuclideanDistance(prototipos).getRanges();
+
+		nominal = new boolean[atributos.length];
+		minimo = new double[atributos.length];
+		escala = new double[atributos.length];
+		for (int a = 0; a < atributos.length; a++) {
+			int j = atributos[a];
+			nominal[a] = prototipos.attribute(j).isNominal();
+			double ancho = rangos[j][EuclideanDistance.R_WIDTH];
+			if (!nominal[a] && !Double.isNaN(rangos[j][EuclideanDistance.R_MIN])
+					&& rangos[j][EuclideanDistance.R_MAX] != rangos[j][EuclideanDistance.R_MIN]) {
+				minimo[a] = rangos[j][EuclideanDistance.R_MIN];
+				escala[a] = 1.0 / ancho;
 			}
 		}
 
-		return (u);
+		centros = new double[prototipos.numInstances()][atributos.length];
+		for (int c = 0; c < prototipos.numInstances(); c++) {
+			Instance prototipo = prototipos.instance(c);
+			for (int a = 0; a < atributos.length; a++) {
+				double valor = prototipo.value(atributos[a]);
+				centros[(int) prototipo.classValue()][a] = nominal[a] ? valor : (valor - minimo[a]) * escala[a];
+			}
+		}
+		exponente = 1.0 / (m - 1);
 	}
 
 }
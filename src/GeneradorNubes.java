@@ -0,0 +1,285 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Generador de conjuntos de datos sinteticos como S1: nubes gaussianas con
+ * centros uniformes en [0, escala)^d. Los puntos se generan uno a uno a partir
+ * de una semilla, asi que se pueden escribir en CSV, ARFF o binario con
+ * memoria constante, desde miles hasta cientos de millones de filas.
+ *
+ * El solapamiento es la desviacion de cada nube dividida por la separacion
+ * tipica entre centros, escala / c^(1/d). S1 tiene un solapamiento de 0.1
+ * aproximadamente.
+ *
+ * El fichero de etiquetas sigue el formato de s1-label.csv: una etiqueta por
+ * linea, empezando en 1 y sin cabecera.
+ *
+ * El formato binario es el de CacheColumnar, asi que el fichero .fwc se carga
+ * con CacheColumnar.cargar o abrir como cualquier conjunto de datos (hasta
+ * 2^28 filas).
+ */
+public class GeneradorNubes {
+
+	/** Numero de dimensiones */
+	protected int d;
+	/** Numero de nubes */
+	protected int c;
+	/** Desviacion de cada nube relativa a la separacion entre centros */
+	protected double solapamiento;
+	/** Lado del hipercubo en el que se colocan los centros */
+	protected double escala;
+	/** Si es true las coordenadas se redondean a enteros, como en S1 */
+	protected boolean enteros;
+	/** Semilla de los centros */
+	protected long semilla;
+	/** Semilla de la secuencia de puntos */
+	protected long semillaPuntos;
+
+	/** Centros de las nubes [c][d] */
+	protected double centros[][];
+	/** Desviacion tipica de cada nube */
+	protected double sigma;
+	/** Generador de los puntos; se reinicia en cada escritura */
+	protected Random rand;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param d
+	 *            numero de dimensiones
+	 * @param c
+	 *            numero de nubes
+	 * @param solapamiento
+	 *            desviacion de cada nube relativa a la separacion entre centros
+	 * @param semilla
+	 *            semilla de los centros; la de los puntos es semilla + 1
+	 */
+	public GeneradorNubes(int d, int c, double solapamiento, long semilla) {
+		this.d = d;
+		this.c = c;
+		this.solapamiento = solapamiento;
+		this.semilla = semilla;
+		this.semillaPuntos = semilla + 1;
+		setEscala(1000000);
+	}
+
+	/** Lado del hipercubo de los centros (1e6 por defecto, como S1) */
+	public void setEscala(double escala) {
+		this.escala = escala;
+		Random r = new Random(semilla);
+		centros = new double[c][d];
+		for (int i = 0; i < c; i++)
+			for (int j = 0; j < d; j++)
+				centros[i][j] = r.nextDouble() * escala;
+		sigma = solapamiento * escala / Math.pow(c, 1.0 / d);
+		reiniciar();
+	}
+
+	/** Redondea las coordenadas a enteros, como en S1 */
+	public void setEnteros(boolean enteros) {
+		this.enteros = enteros;
+	}
+
+	/**
+	 * Cambia la semilla de los puntos sin mover los centros, por ejemplo para
+	 * generar un conjunto de test de la misma distribucion.
+	 */
+	public void setSemillaPuntos(long semillaPuntos) {
+		this.semillaPuntos = semillaPuntos;
+		reiniciar();
+	}
+
+	/** Vuelve a empezar la secuencia de puntos */
+	public void reiniciar() {
+		rand = new Random(semillaPuntos);
+	}
+
+	/**
+	 * Genera el siguiente punto.
+	 *
+	 * @param x
+	 *            vector de al menos d posiciones donde se deja el punto
+	 * @return la nube de la que procede, empezando en 0
+	 */
+	public int siguiente(double x[]) {
+		int nube = rand.nextInt(c);
+		for (int j = 0; j < d; j++) {
+			x[j] = centros[nube][j] + rand.nextGaussian() * sigma;
+			if (enteros)
+				x[j] = Math.rint(x[j]);
+		}
+		return nube;
+	}
+
+	/**
+	 * Genera n puntos en memoria.
+	 *
+	 * @param conClase
+	 *            si es true se añade la nube como atributo nominal de clase al
+	 *            final
+	 */
+	public Instances instancias(int n, boolean conClase) {
+		FastVector atributos = new FastVector(d + 1);
+		for (int j = 0; j < d; j++)
+			atributos.addElement(new Attribute("x" + (j + 1)));
+		if (conClase) {
+			FastVector nubes = new FastVector(c);
+			for (int i = 0; i < c; i++)
+				nubes.addElement("" + (i + 1));
+			atributos.addElement(new Attribute("label", nubes));
+		}
+		Instances datos = new Instances("nubes", atributos, n);
+		if (conClase)
+			datos.setClassIndex(d);
+
+		reiniciar();
+		for (int i = 0; i < n; i++) {
+			double valores[] = new double[datos.numAttributes()];
+			int nube = siguiente(valores);
+			if (conClase)
+				valores[d] = nube;
+			datos.add(new Instance(1.0, valores));
+		}
+		return datos;
+	}
+
+	/**
+	 * Escribe n puntos en CSV con cabecera x1,...,xd.
+	 *
+	 * @param etiquetas
+	 *            fichero de etiquetas al estilo s1-label.csv, o null
+	 */
+	public void escribirCSV(long n, File salida, File etiquetas) throws IOException {
+		try (Writer datos = new BufferedWriter(new FileWriter(salida), 1 << 16);
+				Writer labels = etiquetas == null ? null : new BufferedWriter(new FileWriter(etiquetas), 1 << 16)) {
+			StringBuilder linea = new StringBuilder();
+			for (int j = 0; j < d; j++)
+				linea.append(j == 0 ? "x" : ",x").append(j + 1);
+			datos.write(linea.append('\n').toString());
+			escribirFilas(n, datos, labels, -1);
+		}
+	}
+
+	/**
+	 * Escribe n puntos en ARFF.
+	 *
+	 * @param conClase
+	 *            si es true se incluye la nube como atributo nominal de clase
+	 */
+	public void escribirARFF(long n, File salida, boolean conClase) throws IOException {
+		try (Writer datos = new BufferedWriter(new FileWriter(salida), 1 << 16)) {
+			datos.write("@relation nubes\n\n");
+			for (int j = 0; j < d; j++)
+				datos.write("@attribute x" + (j + 1) + " numeric\n");
+			if (conClase) {
+				StringBuilder nubes = new StringBuilder();
+				for (int i = 0; i < c; i++)
+					nubes.append(i == 0 ? "" : ",").append(i + 1);
+				datos.write("@attribute label {" + nubes + "}\n");
+			}
+			datos.write("\n@data\n");
+			escribirFilas(n, datos, null, conClase ? d : -1);
+		}
+	}
+
+	/**
+	 * Escribe n puntos como cache de CacheColumnar (extension .fwc).
+	 *
+	 * @param conClase
+	 *            si es true se incluye la nube como atributo nominal de clase
+	 * @param etiquetas
+	 *            fichero de etiquetas al estilo s1-label.csv, o null
+	 */
+	public void escribirCache(long n, File salida, boolean conClase, File etiquetas) throws IOException {
+		try (Writer labels = etiquetas == null ? null : new BufferedWriter(new FileWriter(etiquetas), 1 << 16)) {
+			reiniciar();
+			CacheColumnar.escribir(instancias(0, conClase), n, x -> {
+				int nube = siguiente(x);
+				if (conClase)
+					x[d] = nube;
+				if (labels != null)
+					labels.write(Integer.toString(nube + 1) + '\n');
+			}, salida);
+		}
+	}
+
+	/**
+	 * Escribe las filas en texto separado por comas.
+	 *
+	 * @param columnaClase
+	 *            si es mayor o igual que 0 se añade la nube al final de la fila
+	 */
+	private void escribirFilas(long n, Writer datos, Writer labels, int columnaClase) throws IOException {
+		reiniciar();
+		double x[] = new double[d];
+		StringBuilder linea = new StringBuilder();
+		for (long i = 0; i < n; i++) {
+			int nube = siguiente(x);
+			linea.setLength(0);
+			for (int j = 0; j < d; j++) {
+				if (j > 0)
+					linea.append(',');
+				if (enteros)
+					linea.append((long) x[j]);
+				else
+					linea.append(x[j]);
+			}
+			if (columnaClase >= 0)
+				linea.append(',').append(nube + 1);
+			datos.append(linea).append('\n');
+			if (labels != null)
+				labels.write(Integer.toString(nube + 1) + '\n');
+		}
+	}
+
+	/**
+	 * Uso: java GeneradorNubes -n filas -d dimensiones -c nubes
+	 * [-solapamiento s] [-semilla s] [-escala e] [-enteros] [-formato csv|arff|fwc]
+	 * -o salida [-etiquetas fichero]
+	 */
+	public static void main(String[] args) throws Exception {
+		long n = Long.parseLong(Utils.getOption('n', args));
+		int d = Integer.parseInt(Utils.getOption('d', args));
+		int c = Integer.parseInt(Utils.getOption('c', args));
+		String s = Utils.getOption("solapamiento", args);
+		double solapamiento = s.length() == 0 ? 0.1 : Double.parseDouble(s);
+		s = Utils.getOption("semilla", args);
+		long semilla = s.length() == 0 ? 1 : Long.parseLong(s);
+		String escala = Utils.getOption("escala", args);
+		boolean enteros = Utils.getFlag("enteros", args);
+		s = Utils.getOption("formato", args);
+		String formato = s.length() == 0 ? "csv" : s;
+		File salida = new File(Utils.getOption('o', args));
+		s = Utils.getOption("etiquetas", args);
+		File etiquetas = s.length() == 0 ? null : new File(s);
+
+		GeneradorNubes generador = new GeneradorNubes(d, c, solapamiento, semilla);
+		if (escala.length() > 0)
+			generador.setEscala(Double.parseDouble(escala));
+		generador.setEnteros(enteros);
+
+		long inicio = System.nanoTime();
+		switch (formato) {
+		case "arff":
+			generador.escribirARFF(n, salida, true);
+			break;
+		case "fwc":
+			generador.escribirCache(n, salida, true, etiquetas);
+			break;
+		default:
+			generador.escribirCSV(n, salida, etiquetas);
+		}
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		System.out.printf("%d filas escritas en %s (%.2f s, %.0f filas/s)%n", n, salida, segundos, n / segundos);
+	}
+}
@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/**
+ * 聚类中心 V 上的 kd 树索引，供 FuzzyCMeans 在 c 很大时只用最近的若干个中心计算隶属度。
+ *
+ * buscar 按距离从近到远依次取出中心（增量最近邻搜索，优先队列中节点的键是实例到其包围盒的
+ * 距离下界），直到剩余中心可能占有的隶属度质量不超过给定上界为止。设已取出 L 个中心，
+ * 最近距离为 d1，剩余中心的距离下界为 dq，p = 2/(m-1)，则被忽略的质量
+ * N / (W + N) 满足 N ≤ (c - L)·(d1/dq)^p，其中 W = Σ (d1/d_j)^p 为已取出中心的权重和。
+ * 只在取出的中心上归一化时，每个隶属度的绝对误差也不超过这个上界。
+ *
+ * 索引引用 V 本身，V 改变后必须重建。查询使用内部缓冲区，同一索引不能被多个线程同时使用。
+ */
+public class IndiceCentros {
+
+  /** 叶节点最多包含的中心数 */
+  protected static final int TAMANO_HOJA = 8;
+  /** 与 FuzzyCMeans.evaluarInstancia 相同的最小距离 */
+  protected static final double DISTANCIA_MINIMA = 1e-10;
+
+  private final double V[][];
+  private final int c;
+  private final int nDimensiones;
+  /** 中心编号，每个节点对应其中连续的一段 */
+  private final int orden[];
+  private final int inicio[], fin[], izquierdo[], derecho[];
+  /** 节点包围盒 [节点][维度] */
+  private final double minimo[][], maximo[][];
+  private int nNodos;
+
+  // 查询缓冲区：二叉最小堆，元素 >= 0 为节点，< 0 为中心 -(i+1)
+  private final double claves[];
+  private final int elementos[];
+  private int tamano;
+
+  /**
+   * 构建索引
+   *
+   * @param V 聚类中心 [c][nDimensiones]
+   */
+  public IndiceCentros(double V[][]) {
+    this.V = V;
+    this.c = V.length;
+    this.nDimensiones = c == 0 ? 0 : V[0].length;
+    this.orden = new int[c];
+    for (int i = 0; i < c; i++)
+      orden[i] = i;
+    int maxNodos = 2 * c + 1;
+    inicio = new int[maxNodos];
+    fin = new int[maxNodos];
+    izquierdo = new int[maxNodos];
+    derecho = new int[maxNodos];
+    minimo = new double[maxNodos][];
+    maximo = new double[maxNodos][];
+    construir(0, c);
+    claves = new double[nNodos + c];
+    elementos = new int[nNodos + c];
+  }
+
+  /** 递归构建包含 orden[desde, hasta) 的节点，按跨度最大的维度在中位数处划分 */
+  private int construir(int desde, int hasta) {
+    int nodo = nNodos++;
+    inicio[nodo] = desde;
+    fin[nodo] = hasta;
+    izquierdo[nodo] = derecho[nodo] = -1;
+    double min[] = new double[nDimensiones], max[] = new double[nDimensiones];
+    Arrays.fill(min, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (int r = desde; r < hasta; r++)
+      for (int d = 0; d < nDimensiones; d++) {
+        min[d] = Math.min(min[d], V[orden[r]][d]);
+        max[d] = Math.max(max[d], V[orden[r]][d]);
+      }
+    minimo[nodo] = min;
+    maximo[nodo] = max;
+    if (hasta - desde <= TAMANO_HOJA)
+      return nodo;
+
+    int eje = 0;
+    for (int d = 1; d < nDimensiones; d++)
+      if (max[d] - min[d] > max[eje] - min[eje])
+        eje = d;
+    int medio = (desde + hasta) >>> 1;
+    seleccionar(desde, hasta - 1, medio, eje);
+    izquierdo[nodo] = construir(desde, medio);
+    derecho[nodo] = construir(medio, hasta);
+    return nodo;
+  }
+
+  /** Quickselect：把 orden 中第 k 小（按维度 eje）的中心放到位置 k */
+  private void seleccionar(int izq, int der, int k, int eje) {
+    while (izq < der) {
+      double pivote = V[orden[(izq + der) >>> 1]][eje];
+      int i = izq, j = der;
+      while (i <= j) {
+        while (V[orden[i]][eje] < pivote)
+          i++;
+        while (V[orden[j]][eje] > pivote)
+          j--;
+        if (i <= j) {
+          int aux = orden[i];
+          orden[i++] = orden[j];
+          orden[j--] = aux;
+        }
+      }
+      if (k <= j)
+        der = j;
+      else if (k >= i)
+        izq = i;
+      else
+        return;
+    }
+  }
+
+  /**
+   * 按距离从近到远取出中心，直到被忽略的隶属度质量的上界不超过 masa
+   *
+   * @param x          实例的属性值，缺失值为 NaN（不参与距离计算，与 FuzzyCMeans.distancia 相同）
+   * @param p          隶属度指数 2/(m-1)
+   * @param masa       允许忽略的最大隶属度质量
+   * @param centros    输出：取出的中心编号，长度至少为 c
+   * @param distancias 输出：对应的距离（不小于 DISTANCIA_MINIMA）
+   * @param cota       输出：cota[0] 为被忽略质量的上界
+   * @return 取出的中心数 L
+   */
+  public int buscar(double x[], double p, double masa, int centros[], double distancias[], double cota[]) {
+    tamano = 0;
+    cota[0] = 0;
+    if (c == 0)
+      return 0;
+    insertar(cotaNodo(0, x), 0);
+    int L = 0;
+    double d1 = 0, peso = 0;
+    while (tamano > 0) {
+      if (L > 0) {
+        double dq = Math.max(Math.sqrt(claves[0]), DISTANCIA_MINIMA);
+        double despreciada = (c - L) * Math.pow(d1 / dq, p);
+        double fraccion = despreciada / (peso + despreciada);
+        if (fraccion <= masa) {
+          cota[0] = fraccion;
+          break;
+        }
+      }
+      double clave = claves[0];
+      int elemento = extraer();
+      if (elemento < 0) {
+        double d = Math.max(Math.sqrt(clave), DISTANCIA_MINIMA);
+        if (L == 0)
+          d1 = d;
+        centros[L] = -elemento - 1;
+        distancias[L] = d;
+        peso += Math.pow(d1 / d, p);
+        L++;
+      } else if (izquierdo[elemento] < 0) {
+        for (int r = inicio[elemento]; r < fin[elemento]; r++)
+          insertar(distancia2(orden[r], x), -orden[r] - 1);
+      } else {
+        insertar(cotaNodo(izquierdo[elemento], x), izquierdo[elemento]);
+        insertar(cotaNodo(derecho[elemento], x), derecho[elemento]);
+      }
+    }
+    return L;
+  }
+
+  /** 实例到中心 i 的距离平方，跳过缺失维度 */
+  private double distancia2(int i, double x[]) {
+    double suma = 0;
+    for (int d = 0; d < nDimensiones; d++)
+      if (!Double.isNaN(x[d])) {
+        double diff = x[d] - V[i][d];
+        suma += diff * diff;
+      }
+    return suma;
+  }
+
+  /** 实例到节点包围盒的距离平方（节点内所有中心距离平方的下界） */
+  private double cotaNodo(int nodo, double x[]) {
+    double suma = 0;
+    for (int d = 0; d < nDimensiones; d++) {
+      if (Double.isNaN(x[d]))
+        continue;
+      double diff = x[d] < minimo[nodo][d] ? minimo[nodo][d] - x[d]
+          : x[d] > maximo[nodo][d] ? x[d] - maximo[nodo][d] : 0;
+      suma += diff * diff;
+    }
+    return suma;
+  }
+
+  private void insertar(double clave, int elemento) {
+    int i = tamano++;
+    while (i > 0) {
+      int padre = (i - 1) >>> 1;
+      if (claves[padre] <= clave)
+        break;
+      claves[i] = claves[padre];
+      elementos[i] = elementos[padre];
+      i = padre;
+    }
+    claves[i] = clave;
+    elementos[i] = elemento;
+  }
+
+  private int extraer() {
+    int raiz = elementos[0];
+    double clave = claves[--tamano];
+    int elemento = elementos[tamano];
+    int i = 0;
+    while (true) {
+      int hijo = 2 * i + 1;
+      if (hijo >= tamano)
+        break;
+      if (hijo + 1 < tamano && claves[hijo + 1] < claves[hijo])
+        hijo++;
+      if (clave <= claves[hijo])
+        break;
+      claves[i] = claves[hijo];
+      elementos[i] = elementos[hijo];
+      i = hijo;
+    }
+    claves[i] = clave;
+    elementos[i] = elemento;
+    return raiz;
+  }
+}
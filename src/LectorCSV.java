@@ -0,0 +1,398 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.Instances;
+
+/**
+ * Lector de ficheros CSV numericos mucho mas rapido que CSVLoader. El fichero
+ * se proyecta en memoria y se divide en trozos que empiezan y acaban en un fin
+ * de linea. Cada trozo se procesa en un hilo distinto, en dos pasadas: la
+ * primera cuenta las filas y la segunda convierte los numeros directamente
+ * desde los bytes, sin crear un String por campo, al lugar que les
+ * corresponde en una MatrizNumerica.
+ *
+ * Se ignoran la marca de orden de bytes (BOM) de UTF-8, como la de S1.csv, los
+ * retornos de carro y las lineas vacias. La primera linea se toma como
+ * cabecera si su primer campo no es un numero. Los campos vacios o con "?"
+ * son valores ausentes (NaN).
+ */
+public class LectorCSV {
+
+	/** Tamaño maximo de cada proyeccion en memoria */
+	protected static final long MAX_TROZO = 1L << 30;
+	/** Por debajo de este tamaño no merece la pena leer en paralelo */
+	protected static final long MIN_TROZO = 1L << 20;
+
+	/** Potencias de 10 exactas en double */
+	private static final double POTENCIAS[] = new double[23];
+	/** Menor y mayor exponente decimal de la tabla de Eisel-Lemire */
+	private static final int MIN_EXP10 = -342, MAX_EXP10 = 308;
+	/** Mantisas de 128 bits de 5^q normalizadas: parte alta y parte baja */
+	private static final long POT5_ALTA[] = new long[MAX_EXP10 - MIN_EXP10 + 1];
+	private static final long POT5_BAJA[] = new long[MAX_EXP10 - MIN_EXP10 + 1];
+	static {
+		POTENCIAS[0] = 1.0;
+		for (int i = 1; i < POTENCIAS.length; i++)
+			POTENCIAS[i] = POTENCIAS[i - 1] * 10.0;
+
+		// Truncadas para q >= 0 y redondeadas hacia arriba para q < 0 (Lemire, 2021)
+		BigInteger dos128 = BigInteger.ONE.shiftLeft(128);
+		for (int q = MIN_EXP10; q <= MAX_EXP10; q++) {
+			BigInteger p5 = BigInteger.valueOf(5).pow(Math.abs(q));
+			BigInteger m;
+			if (q >= 0) {
+				int bits = p5.bitLength();
+				m = bits <= 128 ? p5.shiftLeft(128 - bits) : p5.shiftRight(bits - 128);
+			} else {
+				int z = p5.bitLength();
+				int b = q >= -27 ? z + 127 : 2 * z + 128;
+				m = BigInteger.ONE.shiftLeft(b).divide(p5).add(BigInteger.ONE);
+				while (m.compareTo(dos128) >= 0)
+					m = m.shiftRight(1);
+			}
+			POT5_ALTA[q - MIN_EXP10] = m.shiftRight(64).longValue();
+			POT5_BAJA[q - MIN_EXP10] = m.longValue();
+		}
+	}
+
+	/** Numero de hilos de lectura */
+	protected int numHilos = Runtime.getRuntime().availableProcessors();
+
+	public void setNumHilos(int numHilos) {
+		this.numHilos = numHilos;
+	}
+
+	/** Lee el fichero como Instances con un atributo numerico por columna */
+	public static Instances leerInstances(File fichero) throws IOException {
+		String nombre = fichero.getName().replaceFirst("\\.csv$", "");
+		return new LectorCSV().leer(fichero).toInstances(nombre);
+	}
+
+	/**
+	 * Lee un fichero CSV numerico.
+	 *
+	 * @param fichero
+	 *            el fichero CSV
+	 * @return matriz con una fila por linea de datos
+	 */
+	public MatrizNumerica leer(File fichero) throws IOException {
+		try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ)) {
+			long tamano = canal.size();
+
+			// 1. CABECERA: salta el BOM y decide si la primera linea son nombres
+			long inicio = 0;
+			ByteBuffer bom = ByteBuffer.allocate(3);
+			canal.read(bom, 0);
+			if (bom.position() == 3 && (bom.get(0) & 0xFF) == 0xEF && (bom.get(1) & 0xFF) == 0xBB
+					&& (bom.get(2) & 0xFF) == 0xBF)
+				inicio = 3;
+			long finPrimera = finDeLinea(canal, inicio, tamano);
+			String primera = leerTexto(canal, inicio, finPrimera).replace("\r", "");
+			String campos[] = primera.split(",", -1);
+			String nombres[] = new String[campos.length];
+			boolean cabecera = !esNumero(campos[0].trim());
+			for (int j = 0; j < campos.length; j++)
+				nombres[j] = cabecera ? campos[j].trim() : "att" + (j + 1);
+			if (cabecera)
+				inicio = Math.min(finPrimera + 1, tamano);
+
+			// 2. TROZOS QUE ACABAN EN FIN DE LINEA
+			long bytes = tamano - inicio;
+			int numTrozos = (int) Math.max(Math.min(numHilos, bytes / MIN_TROZO), (bytes + MAX_TROZO - 1) / MAX_TROZO);
+			numTrozos = Math.max(numTrozos, 1);
+			long limites[] = new long[numTrozos + 1];
+			limites[0] = inicio;
+			limites[numTrozos] = tamano;
+			for (int t = 1; t < numTrozos; t++) {
+				long nominal = Math.max(inicio + bytes * t / numTrozos, limites[t - 1]);
+				limites[t] = Math.min(finDeLinea(canal, nominal, tamano) + 1, tamano);
+			}
+
+			Trozo trozos[] = new Trozo[numTrozos];
+			for (int t = 0; t < numTrozos; t++)
+				trozos[t] = new Trozo(canal.map(FileChannel.MapMode.READ_ONLY, limites[t], limites[t + 1] - limites[t]),
+						nombres.length);
+
+			ExecutorService hilos = Executors.newFixedThreadPool(Math.min(numHilos, numTrozos));
+			try {
+				// 3. PRIMERA PASADA: cuenta las filas de cada trozo
+				List<Future<Integer>> cuentas = new ArrayList<>();
+				for (Trozo trozo : trozos)
+					cuentas.add(hilos.submit(trozo::contarFilas));
+				long filas = 0;
+				for (int t = 0; t < numTrozos; t++) {
+					trozos[t].primeraFila = (int) filas;
+					filas += cuentas.get(t).get();
+				}
+				if (filas * nombres.length > Integer.MAX_VALUE)
+					throw new IOException("Demasiadas celdas para una MatrizNumerica: " + filas + " x " + nombres.length);
+				MatrizNumerica matriz = new MatrizNumerica(nombres, (int) filas);
+
+				// 4. SEGUNDA PASADA: convierte los valores en su sitio
+				List<Future<?>> pendientes = new ArrayList<>();
+				for (Trozo trozo : trozos)
+					pendientes.add(hilos.submit(() -> {
+						trozo.leerFilas(matriz.datos());
+						return null;
+					}));
+				for (Future<?> pendiente : pendientes)
+					pendiente.get();
+				return matriz;
+			} catch (Exception e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e);
+			} finally {
+				hilos.shutdown();
+			}
+		}
+	}
+
+	/** Trozo del fichero proyectado en memoria, formado por lineas completas */
+	private static class Trozo {
+		final MappedByteBuffer buffer;
+		final int columnas;
+		/** Fila de la matriz en la que empieza este trozo */
+		int primeraFila;
+
+		Trozo(MappedByteBuffer buffer, int columnas) {
+			this.buffer = buffer;
+			this.columnas = columnas;
+		}
+
+		/** Cuenta las lineas con algun caracter distinto de '\r' */
+		int contarFilas() {
+			int filas = 0;
+			boolean contenido = false;
+			for (int p = 0, fin = buffer.limit(); p < fin; p++) {
+				byte b = buffer.get(p);
+				if (b == '\n') {
+					if (contenido)
+						filas++;
+					contenido = false;
+				} else if (b != '\r')
+					contenido = true;
+			}
+			return contenido ? filas + 1 : filas;
+		}
+
+		/** Convierte las filas del trozo y las deja en datos */
+		void leerFilas(double datos[]) throws IOException {
+			int fin = buffer.limit();
+			int celda = primeraFila * columnas;
+			int p = 0;
+			while (p < fin) {
+				// Salta las lineas vacias
+				byte b = buffer.get(p);
+				if (b == '\n' || b == '\r') {
+					p++;
+					continue;
+				}
+				int fila = celda / columnas;
+				for (int j = 0; j < columnas; j++) {
+					int finCampo = p;
+					while (finCampo < fin && (b = buffer.get(finCampo)) != ',' && b != '\n' && b != '\r')
+						finCampo++;
+					boolean ultimo = j == columnas - 1;
+					if (ultimo == (finCampo < fin && buffer.get(finCampo) == ','))
+						throw new IOException("La fila " + (fila + 1) + " no tiene " + columnas + " columnas");
+					datos[celda++] = convertir(buffer, p, finCampo);
+					p = finCampo + 1;
+				}
+				// p queda despues del separador de la ultima columna ('\r' o '\n')
+			}
+		}
+	}
+
+	/**
+	 * Convierte los bytes [desde, hasta) en un double. Los numeros de hasta 15
+	 * digitos con exponente pequeño se calculan de forma exacta con una
+	 * multiplicacion o division por una potencia de 10. Los de hasta 19
+	 * digitos se convierten con el algoritmo de Eisel-Lemire. Lo que no se
+	 * resuelve asi se pasa a Double.parseDouble.
+	 */
+	static double convertir(ByteBuffer buffer, int desde, int hasta) {
+		while (desde < hasta && buffer.get(desde) == ' ')
+			desde++;
+		while (hasta > desde && buffer.get(hasta - 1) == ' ')
+			hasta--;
+		if (desde == hasta || (hasta - desde == 1 && buffer.get(desde) == '?'))
+			return Double.NaN;
+
+		int p = desde;
+		boolean negativo = false;
+		byte b = buffer.get(p);
+		if (b == '-' || b == '+') {
+			negativo = b == '-';
+			p++;
+		}
+		long mantisa = 0;
+		int digitos = 0, exponente = 0;
+		boolean hayDigitos = false;
+		for (; p < hasta && (b = buffer.get(p)) >= '0' && b <= '9'; p++) {
+			hayDigitos = true;
+			if (digitos > 0 || b != '0')
+				digitos++;
+			if (digitos <= 19)
+				mantisa = mantisa * 10 + (b - '0');
+			else
+				exponente++;
+		}
+		if (p < hasta && buffer.get(p) == '.') {
+			for (p++; p < hasta && (b = buffer.get(p)) >= '0' && b <= '9'; p++) {
+				hayDigitos = true;
+				if (digitos > 0 || b != '0')
+					digitos++;
+				if (digitos <= 19) {
+					mantisa = mantisa * 10 + (b - '0');
+					exponente--;
+				}
+			}
+		}
+		if (hayDigitos && p < hasta && ((b = buffer.get(p)) == 'e' || b == 'E')) {
+			int q = p + 1;
+			boolean expNegativo = false;
+			if (q < hasta && ((b = buffer.get(q)) == '-' || b == '+')) {
+				expNegativo = b == '-';
+				q++;
+			}
+			int e = 0;
+			boolean hayExp = false;
+			for (; q < hasta && (b = buffer.get(q)) >= '0' && b <= '9' && e < 100000; q++) {
+				e = e * 10 + (b - '0');
+				hayExp = true;
+			}
+			if (hayExp) {
+				exponente += expNegativo ? -e : e;
+				p = q;
+			}
+		}
+		if (hayDigitos && p == hasta) {
+			if (digitos <= 15 && Math.abs(exponente) < POTENCIAS.length) {
+				double valor = exponente >= 0 ? mantisa * POTENCIAS[exponente] : mantisa / POTENCIAS[-exponente];
+				return negativo ? -valor : valor;
+			}
+			if (digitos <= 19) {
+				double valor = eiselLemire(mantisa, exponente, negativo);
+				if (!Double.isNaN(valor))
+					return valor;
+			}
+		}
+
+		// Caso general (muchos digitos, exponentes grandes, NaN, Infinity...)
+		byte texto[] = new byte[hasta - desde];
+		for (int i = 0; i < texto.length; i++)
+			texto[i] = buffer.get(desde + i);
+		try {
+			return Double.parseDouble(new String(texto, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException ex) {
+			throw new NumberFormatException("Valor no numerico en el CSV: " + new String(texto, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Algoritmo de Eisel-Lemire: convierte w * 10^q con el redondeo correcto
+	 * usando una multiplicacion de 64 x 128 bits. Devuelve NaN en los casos
+	 * ambiguos o fuera de rango, que se resuelven con Double.parseDouble.
+	 *
+	 * Lemire, D. (2021). Number parsing at a gigabyte per second. Software:
+	 * Practice and Experience, 51(8), 1700-1727.
+	 *
+	 * @param w
+	 *            mantisa decimal, sin signo
+	 * @param q
+	 *            exponente decimal
+	 */
+	static double eiselLemire(long w, int q, boolean negativo) {
+		if (w == 0)
+			return negativo ? -0.0 : 0.0;
+		if (q < MIN_EXP10 || q > MAX_EXP10)
+			return Double.NaN;
+		int lz = Long.numberOfLeadingZeros(w);
+		w <<= lz;
+		long exp2 = ((217706L * q) >> 16) + 64 + 1023 - lz;
+
+		int i = q - MIN_EXP10;
+		long hi = multiplicarAlta(w, POT5_ALTA[i]);
+		long lo = w * POT5_ALTA[i];
+		if ((hi & 0x1FF) == 0x1FF && Long.compareUnsigned(lo + w, w) < 0) {
+			long yHi = multiplicarAlta(w, POT5_BAJA[i]);
+			long yLo = w * POT5_BAJA[i];
+			long loMezcla = lo + yHi;
+			if (Long.compareUnsigned(loMezcla, lo) < 0)
+				hi++;
+			if ((hi & 0x1FF) == 0x1FF && loMezcla + 1 == 0 && Long.compareUnsigned(yLo + w, w) < 0)
+				return Double.NaN;
+			lo = loMezcla;
+		}
+
+		long msb = hi >>> 63;
+		long mantisa = hi >>> (msb + 9);
+		exp2 -= 1 ^ msb;
+		if (lo == 0 && (hi & 0x1FF) == 0 && (mantisa & 3) == 1)
+			return Double.NaN;
+		mantisa += mantisa & 1;
+		mantisa >>>= 1;
+		if ((mantisa >>> 53) > 0) {
+			mantisa >>>= 1;
+			exp2++;
+		}
+		if (exp2 <= 0 || exp2 >= 0x7FF)
+			return Double.NaN;
+		long bits = (exp2 << 52) | (mantisa & 0x000FFFFFFFFFFFFFL);
+		if (negativo)
+			bits |= 0x8000000000000000L;
+		return Double.longBitsToDouble(bits);
+	}
+
+	/** Parte alta sin signo del producto de 128 bits */
+	private static long multiplicarAlta(long a, long b) {
+		return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+	}
+
+	/** Posicion del siguiente '\n' a partir de desde, o tamano si no hay */
+	private static long finDeLinea(FileChannel canal, long desde, long tamano) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long p = desde;
+		while (p < tamano) {
+			buffer.clear();
+			int leidos = canal.read(buffer, p);
+			if (leidos <= 0)
+				break;
+			for (int i = 0; i < leidos; i++)
+				if (buffer.get(i) == '\n')
+					return p + i;
+			p += leidos;
+		}
+		return tamano;
+	}
+
+	private static String leerTexto(FileChannel canal, long desde, long hasta) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (hasta - desde));
+		while (buffer.hasRemaining() && canal.read(buffer, desde + buffer.position()) > 0)
+			;
+		return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+	}
+
+	private static boolean esNumero(String campo) {
+		if (campo.isEmpty() || campo.equals("?"))
+			return true;
+		try {
+			Double.parseDouble(campo);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
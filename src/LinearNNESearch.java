@@ -15,21 +15,405 @@
 
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.EuclideanDistance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.NormalizableDistance;
 import weka.core.neighboursearch.LinearNNSearch;
 
 
+/**
+ * LinearNNSearch que devuelve los indices de los vecinos. Con la distancia
+ * euclidea por defecto las busquedas usan un nucleo propio que recorre los
+ * atributos de mayor a menor contribucion esperada a la distancia y abandona
+ * cada candidato en cuanto la suma parcial supera la del k-esimo vecino. La
+ * distancia de los candidatos que no se abandonan se vuelve a sumar en el
+ * orden del esquema, con los terminos ya calculados, asi que vecinos,
+ * distancias y empates son los mismos que con EuclideanDistance.
+ *
+ * Con setCribado las busquedas del nucleo se hacen en dos fases: una pasada
+ * por una copia de las filas cuantizada a un byte por atributo elige los
+ * k * sobremuestreo candidatos mas cercanos de forma aproximada, y solo estos
+ * se ordenan con la distancia exacta. Los vecinos devueltos y sus distancias
+ * son exactos, pero puede faltar alguno de los verdaderos k vecinos si la
+ * cuantizacion lo deja fuera de los candidatos. Las filas identicas al
+ * objetivo que se saltan no cuentan como candidatos.
+ */
 public class LinearNNESearch extends LinearNNSearch {
 
 	/** For serialization */
 	private static final long serialVersionUID = 1L;	
 
+	/**
+	 * Holgura relativa del corte al abandonar con la suma reordenada, mayor
+	 * que el error de redondeo por sumar en otro orden
+	 */
+	protected static final double HOLGURA = 1e-9;
+
+	/** Conjunto de referencia fuera del heap, o null si se usan las instancias */
+	protected AlmacenReferencias almacen;
+	/** Atributos que recorre el nucleo, de mayor a menor contribucion esperada */
+	protected int orden[];
+
+	/** Codigo de los valores ausentes en la copia cuantizada */
+	protected static final int AUSENTE = 255;
+	/** Niveles de los valores numericos normalizados: 0..NIVELES */
+	protected static final int NIVELES = 254;
+	/** Bytes maximos por segmento de la copia cuantizada (1 GB) */
+	protected static final int MAX_BYTES_SEGMENTO = 1 << 30;
+
+	/** Candidatos por vecino del cribado cuantizado; 0 lo desactiva */
+	protected int sobremuestreo = 0;
+	/**
+	 * Copia cuantizada de las filas de referencia, fila a fila y con los
+	 * atributos en el orden de getOrden, en segmentos de hasta
+	 * MAX_BYTES_SEGMENTO bytes como AlmacenReferencias; se construye en la
+	 * primera busqueda. Son arrays de bytes, que el recolector no recorre, asi
+	 * que tambien se guardan en el heap cuando las filas estan en un almacen.
+	 */
+	protected transient List<byte[]> codigos;
+	/** Bytes por fila y filas por segmento de codigos */
+	protected transient int bytesPorFila, filasPorSegmento;
+	/** Filas de referencia cuantizadas en codigos */
+	protected transient int filasCuantizadas;
+	/** Minimo y 1 / anchura de cada atributo al cuantizar */
+	protected transient double minimos[], escalas[];
+
 	public LinearNNESearch(Instances insts) {
 		super(insts);		
 	}
 
+	/**
+	 * Busqueda sobre un conjunto de referencia fuera del heap. Los rangos de
+	 * la distancia se calculan recorriendo sus filas, y las busquedas leen las
+	 * filas del almacen sin crear instancias. Los vecinos y su orden son los
+	 * mismos que con las instancias en el heap.
+	 */
+	public LinearNNESearch(AlmacenReferencias almacen) throws Exception {
+		super(almacen.cabecera());
+		this.almacen = almacen;
+		if (almacen.numFilas() > 0) {
+			Instances primera = new Instances(almacen.cabecera(), 1);
+			primera.add(almacen.instancia(0));
+			m_DistanceFunction.setInstances(primera);
+			for (int i = 1; i < almacen.numFilas(); i++)
+				m_DistanceFunction.update(almacen.instancia(i));
+		}
+		orden = null;
+	}
+
+	@Override
+	public void setInstances(Instances insts) throws Exception {
+		super.setInstances(insts);
+		orden = null;
+		codigos = null;
+	}
+
+	/**
+	 * Activa el cribado cuantizado: cada busqueda de k vecinos elige
+	 * k * sobremuestreo candidatos con la copia cuantizada y los ordena con la
+	 * distancia exacta. Con 0 (por defecto) la busqueda es exacta. Solo se
+	 * aplica cuando se usa el nucleo (EuclideanDistance por defecto o almacen
+	 * fuera del heap).
+	 */
+	public void setCribado(int sobremuestreo) {
+		this.sobremuestreo = sobremuestreo;
+	}
+
+	public int getCribado() {
+		return sobremuestreo;
+	}
+
+	/**
+	 * Orden de los atributos: de mayor a menor E[diff^2] entre dos filas de
+	 * referencia al azar, que es 2 * varianza del valor normalizado en los
+	 * numericos y la probabilidad de que no coincidan en los nominales. Se
+	 * calcula en la primera busqueda; al añadir filas con update no se
+	 * recalcula, porque solo afecta a la velocidad.
+	 */
+	protected int[] getOrden() throws Exception {
+		if (orden != null)
+			return orden;
+		Instances cabecera = almacen != null ? almacen.cabecera() : m_Instances;
+		int d = cabecera.numAttributes(), n = numFilas();
+		double rangos[][] = ((NormalizableDistance) m_DistanceFunction).getRanges();
+		Integer atributos[] = new Integer[d];
+		double contribucion[] = new double[d];
+		int usados = 0;
+		for (int a = 0; a < d; a++) {
+			Attribute atributo = cabecera.attribute(a);
+			if (a == cabecera.classIndex() || !(atributo.isNominal() || atributo.isNumeric()))
+				continue;
+			atributos[usados++] = a;
+			if (atributo.isNominal()) {
+				double frecuencias[] = new double[atributo.numValues()];
+				int validos = 0;
+				for (int i = 0; i < n; i++) {
+					double v = valor(i, a);
+					if (!Instance.isMissingValue(v)) {
+						frecuencias[(int) v]++;
+						validos++;
+					}
+				}
+				double coincidencia = 0;
+				for (double f : frecuencias)
+					coincidencia += (f / validos) * (f / validos);
+				contribucion[a] = validos == 0 ? 0 : 1 - coincidencia;
+			} else {
+				double anchura = rangos[a][NormalizableDistance.R_WIDTH];
+				if (Double.isNaN(anchura) || anchura == 0)
+					continue;
+				double media = 0, m2 = 0;
+				int validos = 0;
+				for (int i = 0; i < n; i++) {
+					double v = valor(i, a);
+					if (Instance.isMissingValue(v))
+						continue;
+					validos++;
+					double delta = v - media;
+					media += delta / validos;
+					m2 += delta * (v - media);
+				}
+				contribucion[a] = validos == 0 ? 0 : 2 * m2 / validos / (anchura * anchura);
+			}
+		}
+		Arrays.sort(atributos, 0, usados, (x, y) -> Double.compare(contribucion[y], contribucion[x]));
+		orden = new int[usados];
+		for (int i = 0; i < usados; i++)
+			orden[i] = atributos[i];
+		codigos = null;
+		return orden;
+	}
+
+	/**
+	 * Cuantiza las filas de referencia que faltan en codigos. Los numericos
+	 * se normalizan con los rangos del momento en que se crea la copia y se
+	 * redondean a NIVELES + 1 niveles; los nominales guardan el indice del
+	 * valor (los indices a partir de NIVELES comparten codigo). Las filas
+	 * añadidas con update se cuantizan en la siguiente busqueda con los mismos
+	 * rangos, recortando a [0, 1] los valores que se salen.
+	 */
+	protected void cuantizar() throws Exception {
+		int orden[] = getOrden(), dq = orden.length, n = numFilas();
+		if (codigos == null) {
+			double rangos[][] = ((NormalizableDistance) m_DistanceFunction).getRanges();
+			minimos = new double[dq];
+			escalas = new double[dq];
+			for (int p = 0; p < dq; p++) {
+				double anchura = rangos[orden[p]][NormalizableDistance.R_WIDTH];
+				minimos[p] = rangos[orden[p]][NormalizableDistance.R_MIN];
+				escalas[p] = Double.isNaN(minimos[p]) || Double.isNaN(anchura) || anchura == 0 ? 0 : 1 / anchura;
+			}
+			codigos = new ArrayList<>();
+			bytesPorFila = Math.max(dq, 1);
+			filasPorSegmento = MAX_BYTES_SEGMENTO / bytesPorFila;
+			filasCuantizadas = 0;
+		}
+		ampliarCodigos(n);
+		Instances cabecera = almacen != null ? almacen.cabecera() : m_Instances;
+		for (int j = filasCuantizadas; j < n; j++) {
+			byte segmento[] = codigos.get(j / filasPorSegmento);
+			int base = (j % filasPorSegmento) * bytesPorFila;
+			for (int p = 0; p < dq; p++) {
+				double v = valor(j, orden[p]);
+				int codigo;
+				if (Instance.isMissingValue(v))
+					codigo = AUSENTE;
+				else if (cabecera.attribute(orden[p]).isNominal())
+					codigo = Math.min((int) v, NIVELES);
+				else
+					codigo = (int) Math.round(Math.max(0, Math.min(1, (v - minimos[p]) * escalas[p])) * NIVELES);
+				segmento[base + p] = (byte) codigo;
+			}
+		}
+		filasCuantizadas = n;
+	}
+
+	/**
+	 * Asegura sitio en codigos para las filas indicadas. Cada segmento crece
+	 * al doble, copiandolo, hasta filasPorSegmento filas; despues se añaden
+	 * segmentos nuevos.
+	 */
+	private void ampliarCodigos(int filas) {
+		for (int s = 0; (long) s * filasPorSegmento < filas; s++) {
+			int necesarias = (int) Math.min(filasPorSegmento, filas - (long) s * filasPorSegmento);
+			byte actual[] = s < codigos.size() ? codigos.get(s) : null;
+			int capacidad = actual == null ? 0 : actual.length / bytesPorFila;
+			if (capacidad >= necesarias)
+				continue;
+			int nuevas = (int) Math.min(filasPorSegmento, Math.max(Math.max(necesarias, 16), 2L * capacidad));
+			if (actual == null)
+				codigos.add(new byte[nuevas * bytesPorFila]);
+			else
+				codigos.set(s, Arrays.copyOf(actual, nuevas * bytesPorFila));
+		}
+	}
+
+	/**
+	 * Primera fase del cribado: las filas mas cercanas al objetivo segun la
+	 * copia cuantizada, con las mismas reglas que EuclideanDistance para
+	 * ausentes y nominales. Cada fila se abandona en cuanto su suma parcial
+	 * supera la del ultimo candidato.
+	 *
+	 * @param candidatos
+	 *            numero maximo de filas elegidas
+	 * @return las filas elegidas en orden creciente
+	 */
+	private int[] cribar(double objetivo[], int candidatos) throws Exception {
+		cuantizar();
+		int orden[] = getOrden(), dq = orden.length, n = numFilas();
+		Instances cabecera = almacen != null ? almacen.cabecera() : m_Instances;
+		boolean nominal[] = new boolean[dq];
+		// Objetivo normalizado con los rangos de la copia (NaN si falta); en
+		// los nominales, su codigo
+		double x[] = new double[dq];
+		for (int p = 0; p < dq; p++) {
+			double v = objetivo[orden[p]];
+			nominal[p] = cabecera.attribute(orden[p]).isNominal();
+			if (Instance.isMissingValue(v))
+				x[p] = Double.NaN;
+			else if (nominal[p])
+				x[p] = Math.min((int) v, NIVELES);
+			else
+				x[p] = (v - minimos[p]) * escalas[p];
+		}
+		double paso = 1.0 / NIVELES;
+
+		// Max-heap de los candidatos por distancia aproximada
+		double claves[] = new double[candidatos];
+		int filas[] = new int[candidatos];
+		int tamano = 0;
+		int porSegmento = filasPorSegmento, ancho = bytesPorFila;
+		for (int s = 0, j = 0; j < n; s++) {
+			byte segmento[] = codigos.get(s);
+			int fin = (int) Math.min(n, (s + 1L) * porSegmento);
+			for (int base = 0; j < fin; j++, base += ancho) {
+				double corte = tamano < candidatos ? Double.POSITIVE_INFINITY : claves[0], suma = 0;
+				for (int p = 0; p < dq && suma <= corte; p++) {
+					int codigo = segmento[base + p] & 0xFF;
+					double q = x[p], diff;
+					if (nominal[p])
+						diff = Double.isNaN(q) || codigo == AUSENTE || codigo != (int) q ? 1 : 0;
+					else if (Double.isNaN(q) && codigo == AUSENTE)
+						diff = 1;
+					else if (Double.isNaN(q) || codigo == AUSENTE) {
+						diff = Double.isNaN(q) ? codigo * paso : q;
+						diff = diff < 0.5 ? 1.0 - diff : diff;
+					} else
+						diff = q - codigo * paso;
+					suma += diff * diff;
+				}
+				if (suma > corte || (suma == corte && tamano == candidatos))
+					continue;
+				int i;
+				if (tamano < candidatos) {
+					// Sube la nueva fila desde el final
+					i = tamano++;
+					while (i > 0 && claves[(i - 1) >>> 1] < suma) {
+						claves[i] = claves[(i - 1) >>> 1];
+						filas[i] = filas[(i - 1) >>> 1];
+						i = (i - 1) >>> 1;
+					}
+				} else {
+					// Sustituye a la raiz y la hunde
+					i = 0;
+					while (true) {
+						int hijo = 2 * i + 1;
+						if (hijo >= tamano)
+							break;
+						if (hijo + 1 < tamano && claves[hijo + 1] > claves[hijo])
+							hijo++;
+						if (claves[hijo] <= suma)
+							break;
+						claves[i] = claves[hijo];
+						filas[i] = filas[hijo];
+						i = hijo;
+					}
+				}
+				claves[i] = suma;
+				filas[i] = j;
+			}
+		}
+		int elegidas[] = Arrays.copyOf(filas, tamano);
+		Arrays.sort(elegidas);
+		return elegidas;
+	}
+
+	/** Numero de filas de referencia */
+	private int numFilas() {
+		return almacen != null ? almacen.numFilas() : m_Instances.numInstances();
+	}
+
+	/** Valor del atributo a en la fila de referencia j */
+	private double valor(int j, int a) {
+		return almacen != null ? almacen.valor(j, a) : m_Instances.instance(j).value(a);
+	}
+
+	/**
+	 * El nucleo solo replica EuclideanDistance con sus opciones por defecto
+	 * (normalizada, todos los atributos) y sin estadisticas de rendimiento
+	 */
+	private boolean usarNucleo() {
+		if (almacen != null)
+			return true;
+		if (m_Stats != null || m_DistanceFunction.getClass() != EuclideanDistance.class)
+			return false;
+		EuclideanDistance euclidea = (EuclideanDistance) m_DistanceFunction;
+		return !euclidea.getDontNormalize() && !euclidea.getInvertSelection()
+				&& "first-last".equals(euclidea.getAttributeIndices());
+	}
+
+	/**
+	 * Vecinos de la instancia de referencia fila, sin contarla a ella misma.
+	 */
+	public int[] kNearestNeighboursIndices(int fila, int kNN) throws Exception {
+		if (almacen == null)
+			return kNearestNeighboursIndices(m_Instances.instance(fila), kNN);
+		return kNearestNeighboursNucleo(almacen.leer(fila, new double[almacen.numAtributos()]), null, fila, kNN);
+	}
+
+	/**
+	 * Distancias entre la instancia de referencia fila y las indicadas
+	 *
+	 * @param filas
+	 *            indices de las instancias de referencia
+	 * @param total
+	 *            numero de posiciones validas de filas
+	 */
+	public double[] distancias(int fila, int filas[], int total) throws Exception {
+		double distancias[] = new double[total];
+		if (almacen == null) {
+			Instance instancia = m_Instances.instance(fila);
+			for (int r = 0; r < total; r++)
+				distancias[r] = m_DistanceFunction.distance(instancia, m_Instances.instance(filas[r]));
+		} else {
+			Kernel kernel = new Kernel(almacen.leer(fila, new double[almacen.numAtributos()]));
+			for (int r = 0; r < total; r++)
+				distancias[r] = Math.sqrt(kernel.distancia2(filas[r]));
+		}
+		return distancias;
+	}
+
+	@Override
+	public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+		if (almacen == null)
+			return super.kNearestNeighbours(target, kNN);
+		int indices[] = kNearestNeighboursIndices(target, kNN);
+		Instances vecinos = new Instances(almacen.cabecera(), indices.length);
+		for (int i : indices)
+			vecinos.add(almacen.instancia(i));
+		return vecinos;
+	}
+
 	public int[] kNearestNeighboursIndices(Instance target, int kNN) throws Exception{		  
+	    if (usarNucleo())
+	      return kNearestNeighboursNucleo(target.toDoubleArray(), target, -1, kNN);
+
 	    //debug
 	    boolean print=false;
 
@@ -100,6 +484,188 @@ public class LinearNNESearch extends LinearNNSearch {
 	    return indices;    
 	  }
 
+	/**
+	 * kNearestNeighboursIndices con el nucleo, con el mismo heap y los mismos
+	 * criterios (corte, skipIdentical y empates).
+	 *
+	 * @param target
+	 *            instancia objetivo, que se salta si esta entre las de
+	 *            referencia (validacion hold-one-out), o null
+	 * @param propia
+	 *            fila que se salta (la propia instancia), o -1
+	 */
+	private int[] kNearestNeighboursNucleo(double objetivo[], Instance target, int propia, int kNN) throws Exception {
+		Kernel kernel = new Kernel(objetivo);
+		int n = numFilas();
+		MyHeap heap = null;
+		// Con el cribado solo se recorren los candidatos (uno mas por si esta
+		// entre ellos la propia instancia). Las filas saltadas (la propia e
+		// identicas al objetivo con skipIdentical) no cuentan: si no quedan
+		// kNN vecinos se duplican los candidatos, y si llegan a ser todas las
+		// filas se hace la busqueda exacta
+		for (long candidatos = (long) kNN * sobremuestreo + 1; sobremuestreo > 0
+				&& candidatos < n; candidatos *= 2) {
+			int filas[] = cribar(objetivo, (int) candidatos);
+			heap = new MyHeap(kNN);
+			if (recorrer(kernel, heap, filas, filas.length, target, propia, kNN) >= kNN)
+				break;
+			heap = null;
+		}
+		if (heap == null) {
+			heap = new MyHeap(kNN);
+			recorrer(kernel, heap, null, n, target, propia, kNN);
+		}
+
+		m_Distances = new double[heap.size() + heap.noOfKthNearest()];
+		int[] indices = new int[heap.size() + heap.noOfKthNearest()];
+		int i = 1;
+		MyHeapElement h;
+		while (heap.noOfKthNearest() > 0) {
+			h = heap.getKthNearest();
+			indices[indices.length - i] = h.index;
+			m_Distances[indices.length - i] = h.distance;
+			i++;
+		}
+		while (heap.size() > 0) {
+			h = heap.get();
+			indices[indices.length - i] = h.index;
+			m_Distances[indices.length - i] = h.distance;
+			i++;
+		}
+		m_DistanceFunction.postProcessDistances(m_Distances);
+		return indices;
+	}
+
+	/**
+	 * Mete en heap los vecinos de entre las filas indicadas (todas si filas
+	 * es null). Sin cribado repite el doble put de LinearNNSearch cuando la
+	 * ultima fila es identica al objetivo.
+	 *
+	 * @return numero de vecinos metidos antes de llenar el heap
+	 */
+	private int recorrer(Kernel kernel, MyHeap heap, int filas[], int total, Instance target, int propia, int kNN)
+			throws Exception {
+		double distance;
+		int firstkNN = 0;
+		for (int r = 0; r < total; r++) {
+			int i = filas == null ? r : filas[r];
+			if (i == propia || (almacen == null && target == m_Instances.instance(i)))
+				continue;
+			if (firstkNN < kNN) {
+				distance = kernel.distancia2(i);
+				if (distance == 0.0 && m_SkipIdentical)
+					if (filas != null || r < total - 1)
+						continue;
+					else
+						heap.put(i, distance);
+				heap.put(i, distance);
+				firstkNN++;
+			} else {
+				MyHeapElement temp = heap.peek();
+				distance = kernel.distancia2(i, temp.distance);
+				if (distance == 0.0 && m_SkipIdentical)
+					continue;
+				if (distance < temp.distance)
+					heap.putBySubstitute(i, distance);
+				else if (distance == temp.distance)
+					heap.putKthNearest(i, distance);
+			}
+		}
+		return firstkNN;
+	}
+
+	/**
+	 * Distancia de EuclideanDistance entre un vector y las filas de
+	 * referencia, con la instancia objetivo ya normalizada
+	 */
+	private class Kernel {
+		final Instances cabecera = almacen != null ? almacen.cabecera() : m_Instances;
+		final int d = cabecera.numAttributes();
+		final int clase = cabecera.classIndex();
+		final boolean nominal[] = new boolean[d];
+		final boolean numerico[] = new boolean[d];
+		final double rangos[][];
+		final int orden[];
+		/** Objetivo normalizado */
+		final double x[] = new double[d];
+		/** diff^2 de cada atributo en la ultima fila recorrida por distancia2(j, corte) */
+		final double terminos[] = new double[d];
+
+		Kernel(double objetivo[]) throws Exception {
+			rangos = ((NormalizableDistance) m_DistanceFunction).getRanges();
+			orden = getOrden();
+			for (int a = 0; a < d; a++) {
+				Attribute atributo = cabecera.attribute(a);
+				nominal[a] = atributo.type() == Attribute.NOMINAL;
+				numerico[a] = atributo.type() == Attribute.NUMERIC;
+				x[a] = numerico[a] ? normalizar(objetivo[a], a) : objetivo[a];
+			}
+		}
+
+		/** Como NormalizableDistance.norm; los ausentes siguen ausentes */
+		double normalizar(double valor, int a) {
+			if (Instance.isMissingValue(valor))
+				return valor;
+			if (Double.isNaN(rangos[a][NormalizableDistance.R_MIN])
+					|| rangos[a][NormalizableDistance.R_MAX] == rangos[a][NormalizableDistance.R_MIN])
+				return 0;
+			return (valor - rangos[a][NormalizableDistance.R_MIN]) / rangos[a][NormalizableDistance.R_WIDTH];
+		}
+
+		/** Como EuclideanDistance.difference, con r sin normalizar */
+		double diferencia(int a, double r) {
+			double q = x[a];
+			if (nominal[a])
+				return Instance.isMissingValue(q) || Instance.isMissingValue(r) || (int) q != (int) r ? 1 : 0;
+			if (!numerico[a])
+				return 0;
+			if (Instance.isMissingValue(q) && Instance.isMissingValue(r))
+				return 1;
+			if (Instance.isMissingValue(q) || Instance.isMissingValue(r)) {
+				double diff = Instance.isMissingValue(q) ? normalizar(r, a) : q;
+				return diff < 0.5 ? 1.0 - diff : diff;
+			}
+			return q - normalizar(r, a);
+		}
+
+		/** Distancia al cuadrado a la fila j, sumando en el orden del esquema */
+		double distancia2(int j) {
+			double suma = 0;
+			for (int a = 0; a < d; a++) {
+				if (a == clase)
+					continue;
+				double diff = diferencia(a, valor(j, a));
+				suma += diff * diff;
+			}
+			return suma;
+		}
+
+		/**
+		 * Distancia al cuadrado a la fila j, o infinito si supera el corte,
+		 * como NormalizableDistance.distance. Primero suma en el orden de
+		 * getOrden, guardando cada termino, y abandona en cuanto la suma
+		 * parcial supera el corte con HOLGURA; si no abandona vuelve a sumar
+		 * los terminos en el orden del esquema, sin releer la fila, y devuelve
+		 * lo mismo que distancia2(j).
+		 */
+		double distancia2(int j, double corte) {
+			double limite = corte * (1 + HOLGURA), suma = 0;
+			for (int a : orden) {
+				double diff = diferencia(a, valor(j, a));
+				double termino = diff * diff;
+				terminos[a] = termino;
+				suma += termino;
+				if (suma > limite)
+					return Double.POSITIVE_INFINITY;
+			}
+			// Los atributos que no estan en orden (clase, string...) valen 0
+			suma = 0;
+			for (int a = 0; a < d; a++)
+				suma += terminos[a];
+			return suma > corte ? Double.POSITIVE_INFINITY : suma;
+		}
+	}
+
 	
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Matriz de datos numericos en un unico vector de primitivos, fila a fila.
+ * Los valores ausentes se guardan como NaN, igual que en Weka. El numero de
+ * celdas esta limitado por el tamaño maximo de un vector de Java (2^31 - 1).
+ */
+public class MatrizNumerica {
+
+	/** Numero de filas */
+	protected int filas;
+	/** Numero de columnas */
+	protected int columnas;
+	/** Nombre de cada columna */
+	protected String nombres[];
+	/** Valores, fila a fila: la celda (i, j) esta en datos[i * columnas + j] */
+	protected double datos[];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nombres
+	 *            nombre de cada columna
+	 * @param filas
+	 *            numero de filas
+	 */
+	public MatrizNumerica(String nombres[], int filas) {
+		this(nombres, filas, new double[Math.multiplyExact(filas, nombres.length)]);
+	}
+
+	/**
+	 * Envuelve un vector ya relleno sin copiarlo.
+	 *
+	 * @param datos
+	 *            valores fila a fila, de filas x nombres.length posiciones
+	 */
+	public MatrizNumerica(String nombres[], int filas, double datos[]) {
+		this.nombres = nombres;
+		this.filas = filas;
+		this.columnas = nombres.length;
+		this.datos = datos;
+	}
+
+	public int numFilas() {
+		return filas;
+	}
+
+	public int numColumnas() {
+		return columnas;
+	}
+
+	public String nombre(int j) {
+		return nombres[j];
+	}
+
+	/** Vector de valores fila a fila, sin copiar */
+	public double[] datos() {
+		return datos;
+	}
+
+	public double valor(int i, int j) {
+		return datos[i * columnas + j];
+	}
+
+	/** Copia la fila i en x */
+	public void fila(int i, double x[]) {
+		System.arraycopy(datos, i * columnas, x, 0, columnas);
+	}
+
+	/** Convierte la matriz en un Instances con un atributo numerico por columna */
+	public Instances toInstances(String relacion) {
+		FastVector atributos = new FastVector(columnas);
+		for (int j = 0; j < columnas; j++)
+			atributos.addElement(new Attribute(nombres[j]));
+		Instances instancias = new Instances(relacion, atributos, filas);
+		for (int i = 0; i < filas; i++) {
+			double valores[] = new double[columnas];
+			fila(i, valores);
+			instancias.add(new Instance(1.0, valores));
+		}
+		return instancias;
+	}
+}
@@ -0,0 +1,486 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import weka.core.Attribute;
+import weka.core.EuclideanDistance;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Formato binario compacto de los modelos entrenados, con solo lo que hace
+ * falta para puntuar, y puntuador que trabaja directamente sobre el fichero
+ * proyectado en memoria. Un proceso de puntuacion empieza a responder en
+ * milisegundos, sin deserializar el modelo ni copiar el conjunto de
+ * referencia.
+ *
+ * Modelos soportados:
+ * <ul>
+ * <li>FuzzyKNN: instancias de referencia ya normalizadas y la matriz U
+ * traspuesta. Los vecinos y las pertenencias son los de calcularu, y las
+ * referencias identicas a la instancia se ignoran como con skipIdentical. Si
+ * hay empates en la distancia del k-esimo vecino se queda el de menor indice,
+ * mientras que LinearNNSearch los ordena segun su heap, asi que con atributos
+ * nominales el resultado puede diferir en esos casos.</li>
+ * <li>FuzzyNP: los prototipos normalizados.</li>
+ * <li>FuzzyCMeans: los centros V, m y c; no guarda el conjunto de
+ * entrenamiento.</li>
+ * </ul>
+ * Las distancias de FuzzyKNN y FuzzyNP son las de EuclideanDistance: cada
+ * atributo numerico se normaliza con (x - min) / ancho usando los rangos del
+ * modelo, los nominales suman 1 si son distintos y los ausentes siguen las
+ * mismas reglas.
+ *
+ * Formato (little-endian): MAGIA (int), VERSION (int), tipo (int), numero de
+ * atributos d (int), numero de salidas (clases o clusters) (int), k (int),
+ * numero de referencias n (int), 0 (int), m (double), e (double); indices de
+ * los atributos (d int), atributos nominales (d int, 0 o 1); minimo y ancho
+ * de cada atributo (2 x d double, ancho 0 si el rango es nulo); referencias
+ * (n x d double); y, solo en FuzzyKNN, las pertenencias de cada referencia
+ * (n x salidas double).
+ *
+ * Las referencias y las pertenencias se proyectan en segmentos de hasta
+ * MAX_DOUBLES_SEGMENTO valores con un numero entero de filas, como en
+ * AlmacenReferencias, porque cada proyeccion esta limitada a 2 GB.
+ */
+public class ModeloBinario {
+
+	/** "FWMB" */
+	public static final int MAGIA = 0x46574D42;
+	public static final int VERSION = 1;
+
+	public static final int FUZZY_KNN = 1;
+	public static final int FUZZY_NP = 2;
+	public static final int FUZZY_CMEANS = 3;
+
+	/** Bytes de la parte fija de la cabecera */
+	private static final int CABECERA = 48;
+	/** Valores maximos por segmento proyectado (2^27 double, 1 GB) */
+	protected static final int MAX_DOUBLES_SEGMENTO = 1 << 27;
+
+	protected int tipo;
+	/** Numero de atributos que intervienen en la distancia */
+	protected int d;
+	/** Numero de clases o de clusters */
+	protected int salidas;
+	/** Numero de vecinos (FuzzyKNN) */
+	protected int k;
+	/** Numero de referencias: instancias, prototipos o centros */
+	protected int n;
+	/** Exponente fuzzy */
+	protected double m;
+	/** Tolerancia de FuzzyNP */
+	protected double e;
+	/** Indice en la instancia de cada atributo */
+	protected int atributos[];
+	protected boolean nominal[];
+	protected double minimo[];
+	/** Ancho del rango de cada atributo, 0 si es nulo */
+	protected double ancho[];
+	/** Referencias fila a fila, proyectadas en memoria por segmentos */
+	protected DoubleBuffer referencias[];
+	/** Pertenencias de cada referencia a cada clase (FuzzyKNN), por segmentos */
+	protected DoubleBuffer pertenencias[];
+	/** Filas por segmento de referencias y de pertenencias */
+	protected int filasReferencias, filasPertenencias;
+
+	/**
+	 * Abre un modelo proyectandolo en memoria.
+	 *
+	 * @param fichero
+	 *            fichero creado con exportar
+	 */
+	public ModeloBinario(File fichero) throws IOException {
+		try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer cabecera = proyectar(canal, 0, CABECERA);
+			if (cabecera.getInt() != MAGIA)
+				throw new IOException(fichero + " no es un modelo binario");
+			if (cabecera.getInt() != VERSION)
+				throw new IOException(fichero + " tiene una version de modelo no soportada");
+			tipo = cabecera.getInt();
+			d = cabecera.getInt();
+			salidas = cabecera.getInt();
+			k = cabecera.getInt();
+			n = cabecera.getInt();
+			cabecera.getInt();
+			m = cabecera.getDouble();
+			e = cabecera.getDouble();
+
+			long posicion = CABECERA;
+			IntBuffer enteros = proyectar(canal, posicion, 8L * d).asIntBuffer();
+			atributos = new int[d];
+			nominal = new boolean[d];
+			for (int a = 0; a < d; a++) {
+				atributos[a] = enteros.get(a);
+				nominal[a] = enteros.get(d + a) != 0;
+			}
+			posicion += 8L * d;
+			DoubleBuffer rangos = proyectar(canal, posicion, 16L * d).asDoubleBuffer();
+			minimo = new double[d];
+			ancho = new double[d];
+			rangos.get(minimo).get(ancho);
+			posicion += 16L * d;
+			filasReferencias = filasPorSegmento(d);
+			referencias = proyectarFilas(canal, posicion, n, d);
+			posicion += 8L * n * d;
+			if (tipo == FUZZY_KNN) {
+				filasPertenencias = filasPorSegmento(salidas);
+				pertenencias = proyectarFilas(canal, posicion, n, salidas);
+			}
+		}
+	}
+
+	/**
+	 * Exporta un modelo entrenado.
+	 *
+	 * @param modelo
+	 *            un FuzzyKNN, FuzzyNP o FuzzyCMeans ya entrenado
+	 */
+	public static void exportar(Object modelo, File fichero) throws Exception {
+		if (modelo instanceof FuzzyKNN) {
+			FuzzyKNN knn = (FuzzyKNN) modelo;
+			Instances datos = knn.getReferencias();
+			double rangos[][] = ((EuclideanDistance) knn.S.getDistanceFunction()).getRanges();
+			escribir(fichero, FUZZY_KNN, datos, rangos, datos.numClasses(), knn.k, knn.m, knn.e, knn.U);
+		} else if (modelo instanceof FuzzyNP) {
+			FuzzyNP np = (FuzzyNP) modelo;
+			double rangos[][] = new EuclideanDistance(np.prototipos).getRanges();
+			escribir(fichero, FUZZY_NP, np.prototipos, rangos, np.prototipos.numClasses(), 0, np.m, np.e, null);
+		} else if (modelo instanceof FuzzyCMeans) {
+			FuzzyCMeans fcm = (FuzzyCMeans) modelo;
+			Instances centros = new Instances(fcm.dataset, fcm.c);
+			centros.setClassIndex(-1);
+			for (int i = 0; i < fcm.c; i++)
+				centros.add(new Instance(1.0, fcm.V[i]));
+			escribir(fichero, FUZZY_CMEANS, centros, null, fcm.c, 0, fcm.m, 0, null);
+		} else
+			throw new IllegalArgumentException("Modelo no soportado: " + modelo.getClass().getName());
+	}
+
+	/**
+	 * Escribe el fichero.
+	 *
+	 * @param referencias
+	 *            instancias de referencia; la clase, si la hay, no interviene
+	 * @param rangos
+	 *            rangos de EuclideanDistance, o null para no normalizar
+	 * @param U
+	 *            pertenencia de cada referencia j a cada clase i, U[i][j], o
+	 *            null
+	 */
+	private static void escribir(File fichero, int tipo, Instances referencias, double rangos[][], int salidas,
+			int k, double m, double e, double U[][]) throws IOException {
+		int numAtributos = referencias.numAttributes();
+		int claseIndice = referencias.classIndex();
+		int d = claseIndice >= 0 ? numAtributos - 1 : numAtributos;
+		int atributos[] = new int[d];
+		for (int j = 0, a = 0; j < numAtributos; j++)
+			if (j != claseIndice)
+				atributos[a++] = j;
+		int n = referencias.numInstances();
+
+		try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIA).putInt(VERSION).putInt(tipo).putInt(d).putInt(salidas).putInt(k).putInt(n).putInt(0);
+			buffer.putDouble(m).putDouble(e);
+
+			boolean esNominal[] = new boolean[d];
+			double minimo[] = new double[d], ancho[] = new double[d];
+			for (int a = 0; a < d; a++) {
+				int j = atributos[a];
+				esNominal[a] = referencias.attribute(j).isNominal();
+				if (rangos != null && !esNominal[a] && !Double.isNaN(rangos[j][EuclideanDistance.R_MIN])
+						&& rangos[j][EuclideanDistance.R_MAX] != rangos[j][EuclideanDistance.R_MIN]) {
+					minimo[a] = rangos[j][EuclideanDistance.R_MIN];
+					ancho[a] = rangos[j][EuclideanDistance.R_WIDTH];
+				}
+			}
+			for (int a = 0; a < d; a++)
+				poner(buffer, canal, 4).putInt(atributos[a]);
+			for (int a = 0; a < d; a++)
+				poner(buffer, canal, 4).putInt(esNominal[a] ? 1 : 0);
+			for (int a = 0; a < d; a++)
+				poner(buffer, canal, 8).putDouble(minimo[a]);
+			for (int a = 0; a < d; a++)
+				poner(buffer, canal, 8).putDouble(ancho[a]);
+
+			for (int i = 0; i < n; i++) {
+				Instance referencia = referencias.instance(i);
+				for (int a = 0; a < d; a++) {
+					double valor = referencia.value(atributos[a]);
+					if (rangos != null && !esNominal[a])
+						valor = normalizar(valor, minimo[a], ancho[a]);
+					poner(buffer, canal, 8).putDouble(valor);
+				}
+			}
+			if (U != null)
+				for (int j = 0; j < n; j++)
+					for (int i = 0; i < salidas; i++)
+						poner(buffer, canal, 8).putDouble(U[i][j]);
+			vaciar(buffer, canal);
+		}
+	}
+
+	public int getTipo() {
+		return tipo;
+	}
+
+	/** Numero de clases o de clusters */
+	public int numSalidas() {
+		return salidas;
+	}
+
+	/**
+	 * Cabecera con la forma de la de entrenamiento: atributos numericos y, en
+	 * FuzzyKNN y FuzzyNP, la clase (nominal, con numSalidas() valores) en la
+	 * posicion que ocupaba. Los vectores de distribuciones se indexan como sus
+	 * atributos.
+	 */
+	public Instances cabecera() {
+		int clase = -1;
+		if (tipo != FUZZY_CMEANS) {
+			clase = d;
+			for (int a = 0; a < d; a++)
+				if (atributos[a] != a) {
+					clase = a;
+					break;
+				}
+		}
+		int numAtributos = clase >= 0 ? d + 1 : d;
+		FastVector lista = new FastVector(numAtributos);
+		for (int j = 0; j < numAtributos; j++)
+			if (j == clase) {
+				FastVector valores = new FastVector(salidas);
+				for (int i = 0; i < salidas; i++)
+					valores.addElement("c" + (i + 1));
+				lista.addElement(new Attribute("clase", valores));
+			} else
+				lista.addElement(new Attribute("att" + (j + 1)));
+		Instances cabecera = new Instances("ModeloBinario", lista, 0);
+		cabecera.setClassIndex(clase);
+		return cabecera;
+	}
+
+	/** Pertenencias de una instancia con la misma cabecera que el entrenamiento */
+	public double[] distribucion(Instance instancia) {
+		double valores[] = new double[instancia.numAttributes()];
+		for (int a = 0; a < d; a++)
+			valores[atributos[a]] = instancia.value(atributos[a]);
+		double u[] = new double[salidas];
+		distribucion(valores, u);
+		return u;
+	}
+
+	/**
+	 * Pertenencias de un vector de valores, indexado como los atributos de la
+	 * cabecera de entrenamiento (los ausentes son NaN).
+	 *
+	 * @param u
+	 *            vector de numSalidas() posiciones donde se dejan las
+	 *            pertenencias
+	 */
+	public void distribucion(double valores[], double u[]) {
+		distribuciones(new double[][] { valores }, new double[][] { u }, 1);
+	}
+
+	/**
+	 * Pertenencias de un lote de vectores de valores. Recorre cada referencia
+	 * una sola vez para todo el lote, asi que con lotes grandes lee el fichero
+	 * proyectado una vez por lote en lugar de una vez por instancia. El
+	 * resultado es el mismo que el de distribucion para cada fila.
+	 *
+	 * @param valores
+	 *            vectores indexados como los atributos de entrenamiento
+	 * @param u
+	 *            vectores de numSalidas() posiciones donde se dejan las
+	 *            pertenencias
+	 * @param filas
+	 *            numero de filas del lote que se puntuan
+	 */
+	public void distribuciones(double valores[][], double u[][], int filas) {
+		double x[][] = new double[filas][d];
+		for (int q = 0; q < filas; q++)
+			for (int a = 0; a < d; a++) {
+				double valor = valores[q][atributos[a]];
+				x[q][a] = tipo == FUZZY_CMEANS || nominal[a] ? valor : normalizar(valor, minimo[a], ancho[a]);
+			}
+		if (tipo == FUZZY_KNN) {
+			vecinos(x, u, filas);
+			return;
+		}
+		double dist[][] = new double[filas][n];
+		for (int c = 0; c < n; c++)
+			for (int q = 0; q < filas; q++)
+				dist[q][c] = tipo == FUZZY_NP ? distancia2(x[q], c) : distanciaCentro(x[q], c);
+		for (int q = 0; q < filas; q++)
+			if (tipo == FUZZY_NP)
+				prototipos(dist[q], u[q]);
+			else
+				centros(dist[q], u[q]);
+	}
+
+	/** FuzzyKNN.calcularu sobre las referencias proyectadas */
+	private void vecinos(double x[][], double u[][], int filas) {
+		int kk = Math.min(k, n);
+		double mejores[][] = new double[filas][kk];
+		int indices[][] = new int[filas][kk];
+		int encontrados[] = new int[filas];
+		for (int j = 0; j < n; j++) {
+			DoubleBuffer segmento = referencias[j / filasReferencias];
+			int base = (j % filasReferencias) * d;
+			for (int q = 0; q < filas; q++) {
+				double d2 = distancia2(x[q], segmento, base);
+				double mejor[] = mejores[q];
+				// Las referencias identicas se ignoran, como con skipIdentical
+				if (d2 == 0 || encontrados[q] == kk && d2 >= mejor[kk - 1])
+					continue;
+				// Insercion ordenada; a igual distancia queda delante el de menor indice
+				int indice[] = indices[q];
+				int p = encontrados[q] < kk ? encontrados[q]++ : kk - 1;
+				while (p > 0 && mejor[p - 1] > d2) {
+					mejor[p] = mejor[p - 1];
+					indice[p] = indice[p - 1];
+					p--;
+				}
+				mejor[p] = d2;
+				indice[p] = j;
+			}
+		}
+		for (int q = 0; q < filas; q++)
+			for (int i = 0; i < salidas; i++) {
+				double suma_num = 0.0, suma_den = 0.0;
+				for (int j = 0; j < encontrados[q]; j++) {
+					double aux = 1.0 / Math.pow(Math.sqrt(mejores[q][j]), 2.0 / (m - 1));
+					int fila = indices[q][j];
+					suma_num += pertenencias[fila / filasPertenencias].get((fila % filasPertenencias) * salidas + i)
+							* aux;
+					suma_den += aux;
+				}
+				u[q][i] = suma_num / suma_den;
+			}
+	}
+
+	/**
+	 * FuzzyNP.calcularu a partir de las distancias al cuadrado a cada
+	 * prototipo
+	 */
+	private void prototipos(double dist[], double u[]) {
+		double suma_den = 0.0;
+		for (int c = 0; c < n; c++) {
+			double d2 = dist[c];
+			if (d2 < e * e) {
+				for (int i = 0; i < u.length; i++)
+					u[i] = 0.0;
+				u[c] = 1.0;
+				return;
+			}
+			u[c] = 1.0 / Math.pow(d2, 1.0 / (m - 1));
+			suma_den += u[c];
+		}
+		for (int c = 0; c < u.length; c++)
+			u[c] /= suma_den;
+	}
+
+	/**
+	 * FuzzyCMeans.evaluarInstancia a partir de las distancias a cada centro
+	 */
+	private void centros(double dist[], double u[]) {
+		for (int i = 0; i < n; i++) {
+			double suma = 0;
+			for (int j = 0; j < n; j++)
+				suma += Math.pow(dist[i] / dist[j], 2.0 / (m - 1.0));
+			u[i] = 1.0 / suma;
+		}
+	}
+
+	/** Distancia de FuzzyCMeans entre x y el centro c, ignorando los ausentes */
+	private double distanciaCentro(double x[], int c) {
+		DoubleBuffer segmento = referencias[c / filasReferencias];
+		int base = (c % filasReferencias) * d;
+		double suma = 0;
+		for (int a = 0; a < d; a++)
+			if (!Instance.isMissingValue(x[a]))
+				suma += Math.pow(x[a] - segmento.get(base + a), 2.0);
+		return Math.max(Math.sqrt(suma), 1e-10);
+	}
+	/**
+	 * Distancia al cuadrado de EuclideanDistance entre el vector normalizado x
+	 * y la referencia j
+	 */
+	private double distancia2(double x[], int j) {
+		return distancia2(x, referencias[j / filasReferencias], (j % filasReferencias) * d);
+	}
+
+	/** distancia2 con la referencia en la posicion base del segmento */
+	private double distancia2(double x[], DoubleBuffer segmento, int base) {
+		double suma = 0.0;
+		for (int a = 0; a < d; a++) {
+			double q = x[a], r = segmento.get(base + a);
+			boolean faltaQ = Instance.isMissingValue(q), faltaR = Instance.isMissingValue(r);
+			double diff;
+			if (nominal[a])
+				diff = (faltaQ || faltaR || (int) q != (int) r) ? 1.0 : 0.0;
+			else if (faltaQ && faltaR)
+				diff = 1.0;
+			else if (faltaQ || faltaR) {
+				// Con un solo valor ausente se toma la mayor diferencia posible
+				diff = faltaQ ? r : q;
+				if (diff < 0.5)
+					diff = 1.0 - diff;
+			} else
+				diff = q - r;
+			suma += diff * diff;
+		}
+		return suma;
+	}
+
+	/** Normalizacion de EuclideanDistance: (x - min) / ancho, o 0 si el rango es nulo */
+	private static double normalizar(double valor, double minimo, double ancho) {
+		if (Instance.isMissingValue(valor))
+			return valor;
+		return ancho == 0 ? 0 : (valor - minimo) / ancho;
+	}
+
+	/** Filas de ancho valores que caben en un segmento */
+	private static int filasPorSegmento(int ancho) {
+		return MAX_DOUBLES_SEGMENTO / Math.max(ancho, 1);
+	}
+
+	/** Proyecta filas filas de ancho double en segmentos de filasPorSegmento(ancho) filas */
+	private static DoubleBuffer[] proyectarFilas(FileChannel canal, long posicion, int filas, int ancho)
+			throws IOException {
+		int porSegmento = filasPorSegmento(ancho);
+		DoubleBuffer segmentos[] = new DoubleBuffer[(int) ((filas + (long) porSegmento - 1) / porSegmento)];
+		for (int s = 0; s < segmentos.length; s++) {
+			long desde = (long) s * porSegmento, hasta = Math.min(filas, desde + porSegmento);
+			segmentos[s] = proyectar(canal, posicion + 8L * desde * ancho, 8L * (hasta - desde) * ancho)
+					.asDoubleBuffer();
+		}
+		return segmentos;
+	}
+
+	private static ByteBuffer proyectar(FileChannel canal, long posicion, long longitud) throws IOException {
+		return canal.map(FileChannel.MapMode.READ_ONLY, posicion, longitud).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Devuelve el buffer con al menos bytes libres, escribiendolo si hace falta */
+	private static ByteBuffer poner(ByteBuffer buffer, FileChannel canal, int bytes) throws IOException {
+		if (buffer.remaining() < bytes)
+			vaciar(buffer, canal);
+		return buffer;
+	}
+
+	private static void vaciar(ByteBuffer buffer, FileChannel canal) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			canal.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * FuzzyCMeans 迭代过程的监听器。每次迭代结束后调用 iteracion，
+ * 返回 true 时提前终止训练；训练结束后调用 fin。
+ *
+ * 没有注册监听器时训练循环不会创建事件，也不会产生任何输出。
+ */
+public interface OyenteIteraciones {
+
+  /**
+   * 每次迭代结束后调用
+   *
+   * @param evento 本次迭代的信息，仅在调用期间有效
+   * @return true 表示请求提前终止训练
+   */
+  boolean iteracion(Evento evento);
+
+  /**
+   * 训练结束后调用（收敛、达到最大迭代次数或被提前终止）
+   *
+   * @param modelo      训练完成的模型
+   * @param iteraciones 实际执行的迭代次数
+   */
+  default void fin(FuzzyCMeans modelo, int iteraciones) {
+  }
+
+  /** 控制台监听器：每次迭代打印误差，结束时打印各函数的耗时统计 */
+  OyenteIteraciones CONSOLA = new OyenteIteraciones() {
+    @Override
+    public boolean iteracion(Evento evento) {
+      System.out.printf("迭代 %d | 当前误差: %.6f\n", evento.getIteracion(), evento.getCambioMaximo());
+      return false;
+    }
+
+    @Override
+    public void fin(FuzzyCMeans modelo, int iteraciones) {
+      modelo.imprimirTiempos(iteraciones);
+    }
+  };
+
+  /** 一次迭代的信息 */
+  class Evento {
+    private final FuzzyCMeans modelo;
+    private final int iteracion;
+    private final double cambioMaximo;
+    private final double desplazamiento;
+    private final long tiempo;
+    private double objetivo = Double.NaN;
+
+    Evento(FuzzyCMeans modelo, int iteracion, double cambioMaximo, double desplazamiento, long tiempo) {
+      this.modelo = modelo;
+      this.iteracion = iteracion;
+      this.cambioMaximo = cambioMaximo;
+      this.desplazamiento = desplazamiento;
+      this.tiempo = tiempo;
+    }
+
+    /** 迭代序号，从 1 开始 */
+    public int getIteracion() {
+      return iteracion;
+    }
+
+    /** 隶属度矩阵 U 相对上一次迭代的最大变化（与 epsilon 比较的误差） */
+    public double getCambioMaximo() {
+      return cambioMaximo;
+    }
+
+    /** 聚类中心的最大欧氏位移 */
+    public double getDesplazamientoCentros() {
+      return desplazamiento;
+    }
+
+    /** 从训练开始到本次迭代结束的耗时（纳秒） */
+    public long getTiempo() {
+      return tiempo;
+    }
+
+    /**
+     * 目标函数 J_m = Σ_i Σ_j w_j · U[i][j]^m · d(x_j, V_i)^2。
+     * 首次调用时才计算（需要遍历全部实例），不调用则没有额外开销。
+     */
+    public double getObjetivo() {
+      if (Double.isNaN(objetivo))
+        objetivo = modelo.objetivo();
+      return objetivo;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Prepara los datos de un experimento de clustering en dos pasadas sobre las
+ * columnas de una CacheColumnar, sin copias intermedias del conjunto de datos.
+ * Hace lo mismo que la cadena NumericToNominal, insertAttributeAt, Remove y
+ * Standardize de TestFuzzyCMeans:
+ * <ol>
+ * <li>Primera pasada (en paralelo): medias y varianzas de cada atributo con
+ * AcumuladorWelford y valores distintos de la columna de etiquetas.</li>
+ * <li>Segunda pasada (en paralelo): estandariza cada fila y construye a la
+ * vez las instancias con la etiqueta como clase nominal, para evaluar con
+ * ClusterEvaluation, y las instancias con o sin la clase, para agrupar.</li>
+ * </ol>
+ * La estandarizacion es la de Standardize: (x - media) / desviacion, con la
+ * desviacion muestral; si la desviacion es 0 solo se resta la media. Los
+ * valores ausentes se mantienen.
+ */
+public class PreprocesadoClustering {
+
+	/** Por debajo de este numero de filas por particion no se paraleliza */
+	protected static final int MIN_POR_PARTICION = 10000;
+
+	/** Si es true los atributos se estandarizan */
+	protected boolean estandarizar = true;
+	/** Si es true la clase se mantiene en los datos para agrupar */
+	protected boolean mantenerClase = false;
+	/** Hilos de las dos pasadas */
+	protected int numHilos = Runtime.getRuntime().availableProcessors();
+
+	/** Datos con la etiqueta como clase */
+	protected Instances datos;
+	/** Datos para agrupar */
+	protected Instances agrupamiento;
+	/** Media y desviacion de cada atributo */
+	protected double medias[], desviaciones[];
+
+	public void setEstandarizar(boolean estandarizar) {
+		this.estandarizar = estandarizar;
+	}
+
+	public void setMantenerClase(boolean mantenerClase) {
+		this.mantenerClase = mantenerClase;
+	}
+
+	public void setNumHilos(int numHilos) {
+		this.numHilos = numHilos;
+	}
+
+	/**
+	 * Prepara los datos.
+	 *
+	 * @param atributos
+	 *            columnas numericas de los datos
+	 * @param etiquetas
+	 *            cache cuya primera columna es la etiqueta de cada fila (como
+	 *            s1-label.csv), o null si no hay etiquetas
+	 */
+	public void procesar(CacheColumnar atributos, CacheColumnar etiquetas) throws Exception {
+		int n = atributos.numFilas();
+		int d = atributos.numAtributos();
+		if (etiquetas != null && etiquetas.numFilas() != n)
+			throw new IllegalArgumentException(
+					"Hay " + etiquetas.numFilas() + " etiquetas para " + n + " filas de datos");
+		for (int j = 0; j < d; j++)
+			if (!atributos.cabecera().attribute(j).isNumeric())
+				throw new IllegalArgumentException("El atributo " + atributos.cabecera().attribute(j).name()
+						+ " no es numerico");
+
+		// 1. PRIMERA PASADA: medias, varianzas y valores de las etiquetas
+		List<Parcial> parciales = ejecutar(n, (desde, hasta) -> primeraPasada(atributos, etiquetas, desde, hasta));
+		Parcial total = parciales.get(0);
+		for (int p = 1; p < parciales.size(); p++) {
+			total.acumulador.combinar(parciales.get(p).acumulador);
+			total.valores.addAll(parciales.get(p).valores);
+		}
+		medias = new double[d];
+		desviaciones = new double[d];
+		for (int j = 0; j < d; j++) {
+			medias[j] = total.acumulador.media(0, j);
+			desviaciones[j] = Math.sqrt(total.acumulador.varianza(0, j));
+		}
+
+		// 2. CABECERAS: la etiqueta pasa a ser un atributo nominal, como con
+		// NumericToNominal
+		Instances cabecera = atributos.cabecera();
+		FastVector todos = new FastVector(d + 1);
+		for (int j = 0; j < d; j++)
+			todos.addElement(cabecera.attribute(j).copy());
+		Double valoresClase[] = null;
+		if (etiquetas != null) {
+			valoresClase = total.valores.toArray(new Double[0]);
+			FastVector nombres = new FastVector(valoresClase.length);
+			for (Double valor : valoresClase)
+				nombres.addElement(Utils.doubleToString(valor, 6));
+			todos.addElement(new Attribute(etiquetas.cabecera().attribute(0).name(), nombres));
+		}
+		datos = new Instances(cabecera.relationName(), todos, n);
+		if (etiquetas != null)
+			datos.setClassIndex(d);
+		agrupamiento = mantenerClase || etiquetas == null ? new Instances(datos, n) : quitarClase(datos, n);
+
+		// 3. SEGUNDA PASADA: construye las filas de los dos conjuntos
+		Double clases[] = valoresClase;
+		List<Instance[][]> filas = ejecutar(n,
+				(desde, hasta) -> segundaPasada(atributos, etiquetas, clases, desde, hasta));
+		for (Instance bloque[][] : filas)
+			for (int i = 0; i < bloque[0].length; i++) {
+				datos.add(bloque[0][i]);
+				agrupamiento.add(bloque[1][i]);
+			}
+	}
+
+	/**
+	 * Datos con la etiqueta como clase, con los atributos transformados igual
+	 * que los de agrupar, para ClusterEvaluation
+	 */
+	public Instances getDatos() {
+		return datos;
+	}
+
+	/** Datos estandarizados para agrupar */
+	public Instances getAgrupamiento() {
+		return agrupamiento;
+	}
+
+	public double getMedia(int j) {
+		return medias[j];
+	}
+
+	public double getDesviacion(int j) {
+		return desviaciones[j];
+	}
+
+	/** Resultado de la primera pasada sobre una particion */
+	private static class Parcial {
+		AcumuladorWelford acumulador;
+		TreeSet<Double> valores = new TreeSet<>();
+	}
+
+	private static Parcial primeraPasada(CacheColumnar atributos, CacheColumnar etiquetas, int desde, int hasta) {
+		int d = atributos.numAtributos();
+		Parcial parcial = new Parcial();
+		parcial.acumulador = new AcumuladorWelford(1, d);
+		double fila[] = new double[d];
+		for (int i = desde; i < hasta; i++) {
+			for (int j = 0; j < d; j++)
+				fila[j] = atributos.ausente(i, j) ? Instance.missingValue() : atributos.valor(i, j);
+			parcial.acumulador.agregar(0, fila);
+			if (etiquetas != null && !etiquetas.ausente(i, 0))
+				parcial.valores.add(etiquetas.valor(i, 0));
+		}
+		return parcial;
+	}
+
+	/**
+	 * Construye las filas [desde, hasta) de los datos con la etiqueta
+	 * (bloque[0]) y de los datos para agrupar (bloque[1]).
+	 */
+	private Instance[][] segundaPasada(CacheColumnar atributos, CacheColumnar etiquetas, Double clases[], int desde,
+			int hasta) {
+		int d = atributos.numAtributos();
+		boolean conClase = etiquetas != null;
+		Instance bloque[][] = new Instance[2][hasta - desde];
+		for (int i = desde; i < hasta; i++) {
+			double conEtiqueta[] = new double[conClase ? d + 1 : d];
+			for (int j = 0; j < d; j++) {
+				double valor = atributos.ausente(i, j) ? Instance.missingValue() : atributos.valor(i, j);
+				if (!estandarizar || Instance.isMissingValue(valor))
+					conEtiqueta[j] = valor;
+				else if (desviaciones[j] > 0)
+					conEtiqueta[j] = (valor - medias[j]) / desviaciones[j];
+				else
+					conEtiqueta[j] = valor - medias[j];
+			}
+			if (conClase)
+				conEtiqueta[d] = etiquetas.ausente(i, 0) ? Instance.missingValue()
+						: Arrays.binarySearch(clases, etiquetas.valor(i, 0));
+			double agrupar[] = conClase && !mantenerClase ? Arrays.copyOf(conEtiqueta, d) : conEtiqueta.clone();
+			bloque[0][i - desde] = new Instance(atributos.peso(i), conEtiqueta);
+			bloque[1][i - desde] = new Instance(atributos.peso(i), agrupar);
+		}
+		return bloque;
+	}
+
+	/** Cabecera de los datos sin el atributo de clase */
+	private static Instances quitarClase(Instances datos, int capacidad) {
+		FastVector sinClase = new FastVector(datos.numAttributes() - 1);
+		for (int j = 0; j < datos.numAttributes(); j++)
+			if (j != datos.classIndex())
+				sinClase.addElement(datos.attribute(j).copy());
+		return new Instances(datos.relationName(), sinClase, capacidad);
+	}
+
+	/** Tarea sobre las filas [desde, hasta) */
+	private interface Tarea<T> {
+		T ejecutar(int desde, int hasta) throws Exception;
+	}
+
+	/**
+	 * Reparte las n filas en particiones contiguas, ejecuta la tarea sobre cada
+	 * una y devuelve los resultados en orden.
+	 */
+	private <T> List<T> ejecutar(int n, Tarea<T> tarea) throws Exception {
+		int particiones = Math.max(1, Math.min(numHilos, n / MIN_POR_PARTICION));
+		List<T> resultados = new ArrayList<>();
+		if (particiones == 1) {
+			resultados.add(tarea.ejecutar(0, n));
+			return resultados;
+		}
+		ExecutorService hilos = Executors.newFixedThreadPool(particiones);
+		try {
+			List<Future<T>> pendientes = new ArrayList<>();
+			for (int p = 0; p < particiones; p++) {
+				int desde = (int) ((long) n * p / particiones);
+				int hasta = (int) ((long) n * (p + 1) / particiones);
+				pendientes.add(hilos.submit(() -> tarea.ejecutar(desde, hasta)));
+			}
+			for (Future<T> pendiente : pendientes)
+				resultados.add(pendiente.get());
+			return resultados;
+		} finally {
+			hilos.shutdown();
+		}
+	}
+}
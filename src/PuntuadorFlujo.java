@@ -0,0 +1,547 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import weka.classifiers.Classifier;
+import weka.clusterers.Clusterer;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Puntuacion de un fichero ARFF o CSV sin etiquetar a un fichero de
+ * pertenencias, en flujo y con memoria acotada, para ficheros que no caben en
+ * un Instances.
+ *
+ * Tres etapas: el hilo que llama lee el fichero de forma incremental en lotes
+ * de tamanoLote instancias (ArffLoader.getNextInstance para ARFF y un lector
+ * de lineas para CSV), numHilos hilos puntuan los lotes y un hilo escritor los
+ * pasa en orden a un EscritorPertenencias. Entre la lectura y la escritura
+ * hay como maximo lotesEnVuelo lotes en una cola acotada; cuando se llena, la
+ * lectura espera. Asi la memoria no depende del tamaño del fichero:
+ * (lotesEnVuelo + 2) * tamanoLote instancias como mucho.
+ *
+ * Los clasificadores (FuzzyKNN, FuzzyNP, CrispKNN...) y los agrupadores
+ * (FuzzyCMeans) no se pueden usar desde varios hilos a la vez, asi que cada
+ * hilo puntua con su propia copia serializada del modelo. Las copias
+ * comparten con el original los datos que la puntuacion solo lee: los
+ * Instances con instancias, las matrices double[][] (U, V...) y los
+ * AlmacenReferencias. Asi cada copia ocupa poco mas que la cabecera, y la
+ * memoria no crece con el conjunto de entrenamiento por el numero de hilos;
+ * el modelo no debe modificar esos datos al puntuar (los de este paquete no
+ * lo hacen). Un ModeloBinario se comparte entre todos los hilos y puntua
+ * cada lote de una vez con distribuciones, sin copias.
+ *
+ * El CSV se lee como LectorCSV: todas las columnas numericas, con cabecera si
+ * el primer campo no es un numero, y "?" o vacio para los ausentes. Con un
+ * clasificador las columnas se asignan a los atributos de la cabecera de
+ * entrenamiento del modelo (setCabecera): si el fichero tiene un atributo
+ * menos, no tiene la columna de la clase y se puntua con la clase ausente.
+ * El numero de pertenencias por fila es el numero de clases del modelo, no
+ * el del fichero. En la salida, la columna Cluster es la clase o el cluster
+ * de mayor pertenencia, empezando en 1.
+ */
+public class PuntuadorFlujo {
+
+	/** Instancias por lote por defecto */
+	public static final int TAMANO_LOTE = 1024;
+
+	/** Puntuador de un hilo */
+	public interface Modelo {
+		/**
+		 * Pertenencias de las filas primeras instancias del lote
+		 *
+		 * @param u
+		 *            vectores de salidas posiciones donde se dejan las
+		 *            pertenencias
+		 */
+		void puntuar(Instance lote[], int filas, double u[][]) throws Exception;
+	}
+
+	/** Crea el Modelo de cada hilo */
+	public interface Fabrica {
+		Modelo crear() throws Exception;
+	}
+
+	/** Lote de instancias y sus pertenencias */
+	private static class Lote {
+		final Instance instancias[];
+		final double u[][];
+		int filas;
+
+		Lote(int tamano, int salidas) {
+			instancias = new Instance[tamano];
+			u = new double[tamano][salidas];
+		}
+	}
+
+	/** Lote vacio que indica al escritor que no hay mas lotes */
+	private static final Lote FIN = new Lote(0, 0);
+
+	protected final Fabrica fabrica;
+	/** Numero de clases o de clusters, o -1 para tomar las clases del fichero */
+	protected final int salidas;
+	/** Si es true el modelo es un clasificador */
+	protected final boolean clasificador;
+	/** Cabecera de entrenamiento del clasificador, o null si no se conoce */
+	protected Instances cabecera;
+	protected int numHilos = Runtime.getRuntime().availableProcessors();
+	protected int tamanoLote = TAMANO_LOTE;
+	protected int lotesEnVuelo = -1;
+
+	/**
+	 * @param fabrica
+	 *            crea el Modelo de cada hilo de puntuacion
+	 * @param salidas
+	 *            numero de clases o de clusters, o -1 para usar el numero de
+	 *            clases de la cabecera de entrenamiento (o, si no se conoce,
+	 *            el de la cabecera del fichero ARFF)
+	 * @param clasificador
+	 *            si es true el modelo es un clasificador
+	 */
+	public PuntuadorFlujo(Fabrica fabrica, int salidas, boolean clasificador) {
+		this.fabrica = fabrica;
+		this.salidas = salidas;
+		this.clasificador = clasificador;
+	}
+
+	/**
+	 * Puntuador con una copia del clasificador entrenado por hilo. Con los
+	 * clasificadores de este paquete la cabecera de entrenamiento se toma del
+	 * modelo; con otros hay que indicarla con setCabecera para puntuar CSV.
+	 */
+	public static PuntuadorFlujo de(Classifier modelo) {
+		PuntuadorFlujo puntuador = new PuntuadorFlujo(() -> {
+			Classifier copia = (Classifier) copiar(modelo);
+			return (lote, filas, u) -> {
+				for (int q = 0; q < filas; q++)
+					u[q] = copia.distributionForInstance(lote[q]);
+			};
+		}, -1, true);
+		puntuador.setCabecera(cabecera(modelo));
+		return puntuador;
+	}
+
+	/** Cabecera de entrenamiento de los clasificadores de este paquete, o null */
+	private static Instances cabecera(Classifier modelo) {
+		Instances datos = null;
+		if (modelo instanceof FuzzyKNN)
+			datos = ((FuzzyKNN) modelo).dataset;
+		else if (modelo instanceof FuzzyNP)
+			datos = ((FuzzyNP) modelo).prototipos;
+		else if (modelo instanceof CrispKNN)
+			datos = ((CrispKNN) modelo).dataset;
+		else if (modelo instanceof FuzzyCascada)
+			return cabecera(((FuzzyCascada) modelo).getVecinos());
+		else if (modelo instanceof CacheResultados.Clasificador)
+			return cabecera(((CacheResultados.Clasificador) modelo).getClasificador());
+		return datos == null ? null : new Instances(datos, 0);
+	}
+
+	/** Puntuador con una copia del agrupador entrenado por hilo */
+	public static PuntuadorFlujo de(Clusterer modelo) throws Exception {
+		return new PuntuadorFlujo(() -> {
+			Clusterer copia = (Clusterer) copiar(modelo);
+			return (lote, filas, u) -> {
+				for (int q = 0; q < filas; q++)
+					u[q] = copia.distributionForInstance(lote[q]);
+			};
+		}, modelo.numberOfClusters(), false);
+	}
+
+	/** Referencia a un objeto compartido en la copia serializada de un modelo */
+	private static class Compartido implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int indice;
+
+		Compartido(int indice) {
+			this.indice = indice;
+		}
+	}
+
+	/**
+	 * Copia serializada del modelo que comparte con el los Instances con
+	 * instancias, las matrices double[][] y los AlmacenReferencias
+	 */
+	static Object copiar(Object modelo) throws Exception {
+		List<Object> compartidos = new ArrayList<>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream salida = new ObjectOutputStream(bytes) {
+			{
+				enableReplaceObject(true);
+			}
+
+			@Override
+			protected Object replaceObject(Object objeto) {
+				if ((objeto instanceof Instances && ((Instances) objeto).numInstances() > 0)
+						|| objeto instanceof double[][] || objeto instanceof AlmacenReferencias) {
+					compartidos.add(objeto);
+					return new Compartido(compartidos.size() - 1);
+				}
+				return objeto;
+			}
+		}) {
+			salida.writeObject(modelo);
+		}
+		try (ObjectInputStream entrada = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) {
+			{
+				enableResolveObject(true);
+			}
+
+			@Override
+			protected Object resolveObject(Object objeto) {
+				return objeto instanceof Compartido ? compartidos.get(((Compartido) objeto).indice) : objeto;
+			}
+		}) {
+			return entrada.readObject();
+		}
+	}
+
+	/** Puntuador que comparte el modelo binario entre todos los hilos */
+	public static PuntuadorFlujo de(ModeloBinario modelo) {
+		boolean clasificador = modelo.getTipo() != ModeloBinario.FUZZY_CMEANS;
+		PuntuadorFlujo puntuador = new PuntuadorFlujo(() -> (lote, filas, u) -> {
+			double valores[][] = new double[filas][];
+			for (int q = 0; q < filas; q++)
+				valores[q] = lote[q].toDoubleArray();
+			modelo.distribuciones(valores, u, filas);
+		}, modelo.numSalidas(), clasificador);
+		if (clasificador)
+			puntuador.setCabecera(modelo.cabecera());
+		return puntuador;
+	}
+
+	/**
+	 * Cabecera de entrenamiento del clasificador (basta sin instancias). Las
+	 * instancias leidas se puntuan con ella, y da el numero de clases.
+	 */
+	public void setCabecera(Instances cabecera) {
+		this.cabecera = cabecera;
+	}
+
+	/** Numero de hilos de puntuacion */
+	public void setNumHilos(int numHilos) {
+		this.numHilos = Math.max(1, numHilos);
+	}
+
+	/** Instancias por lote */
+	public void setTamanoLote(int tamanoLote) {
+		this.tamanoLote = Math.max(1, tamanoLote);
+	}
+
+	/** Lotes maximos entre la lectura y la escritura (2 * numHilos por defecto) */
+	public void setLotesEnVuelo(int lotesEnVuelo) {
+		this.lotesEnVuelo = lotesEnVuelo;
+	}
+
+	/**
+	 * Puntua todas las instancias del fichero de entrada.
+	 *
+	 * @param formato
+	 *            formato de EscritorPertenencias
+	 * @param k
+	 *            pertenencias por fila, de 1 al numero de salidas, o 0 para
+	 *            todas
+	 * @return numero de instancias puntuadas
+	 */
+	public long puntuar(File entrada, File salida, EscritorPertenencias.Formato formato, int k) throws Exception {
+		int enVuelo = lotesEnVuelo > 0 ? lotesEnVuelo : 2 * numHilos;
+		BlockingQueue<Future<Lote>> pendientes = new ArrayBlockingQueue<>(enVuelo);
+		ExecutorService hilos = Executors.newFixedThreadPool(numHilos);
+		ThreadLocal<Modelo> modelos = new ThreadLocal<>();
+
+		boolean csv = entrada.getName().toLowerCase().endsWith(".csv");
+		try (Lector lector = csv ? new LectorLineasCSV(entrada) : new LectorArff(entrada)) {
+			Lector adaptado = lector;
+			Instances estructura = lector.estructura();
+			if (cabecera != null) {
+				adaptado = adaptar(lector, estructura, new Instances(cabecera, 0));
+				estructura = cabecera;
+			} else if (clasificador) {
+				// Sin la cabecera de entrenamiento no se sabe que columna del CSV es
+				// la clase, ni si la hay
+				if (csv)
+					throw new IllegalArgumentException(
+							"Para puntuar un CSV con un clasificador hace falta su cabecera de entrenamiento (setCabecera)");
+				if (estructura.classIndex() < 0)
+					estructura.setClassIndex(estructura.numAttributes() - 1);
+			}
+			int c = salidas > 0 ? salidas : estructura.numClasses();
+			try (EscritorPertenencias escritor = new EscritorPertenencias(salida, formato, c, k > 0 ? k : c)) {
+				return puntuar(adaptado, lector.estructura(), escritor, c, hilos, modelos, pendientes);
+			}
+		} finally {
+			hilos.shutdownNow();
+		}
+	}
+
+	/**
+	 * Lee los lotes y los reparte entre los hilos mientras el hilo escritor
+	 * escribe los resultados en orden
+	 */
+	private long puntuar(Lector lector, Instances estructura, EscritorPertenencias escritor, int c,
+			ExecutorService hilos, ThreadLocal<Modelo> modelos, BlockingQueue<Future<Lote>> pendientes)
+			throws Exception {
+		Exception errorEscritor[] = new Exception[1];
+		Thread escritura = new Thread(() -> {
+			try {
+				for (Lote lote; (lote = pendientes.take().get()) != FIN;)
+					for (int q = 0; q < lote.filas; q++)
+						escritor.escribir(lote.u[q]);
+			} catch (Exception e) {
+				errorEscritor[0] = e instanceof ExecutionException ? (Exception) e.getCause() : e;
+			}
+		}, "PuntuadorFlujo-escritor");
+		escritura.start();
+
+		try {
+			while (true) {
+				Lote lote = new Lote(tamanoLote, c);
+				Instance instancia;
+				while (lote.filas < tamanoLote && (instancia = lector.siguiente(estructura)) != null)
+					lote.instancias[lote.filas++] = instancia;
+				if (lote.filas == 0)
+					break;
+				Future<Lote> puntuado = hilos.submit(() -> {
+					Modelo modelo = modelos.get();
+					if (modelo == null)
+						modelos.set(modelo = fabrica.crear());
+					modelo.puntuar(lote.instancias, lote.filas, lote.u);
+					return lote;
+				});
+				// Si la cola esta llena la lectura espera a que se escriba un lote
+				while (!pendientes.offer(puntuado, 100, TimeUnit.MILLISECONDS))
+					if (!escritura.isAlive())
+						throw new IOException("Error puntuando", errorEscritor[0]);
+				if (lote.filas < tamanoLote)
+					break;
+			}
+		} finally {
+			// El escritor termina con FIN aunque la lectura haya fallado
+			while (escritura.isAlive()
+					&& !pendientes.offer(CompletableFuture.completedFuture(FIN), 100, TimeUnit.MILLISECONDS))
+				;
+			escritura.join();
+		}
+		if (errorEscritor[0] != null)
+			throw errorEscritor[0];
+		return escritor.filas();
+	}
+
+	/**
+	 * Lector que devuelve las instancias con la cabecera de entrenamiento. Si
+	 * el fichero tiene un atributo menos, le falta la clase y se inserta como
+	 * ausente en su posicion.
+	 */
+	private static Lector adaptar(Lector lector, Instances fichero, Instances destino) {
+		int clase = destino.classIndex();
+		boolean sinClase = clase >= 0 && fichero.numAttributes() == destino.numAttributes() - 1;
+		if (!sinClase && fichero.numAttributes() != destino.numAttributes())
+			throw new IllegalArgumentException("El fichero tiene " + fichero.numAttributes()
+					+ " atributos y el modelo espera " + destino.numAttributes()
+					+ (clase >= 0 ? " (o " + (destino.numAttributes() - 1) + " sin la clase)" : ""));
+		return new Lector() {
+			@Override
+			public Instances estructura() {
+				return destino;
+			}
+
+			@Override
+			public Instance siguiente(Instances estructura) throws IOException {
+				Instance leida = lector.siguiente(estructura);
+				if (leida == null)
+					return null;
+				double valores[] = leida.toDoubleArray();
+				if (sinClase) {
+					double completos[] = new double[destino.numAttributes()];
+					System.arraycopy(valores, 0, completos, 0, clase);
+					completos[clase] = Instance.missingValue();
+					System.arraycopy(valores, clase, completos, clase + 1, valores.length - clase);
+					valores = completos;
+				}
+				Instance instancia = new Instance(leida.weight(), valores);
+				instancia.setDataset(destino);
+				return instancia;
+			}
+
+			@Override
+			public void close() throws IOException {
+				lector.close();
+			}
+		};
+	}
+
+	/** Lectura incremental de instancias */
+	private interface Lector extends AutoCloseable {
+		Instances estructura() throws IOException;
+
+		/** Siguiente instancia con la estructura asignada, o null al final */
+		Instance siguiente(Instances estructura) throws IOException;
+
+		@Override
+		void close() throws IOException;
+	}
+
+	/** ARFF con ArffLoader, instancia a instancia */
+	private static class LectorArff implements Lector {
+		final ArffLoader loader = new ArffLoader();
+
+		LectorArff(File fichero) throws IOException {
+			loader.setFile(fichero);
+		}
+
+		@Override
+		public Instances estructura() throws IOException {
+			return loader.getStructure();
+		}
+
+		@Override
+		public Instance siguiente(Instances estructura) throws IOException {
+			return loader.getNextInstance(estructura);
+		}
+
+		@Override
+		public void close() throws IOException {
+			loader.reset();
+		}
+	}
+
+	/** CSV numerico linea a linea */
+	private static class LectorLineasCSV implements Lector {
+		final BufferedReader entrada;
+		Instances estructura;
+		/** Primera linea si no era cabecera */
+		String pendiente;
+
+		LectorLineasCSV(File fichero) throws IOException {
+			entrada = new BufferedReader(new InputStreamReader(new FileInputStream(fichero), StandardCharsets.UTF_8),
+					1 << 16);
+			String primera = entrada.readLine();
+			if (primera == null)
+				throw new IOException("Fichero vacio: " + fichero);
+			String campos[] = primera.split(",", -1);
+			boolean cabecera = !esNumero(campos[0].trim());
+			FastVector atributos = new FastVector(campos.length);
+			for (int j = 0; j < campos.length; j++)
+				atributos.addElement(new Attribute(cabecera ? campos[j].trim() : "att" + (j + 1)));
+			estructura = new Instances(fichero.getName(), atributos, 0);
+			if (!cabecera)
+				pendiente = primera;
+		}
+
+		@Override
+		public Instances estructura() {
+			return estructura;
+		}
+
+		@Override
+		public Instance siguiente(Instances estructura) throws IOException {
+			String linea;
+			do {
+				linea = pendiente != null ? pendiente : entrada.readLine();
+				pendiente = null;
+				if (linea == null)
+					return null;
+			} while (linea.trim().isEmpty());
+			double valores[] = new double[estructura.numAttributes()];
+			int desde = 0;
+			for (int j = 0; j < valores.length; j++) {
+				int coma = linea.indexOf(',', desde);
+				String campo = (coma < 0 ? linea.substring(desde) : linea.substring(desde, coma)).trim();
+				valores[j] = campo.isEmpty() || campo.equals("?") ? Instance.missingValue() : Double.parseDouble(campo);
+				if (coma < 0) {
+					for (j++; j < valores.length; j++)
+						valores[j] = Instance.missingValue();
+					break;
+				}
+				desde = coma + 1;
+			}
+			Instance instancia = new Instance(1.0, valores);
+			instancia.setDataset(estructura);
+			return instancia;
+		}
+
+		@Override
+		public void close() throws IOException {
+			entrada.close();
+		}
+
+		private static boolean esNumero(String campo) {
+			if (campo.isEmpty() || campo.equals("?"))
+				return true;
+			try {
+				Double.parseDouble(campo);
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Puntua un fichero desde la linea de comandos.
+	 *
+	 * -modelo fichero: ModeloBinario (.fwm) o modelo Weka serializado
+	 * (clasificador o agrupador). -entrada y -salida: ficheros de entrada
+	 * (ARFF o CSV) y de pertenencias. -binario: salida en formato binario. -k,
+	 * -hilos, -lote y -vuelo: pertenencias por fila, hilos de puntuacion,
+	 * instancias por lote y lotes en vuelo.
+	 */
+	public static void main(String[] args) throws Exception {
+		String fichero = Utils.getOption("modelo", args);
+		File entrada = new File(Utils.getOption("entrada", args));
+		File salida = new File(Utils.getOption("salida", args));
+		EscritorPertenencias.Formato formato = Utils.getFlag("binario", args) ? EscritorPertenencias.Formato.BINARIO
+				: EscritorPertenencias.Formato.CSV;
+		String k = Utils.getOption("k", args);
+		String hilos = Utils.getOption("hilos", args);
+		String lote = Utils.getOption("lote", args);
+		String vuelo = Utils.getOption("vuelo", args);
+
+		PuntuadorFlujo puntuador;
+		if (fichero.endsWith(".fwm"))
+			puntuador = de(new ModeloBinario(new File(fichero)));
+		else {
+			Object modelo = SerializationHelper.read(fichero);
+			if (modelo instanceof Clusterer)
+				puntuador = de((Clusterer) modelo);
+			else if (modelo instanceof Classifier)
+				puntuador = de((Classifier) modelo);
+			else
+				throw new IllegalArgumentException("Modelo no soportado: " + modelo.getClass().getName());
+		}
+		if (hilos.length() > 0)
+			puntuador.setNumHilos(Integer.parseInt(hilos));
+		if (lote.length() > 0)
+			puntuador.setTamanoLote(Integer.parseInt(lote));
+		if (vuelo.length() > 0)
+			puntuador.setLotesEnVuelo(Integer.parseInt(vuelo));
+
+		long inicio = System.nanoTime();
+		long filas = puntuador.puntuar(entrada, salida, formato,
+				k.length() > 0 ? Integer.parseInt(k) : 0);
+		System.out.printf("%d instancias puntuadas en %.1f s%n", filas, (System.nanoTime() - inicio) / 1e9);
+	}
+}
@@ -0,0 +1,466 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Servidor de puntuacion embebible para modelos exportados con ModeloBinario,
+ * escuchando solo en localhost.
+ *
+ * Cada conexion se atiende en un hilo que deja sus peticiones en la cola del
+ * modelo. Un hilo por modelo junta las peticiones concurrentes en
+ * micro-lotes, de hasta tamanoLote peticiones o las que lleguen durante
+ * espera microsegundos desde la primera, y los puntua de una vez con
+ * ModeloBinario.distribuciones. Las mismas colas se pueden usar sin socket con
+ * puntuar().
+ *
+ * Protocolo, una linea por peticion y por respuesta:
+ * <ul>
+ * <li>"modelo v1,v2,...,vn": valores de la instancia en el orden de la
+ * cabecera de entrenamiento ("?" si falta, la clase puede faltar). Responde
+ * "u1,u2,...", las pertenencias a cada clase o cluster.</li>
+ * <li>"METRICAS": responde una linea con las metricas del servidor.</li>
+ * </ul>
+ * Si una peticion no es valida la respuesta es "ERROR mensaje" y la conexion
+ * sigue abierta.
+ */
+public class ServidorPuntuacion {
+
+	/** Peticiones maximas por micro-lote por defecto */
+	public static final int TAMANO_LOTE = 64;
+	/** Espera maxima por defecto para completar un micro-lote, en microsegundos */
+	public static final int ESPERA = 200;
+	/** Tramos del histograma de latencias: [2^i, 2^(i+1)) microsegundos */
+	private static final int TRAMOS = 32;
+
+	protected int tamanoLote = TAMANO_LOTE;
+	protected long espera = ESPERA;
+
+	/** Modelos cargados, por nombre */
+	private final Map<String, Modelo> modelos = new ConcurrentHashMap<>();
+	/** Hilos de las conexiones */
+	private final ExecutorService conexiones = Executors.newCachedThreadPool(r -> demonio(r, "ServidorPuntuacion"));
+	/** Conexiones abiertas, que se cierran al cerrar el servidor */
+	private final Set<Socket> abiertas = ConcurrentHashMap.newKeySet();
+	private ServerSocket socket;
+	private volatile boolean activo = true;
+
+	// Metricas
+	private final long inicio = System.nanoTime();
+	private final LongAdder peticiones = new LongAdder();
+	private final LongAdder lotes = new LongAdder();
+	private final LongAdder errores = new LongAdder();
+	private final AtomicLongArray latencias = new AtomicLongArray(TRAMOS);
+
+	/**
+	 * Modelo cargado, con su cola y su hilo de micro-lotes, que se arranca al
+	 * registrarlo
+	 */
+	private class Modelo {
+		final ModeloBinario modelo;
+		/** Longitud minima del vector de valores */
+		final int longitud;
+		final BlockingQueue<Peticion> cola = new LinkedBlockingQueue<>();
+		final Thread hilo;
+
+		Modelo(String nombre, ModeloBinario modelo) {
+			this.modelo = modelo;
+			int maximo = -1;
+			for (int a : modelo.atributos)
+				maximo = Math.max(maximo, a);
+			this.longitud = maximo + 1;
+			this.hilo = demonio(() -> agruparLotes(this), "ServidorPuntuacion-" + nombre);
+		}
+	}
+
+	/** Peticion pendiente de puntuar */
+	private static class Peticion {
+		final double valores[];
+		final long llegada = System.nanoTime();
+		final CompletableFuture<double[]> resultado = new CompletableFuture<>();
+
+		Peticion(double valores[]) {
+			this.valores = valores;
+		}
+	}
+
+	/** Peticiones maximas por micro-lote (64 por defecto), antes de cargar los modelos */
+	public void setTamanoLote(int tamanoLote) {
+		this.tamanoLote = Math.max(1, tamanoLote);
+	}
+
+	/** Espera maxima para completar un micro-lote, en microsegundos (200 por defecto) */
+	public void setEspera(long espera) {
+		this.espera = Math.max(0, espera);
+	}
+
+	/** Carga un modelo exportado con ModeloBinario.exportar */
+	public void cargar(String nombre, File fichero) throws IOException {
+		cargar(nombre, new ModeloBinario(fichero));
+	}
+
+	public void cargar(String nombre, ModeloBinario modelo) {
+		Modelo nuevo = new Modelo(nombre, modelo);
+		if (modelos.putIfAbsent(nombre, nuevo) != null)
+			throw new IllegalArgumentException("Ya hay un modelo cargado con el nombre " + nombre);
+		nuevo.hilo.start();
+	}
+
+	/**
+	 * Empieza a aceptar conexiones en localhost.
+	 *
+	 * @param puerto
+	 *            puerto de escucha, o 0 para uno libre
+	 * @return el puerto de escucha
+	 */
+	public int iniciar(int puerto) throws IOException {
+		socket = new ServerSocket(puerto, 50, InetAddress.getLoopbackAddress());
+		demonio(this::aceptar, "ServidorPuntuacion-aceptar").start();
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Puntua una instancia sin pasar por el socket. La peticion entra en el
+	 * mismo micro-lote que las de las conexiones.
+	 *
+	 * @param valores
+	 *            valores en el orden de la cabecera de entrenamiento, NaN si
+	 *            faltan
+	 */
+	public CompletableFuture<double[]> puntuar(String nombre, double valores[]) {
+		Modelo modelo = modelos.get(nombre);
+		if (modelo == null)
+			throw new IllegalArgumentException("No hay ningun modelo cargado con el nombre " + nombre);
+		if (valores.length < modelo.longitud)
+			throw new IllegalArgumentException(
+					"Se esperaban al menos " + modelo.longitud + " valores y hay " + valores.length);
+		Peticion peticion = new Peticion(valores);
+		modelo.cola.add(peticion);
+		return peticion.resultado;
+	}
+
+	/**
+	 * Deja de aceptar conexiones, cierra las abiertas (los clientes ven el
+	 * fin de la conexion) y termina los hilos
+	 */
+	public void cerrar() throws IOException {
+		activo = false;
+		if (socket != null)
+			socket.close();
+		for (Socket abierta : abiertas)
+			abierta.close();
+		conexiones.shutdownNow();
+		for (Modelo modelo : modelos.values())
+			modelo.hilo.interrupt();
+	}
+
+	/** Peticiones puntuadas desde el arranque */
+	public long getPeticiones() {
+		return peticiones.sum();
+	}
+
+	/** Peticiones por segundo desde el arranque */
+	public double getRendimiento() {
+		return peticiones.sum() / ((System.nanoTime() - inicio) / 1e9);
+	}
+
+	/** Peticiones en cola de todos los modelos */
+	public int getProfundidadCola() {
+		int total = 0;
+		for (Modelo modelo : modelos.values())
+			total += modelo.cola.size();
+		return total;
+	}
+
+	/**
+	 * Histograma de latencias: la posicion i cuenta las peticiones que
+	 * tardaron entre 2^i y 2^(i+1) microsegundos (la 0 incluye las de menos de
+	 * 1).
+	 */
+	public long[] getHistogramaLatencias() {
+		long histograma[] = new long[TRAMOS];
+		for (int i = 0; i < TRAMOS; i++)
+			histograma[i] = latencias.get(i);
+		return histograma;
+	}
+
+	/**
+	 * Percentil de la latencia en microsegundos, como limite superior de su
+	 * tramo del histograma
+	 *
+	 * @param p
+	 *            percentil entre 0 y 1
+	 */
+	public long getLatencia(double p) {
+		long histograma[] = getHistogramaLatencias();
+		long total = 0;
+		for (long cuenta : histograma)
+			total += cuenta;
+		long acumulado = 0;
+		for (int i = 0; i < TRAMOS; i++) {
+			acumulado += histograma[i];
+			if (acumulado > 0 && acumulado >= p * total)
+				return 1L << (i + 1);
+		}
+		return 0;
+	}
+
+	/** Metricas en una linea, como responde a "METRICAS" */
+	public String metricas() {
+		long n = lotes.sum();
+		return "peticiones=" + peticiones.sum() + " errores=" + errores.sum() + " lotes=" + n + " lote_medio="
+				+ Utils.doubleToString(n == 0 ? 0 : peticiones.sum() / (double) n, 2) + " por_segundo="
+				+ Utils.doubleToString(getRendimiento(), 1) + " cola=" + getProfundidadCola() + " p50_us<="
+				+ getLatencia(0.5) + " p90_us<=" + getLatencia(0.9) + " p99_us<=" + getLatencia(0.99);
+	}
+
+	/** Bucle del hilo de micro-lotes de un modelo */
+	private void agruparLotes(Modelo modelo) {
+		Peticion lote[] = new Peticion[tamanoLote];
+		double valores[][] = new double[tamanoLote][];
+		double u[][] = new double[tamanoLote][modelo.modelo.numSalidas()];
+		try {
+			while (activo) {
+				Peticion primera = modelo.cola.poll(100, TimeUnit.MILLISECONDS);
+				if (primera == null)
+					continue;
+				// Junta las que lleguen hasta llenar el lote o agotar la espera
+				lote[0] = primera;
+				int filas = 1;
+				long limite = System.nanoTime() + espera * 1000;
+				while (filas < tamanoLote) {
+					long resta = limite - System.nanoTime();
+					Peticion siguiente = resta > 0 ? modelo.cola.poll(resta, TimeUnit.NANOSECONDS)
+							: modelo.cola.poll();
+					if (siguiente == null)
+						break;
+					lote[filas++] = siguiente;
+				}
+
+				for (int i = 0; i < filas; i++)
+					valores[i] = lote[i].valores;
+				try {
+					modelo.modelo.distribuciones(valores, u, filas);
+					for (int i = 0; i < filas; i++)
+						lote[i].resultado.complete(u[i].clone());
+				} catch (RuntimeException e) {
+					for (int i = 0; i < filas; i++)
+						lote[i].resultado.completeExceptionally(e);
+				}
+				long ahora = System.nanoTime();
+				for (int i = 0; i < filas; i++) {
+					registrarLatencia((ahora - lote[i].llegada) / 1000);
+					lote[i] = null;
+					valores[i] = null;
+				}
+				peticiones.add(filas);
+				lotes.increment();
+			}
+		} catch (InterruptedException e) {
+			// Cierre del servidor
+		}
+	}
+
+	private void registrarLatencia(long micros) {
+		int tramo = micros <= 1 ? 0 : Math.min(TRAMOS - 1, 63 - Long.numberOfLeadingZeros(micros));
+		latencias.incrementAndGet(tramo);
+	}
+
+	/** Bucle del hilo que acepta conexiones */
+	private void aceptar() {
+		while (activo) {
+			try {
+				Socket conexion = socket.accept();
+				abiertas.add(conexion);
+				// Si se ha cerrado el servidor mientras tanto, cerrar() ya no la ve
+				if (!activo) {
+					conexion.close();
+					break;
+				}
+				try {
+					conexiones.execute(() -> atender(conexion));
+				} catch (RejectedExecutionException e) {
+					abiertas.remove(conexion);
+					conexion.close();
+				}
+			} catch (IOException e) {
+				// El socket se cierra al terminar
+			}
+		}
+	}
+
+	/** Atiende una conexion linea a linea hasta que el cliente la cierra */
+	private void atender(Socket conexion) {
+		try (Socket s = conexion;
+				BufferedReader entrada = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				BufferedWriter salida = new BufferedWriter(
+						new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			s.setTcpNoDelay(true);
+			String linea;
+			while ((linea = entrada.readLine()) != null) {
+				salida.write(responder(linea.trim()));
+				salida.write('\n');
+				salida.flush();
+			}
+		} catch (IOException e) {
+			// Conexion cerrada por el cliente o por cerrar()
+		} finally {
+			abiertas.remove(conexion);
+		}
+	}
+
+	/** Respuesta a una linea del protocolo */
+	private String responder(String linea) {
+		if (linea.equals("METRICAS"))
+			return metricas();
+		try {
+			int espacio = linea.indexOf(' ');
+			if (espacio < 0)
+				throw new IllegalArgumentException("Se esperaba \"modelo v1,v2,...\"");
+			String campos[] = linea.substring(espacio + 1).trim().split(",");
+			double valores[] = new double[campos.length];
+			for (int i = 0; i < campos.length; i++) {
+				String campo = campos[i].trim();
+				valores[i] = campo.equals("?") ? Instance.missingValue() : Double.parseDouble(campo);
+			}
+			double u[] = puntuar(linea.substring(0, espacio), valores).get();
+			StringBuilder respuesta = new StringBuilder();
+			for (int i = 0; i < u.length; i++) {
+				if (i > 0)
+					respuesta.append(',');
+				respuesta.append(u[i]);
+			}
+			return respuesta.toString();
+		} catch (ExecutionException e) {
+			errores.increment();
+			return "ERROR " + e.getCause().getMessage();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "ERROR servidor cerrado";
+		} catch (RuntimeException e) {
+			errores.increment();
+			return "ERROR " + e.getMessage();
+		}
+	}
+
+	private static Thread demonio(Runnable tarea, String nombre) {
+		Thread hilo = new Thread(tarea, nombre);
+		hilo.setDaemon(true);
+		return hilo;
+	}
+
+	/**
+	 * Cliente de una conexion con el servidor, para usarlo desde el mismo
+	 * proceso o desde otro. No es seguro entre hilos; cada hilo debe abrir el
+	 * suyo.
+	 */
+	public static class Cliente implements AutoCloseable {
+
+		private final Socket socket;
+		private final BufferedReader entrada;
+		private final BufferedWriter salida;
+
+		public Cliente(int puerto) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), puerto);
+			socket.setTcpNoDelay(true);
+			entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			salida = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		/** Pertenencias de una instancia; los NaN se envian como ausentes */
+		public double[] puntuar(String modelo, double valores[]) throws IOException {
+			StringBuilder peticion = new StringBuilder(modelo).append(' ');
+			for (int i = 0; i < valores.length; i++) {
+				if (i > 0)
+					peticion.append(',');
+				if (Instance.isMissingValue(valores[i]))
+					peticion.append('?');
+				else
+					peticion.append(valores[i]);
+			}
+			String respuesta = enviar(peticion.toString());
+			if (respuesta.startsWith("ERROR"))
+				throw new IOException(respuesta);
+			String campos[] = respuesta.split(",");
+			double u[] = new double[campos.length];
+			for (int i = 0; i < campos.length; i++)
+				u[i] = Double.parseDouble(campos[i]);
+			return u;
+		}
+
+		/** Linea de metricas del servidor */
+		public String metricas() throws IOException {
+			return enviar("METRICAS");
+		}
+
+		private String enviar(String linea) throws IOException {
+			salida.write(linea);
+			salida.write('\n');
+			salida.flush();
+			String respuesta = entrada.readLine();
+			if (respuesta == null)
+				throw new IOException("El servidor ha cerrado la conexion");
+			return respuesta;
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Arranca un servidor con los modelos indicados y muestra sus metricas
+	 * periodicamente.
+	 *
+	 * Uso: ServidorPuntuacion [-puerto p] [-lote n] [-espera us]
+	 * nombre=modelo.fwm ...
+	 */
+	public static void main(String[] args) throws Exception {
+		String puerto = Utils.getOption("puerto", args);
+		String lote = Utils.getOption("lote", args);
+		String espera = Utils.getOption("espera", args);
+		ServidorPuntuacion servidor = new ServidorPuntuacion();
+		if (lote.length() > 0)
+			servidor.setTamanoLote(Integer.parseInt(lote));
+		if (espera.length() > 0)
+			servidor.setEspera(Long.parseLong(espera));
+		for (String arg : args) {
+			if (arg.length() == 0)
+				continue;
+			int igual = arg.indexOf('=');
+			if (igual < 0)
+				throw new IllegalArgumentException("Se esperaba nombre=fichero: " + arg);
+			servidor.cargar(arg.substring(0, igual), new File(arg.substring(igual + 1)));
+		}
+		int escucha = servidor.iniciar(puerto.length() > 0 ? Integer.parseInt(puerto) : 7070);
+		System.out.println("Escuchando en localhost:" + escucha);
+		while (true) {
+			Thread.sleep(10000);
+			System.out.println(servidor.metricas());
+		}
+	}
+}
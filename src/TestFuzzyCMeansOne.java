@@ -1,10 +1,6 @@
 import weka.clusterers.ClusterEvaluation;
 import weka.core.Instances;
-import weka.core.converters.CSVLoader;
 import java.io.File;
-// 在文件顶部添加以下导入
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Remove;
@@ -15,10 +11,8 @@ public class TestFuzzyCMeansOne {
 
   public static void main(String[] args) {
     try {
-      // 加载样本数据（原有代码保持不变）
-      CSVLoader loader = new CSVLoader();
-      loader.setSource(new File("data/S1.csv"));
-      Instances data = loader.getDataSet();
+      // 加载样本数据：首次用 LectorCSV 解析 S1.csv 并写入列式缓存 S1.csv.fwc，之后直接内存映射加载
+      Instances data = CacheColumnar.cargar(new File("data/S1.csv"));
       // 输出读取的data样本数据
       // for(int i=0;i<data.numInstances();i++){
       // System.out.println("data[" + (i + 1) + "]: " + data.instance(i));
@@ -31,14 +25,15 @@ public class TestFuzzyCMeansOne {
       int c = 15;
       FuzzyCMeans fcm = new FuzzyCMeans(m, c, e);
       fcm.setSeed(10);
+      fcm.addOyente(OyenteIteraciones.CONSOLA); // 打印每次迭代的误差和耗时统计
       fcm.buildClusterer(data);
 
-      // 新增文件输出代码
-      try (BufferedWriter writer = new BufferedWriter(new FileWriter("output.csv"))) {
-        writer.write("InstanceID,Cluster\n"); // 写入CSV表头
+      // 输出每个实例的簇号及全部隶属度（InstanceID,Cluster,u1..uc，簇号从1开始）；
+      // 编码和写文件在后台线程进行，与隶属度计算重叠
+      try (EscritorPertenencias writer = new EscritorPertenencias(new File("output.csv"),
+          EscritorPertenencias.Formato.CSV, c, c)) {
         for (int i = 0; i < data.numInstances(); i++) {
-          int cluster = fcm.clusterInstance(data.instance(i)) + 1; // 簇号从1开始
-          writer.write(String.format("%d,%d\n", i + 1, cluster));
+          writer.escribir(fcm.distributionForInstance(data.instance(i)));
         }
         System.out.println("\n聚类结果已保存至 output.csv");
       } catch (IOException ex) {
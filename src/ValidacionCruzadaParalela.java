@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Validacion cruzada que entrena y prueba los folds, y varios clasificadores
+ * independientes, en paralelo sobre un mismo conjunto de hilos.
+ *
+ * Los folds se preparan en el hilo que llama, consumiendo el Random en el
+ * mismo orden que Evaluation.crossValidateModel. Cada fold entrena una copia
+ * del clasificador y calcula las distribuciones de sus instancias de test en
+ * un hilo. Al acabar todos, las predicciones se registran fold a fold en una
+ * unica Evaluation, con las probabilidades a priori de cada fold, asi que el
+ * resultado es identico al secuencial con la misma semilla.
+ *
+ * Uso: enviar todos los trabajos, recoger las evaluaciones con get() y
+ * llamar a cerrar().
+ */
+public class ValidacionCruzadaParalela {
+
+	/** Hilos que entrenan y prueban los folds */
+	protected ExecutorService hilos;
+
+	/** Usa tantos hilos como procesadores */
+	public ValidacionCruzadaParalela() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ValidacionCruzadaParalela(int numHilos) {
+		hilos = Executors.newFixedThreadPool(numHilos);
+	}
+
+	/**
+	 * Envia una validacion cruzada sin esperar a que termine.
+	 *
+	 * @param clasificador
+	 *            clasificador sin entrenar; se copia para cada fold
+	 * @param datos
+	 *            instancias con el indice de clase asignado
+	 * @param numFolds
+	 *            numero de folds
+	 * @param random
+	 *            generador, que se consume antes de volver
+	 * @return la evaluacion, igual a la de crossValidateModel
+	 */
+	public Future<Evaluation> enviar(Classifier clasificador, Instances datos, int numFolds, Random random)
+			throws Exception {
+		Evaluacion evaluacion = new Evaluacion(datos);
+
+		// 1. FOLDS, en el mismo orden que crossValidateModel
+		datos = new Instances(datos);
+		datos.randomize(random);
+		if (datos.classAttribute().isNominal())
+			datos.stratify(numFolds);
+		Instances train[] = new Instances[numFolds];
+		Instances test[] = new Instances[numFolds];
+		for (int i = 0; i < numFolds; i++) {
+			train[i] = datos.trainCV(numFolds, i, random);
+			test[i] = datos.testCV(numFolds, i);
+		}
+
+		// 2. ENTRENAMIENTO Y PREDICCIONES DE CADA FOLD EN PARALELO
+		List<CompletableFuture<double[][]>> folds = new ArrayList<>();
+		for (int i = 0; i < numFolds; i++) {
+			Instances entrenamiento = train[i], prueba = test[i];
+			folds.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return predecir(clasificador, entrenamiento, prueba);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}, hilos));
+		}
+
+		// 3. REGISTRO EN ORDEN, cuando han terminado todos los folds
+		return CompletableFuture.allOf(folds.toArray(new CompletableFuture<?>[0])).thenApply(nada -> {
+			try {
+				for (int i = 0; i < numFolds; i++) {
+					evaluacion.setPriors(train[i]);
+					double distribuciones[][] = folds.get(i).join();
+					for (int j = 0; j < test[i].numInstances(); j++)
+						evaluacion.evaluateModelOnceAndRecordPrediction(distribuciones[j], test[i].instance(j));
+				}
+				evaluacion.setNumFolds(numFolds);
+				return evaluacion;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Validacion cruzada de un unico clasificador, esperando al resultado.
+	 */
+	public Evaluation validar(Classifier clasificador, Instances datos, int numFolds, Random random)
+			throws Exception {
+		return enviar(clasificador, datos, numFolds, random).get();
+	}
+
+	/** Termina los hilos cuando acaban los trabajos pendientes */
+	public void cerrar() {
+		hilos.shutdown();
+	}
+
+	/**
+	 * Entrena una copia del clasificador y devuelve la distribucion de cada
+	 * instancia de test, calculada con la clase oculta como en Evaluation. Si
+	 * la clase es numerica la distribucion es la prediccion.
+	 */
+	private static double[][] predecir(Classifier clasificador, Instances train, Instances test) throws Exception {
+		Classifier copia = Classifier.makeCopy(clasificador);
+		copia.buildClassifier(train);
+		double distribuciones[][] = new double[test.numInstances()][];
+		for (int j = 0; j < test.numInstances(); j++) {
+			Instance sinClase = (Instance) test.instance(j).copy();
+			sinClase.setDataset(test);
+			sinClase.setClassMissing();
+			if (test.classAttribute().isNominal())
+				distribuciones[j] = copia.distributionForInstance(sinClase);
+			else
+				distribuciones[j] = new double[] { copia.classifyInstance(sinClase) };
+		}
+		return distribuciones;
+	}
+
+	/** Evaluation que permite anotar el numero de folds, como crossValidateModel */
+	private static class Evaluacion extends Evaluation {
+
+		Evaluacion(Instances datos) throws Exception {
+			super(datos);
+		}
+
+		void setNumFolds(int numFolds) {
+			m_NumFolds = numFolds;
+		}
+	}
+}